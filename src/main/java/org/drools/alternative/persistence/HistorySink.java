@@ -0,0 +1,18 @@
+package org.drools.alternative.persistence;
+
+import java.util.List;
+
+import org.drools.domain.HistoryRecord;
+
+/**
+ * Append only store of the history of completed process instances and work
+ * items.
+ */
+public interface HistorySink {
+
+    /**
+     * Appends the records of one committed transaction.
+     */
+    void append(List<HistoryRecord> records);
+
+}
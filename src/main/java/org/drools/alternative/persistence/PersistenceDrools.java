@@ -17,4 +17,26 @@ public interface PersistenceDrools extends ProcessInstanceManagerFactory,SignalM
     
     public static final String CACHE_MANAGER_CLASS = "CM_CLASS";
     
+    public static final String CACHE_MANAGER_REGISTRY = "CM_REGISTRY";
+    
+    public static final String SESSION_CACHE = "KSESSION_CACHE";
+    
+    public static final String SESSION_DELTA_STORE = "KSESSION_DELTA_STORE";
+    
+    public static final String COMMAND_EXECUTOR = "COMMAND_EXECUTOR";
+    
+    public static final String DROOLS_TRANSACTION_MANAGER = "DROOLS_TX_MANAGER";
+    
+    public static final String SESSION_POOL = "KSESSION_POOL";
+    
+    public static final String RETRY_POLICY = "RETRY_POLICY";
+    
+    public static final String SNAPSHOT_CODEC = "SNAPSHOT_CODEC";
+    
+    public static final String PROCESS_INSTANCE_CACHE_SIZE = "PROCESS_INSTANCE_CACHE_SIZE";
+    
+    public static final String EXTERNAL_VARIABLE_SIZE = "EXTERNAL_VARIABLE_SIZE";
+    
+    public static final String HISTORY_ARCHIVER = "HISTORY_ARCHIVER";
+    
 }
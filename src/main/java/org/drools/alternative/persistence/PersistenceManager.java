@@ -1,9 +1,12 @@
 package org.drools.alternative.persistence;
 
 
+import java.util.Collection;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 
+import org.drools.domain.ProcessInstanceSummary;
 import org.drools.domain.Versioning;
 
 public interface PersistenceManager {
@@ -12,12 +15,57 @@ public interface PersistenceManager {
 
     <T extends Versioning,ID> T getById(ID id);
 
+    /**
+     * Reads the objects in one request.
+     * 
+     * @return the objects found by id, missing ids are left out
+     */
+    <T extends Versioning, ID> Map<ID, T> getByIds(Collection<ID> ids);
+
+    /**
+     * Reads only the version of the stored object, without fetching it.
+     * 
+     * @return the stored version or <code>-1</code> if there is no such object
+     */
+    <ID> int getVersion(ID id);
+
     <ID> void removeById(ID id);
 
+    /**
+     * Removes the objects in one request, missing ids are ignored.
+     */
+    <ID> void removeByIds(Collection<ID> ids);
+
     <T extends Versioning,ID>  T saveOrUpdate(T object, ID id);
 
+    /**
+     * Adds to the reference count of a stored
+     * {@link org.drools.domain.ReferenceCounted} object without reading it,
+     * so concurrent changes of the count do not conflict. The object is
+     * removed once its count drops to 0.
+     * 
+     * @return the count after the change, <code>-1</code> if there is no
+     *         such object
+     */
+    <ID> int addReferences(ID id, int delta);
+
     List<Long> getIdsByEventType(HashSet<String> params);
 
+    /**
+     * Reads the ids of all stored objects, meant for small sets of objects.
+     */
+    <ID> List<ID> getAllIds();
+
+    /**
+     * Pages through the stored process instances in id order, without reading
+     * their snapshots.
+     * 
+     * @param afterId
+     *            id of the last instance of the previous page, 0 for the first
+     *            page
+     */
+    List<ProcessInstanceSummary> getProcessInstanceSummaries(long afterId, int maxResults);
+
     long generateIdentity();
 
 
@@ -0,0 +1,13 @@
+package org.drools.alternative.persistence;
+
+/**
+ * Marks commands that do not change the session, so they can be executed
+ * against its last committed state without a transaction.
+ *
+ * Built-in commands, queries included, always run on the live session
+ * validated against the store: the committed state known to this node may
+ * lag behind changes committed by other nodes.
+ */
+public interface ReadOnlyCommand {
+
+}
@@ -27,4 +27,11 @@ public interface TransactionManager {
 
     void registerTransactionSynchronization(TransactionSynchronization ts);
 
+    /** Binds a resource to the transaction of the calling thread */
+    void putResource(Object key, Object resource);
+
+    Object getResource(Object key);
+
+    void removeResource(Object key);
+
 }
\ No newline at end of file
@@ -3,6 +3,9 @@ package org.drools.alternative.persistence;
 
 public interface TransactionSynchronization {    
     
+    /** Called before commit only, a failure rolls the transaction back */
+    void beforeCommit();
+    
     void beforeCompletion();
     
     void afterCompletion(int status);
@@ -2,12 +2,19 @@ package org.drools.alternative.persistence.cm.impl;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.drools.alternative.persistence.PersistenceDrools;
 import org.drools.alternative.persistence.PersistenceManager;
+import org.drools.domain.ProcessInstanceSummary;
 import org.drools.domain.Versioning;
 import org.drools.runtime.Environment;
 import org.slf4j.Logger;
@@ -15,12 +22,25 @@ import org.slf4j.LoggerFactory;
 import org.springframework.transaction.coherence.ConnectionFactoryUtils;
 
 import com.oracle.coherence.common.sequencegenerators.ClusteredSequenceGenerator;
+import com.oracle.coherence.common.sequencegenerators.SequenceGenerator;
 import com.tangosol.coherence.transaction.Connection;
 import com.tangosol.coherence.transaction.ConnectionFactory;
 import com.tangosol.coherence.transaction.OptimisticNamedCache;
 import com.tangosol.coherence.transaction.TransactionState;
+import com.tangosol.util.ValueExtractor;
+import com.tangosol.util.comparator.EntryComparator;
+import com.tangosol.util.comparator.SafeComparator;
+import com.tangosol.util.extractor.IdentityExtractor;
+import com.tangosol.util.extractor.KeyExtractor;
+import com.tangosol.util.extractor.MultiExtractor;
+import com.tangosol.util.extractor.PofExtractor;
+import com.tangosol.util.filter.AlwaysFilter;
 import com.tangosol.util.filter.ContainsAllFilter;
 import com.tangosol.util.filter.EqualsFilter;
+import com.tangosol.util.filter.GreaterFilter;
+import com.tangosol.util.filter.LimitFilter;
+import com.tangosol.util.processor.ConditionalRemove;
+import com.tangosol.util.processor.ExtractorProcessor;
 
 public class CoherenceManagerImpl implements PersistenceManager {
 
@@ -28,7 +48,19 @@ public class CoherenceManagerImpl implements PersistenceManager {
 
     private String nameOfCache;
     private Environment environment;
-    private ClusteredSequenceGenerator seq = new ClusteredSequenceGenerator("GetObjectID", 1);
+
+    // identities are cluster wide, so all managers share one generator
+    private static final SequenceGenerator SEQUENCE = new ClusteredSequenceGenerator("GetObjectID", 1);
+
+    // ProcessInstanceInfo attributes by POF index, see jaxb-pof-mapper.xml
+    private static final ValueExtractor SUMMARY = new MultiExtractor(new ValueExtractor[] {
+            new PofExtractor(String.class, 6), new PofExtractor(Integer.class, 7), new PofExtractor(Long.class, 2),
+            new PofExtractor(Long.class, 3), new PofExtractor(Collection.class, 5) });
+
+    private static final ValueExtractor KEY = new KeyExtractor(IdentityExtractor.INSTANCE);
+
+    // caches whose keys are indexed, the index is added once per node
+    private static final Set<String> KEY_INDEXED = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
 
     public CoherenceManagerImpl(Class clazz, Environment env) {
         this.nameOfCache = clazz.getName();
@@ -62,6 +94,21 @@ public class CoherenceManagerImpl implements PersistenceManager {
         return (T) getCache().get(id);
     }
 
+    @Override
+    public <T extends Versioning, ID> Map<ID, T> getByIds(Collection<ID> ids) {
+        if (log.isDebugEnabled())
+            log.debug("Quering {} ids from {}", ids.size(), nameOfCache);
+        return new HashMap<ID, T>(getCache().getAll(ids));
+    }
+
+    @Override
+    public <ID> int getVersion(ID id) {
+        Integer version = (Integer) getCache().invoke(id, new ExtractorProcessor("getVersion"));
+        if (log.isDebugEnabled())
+            log.debug("{} [id={}] has version {}", new Object[] { nameOfCache, id, version });
+        return version != null ? version : -1;
+    }
+
     @Override
     public <ID> void removeById(ID id) {
         getCache().remove(id);
@@ -69,6 +116,16 @@ public class CoherenceManagerImpl implements PersistenceManager {
             log.debug("{} [id={}] removed from cache", nameOfCache, id);
     }
 
+    @Override
+    public <ID> void removeByIds(Collection<ID> ids) {
+        if (ids.isEmpty()) {
+            return;
+        }
+        getCache().invokeAll(ids, new ConditionalRemove(AlwaysFilter.INSTANCE));
+        if (log.isDebugEnabled())
+            log.debug("{} ids removed from {}", ids.size(), nameOfCache);
+    }
+
     @Override
     public <T extends Versioning, ID> T saveOrUpdate(T object, ID id) {
         OptimisticNamedCache cache = getCache();
@@ -83,7 +140,17 @@ public class CoherenceManagerImpl implements PersistenceManager {
             if (log.isDebugEnabled())
                 log.debug("{} [id={}] inserted into cache", nameOfCache, id);
         }
-        return (T) getById(id);
+        // the object holds what was written, reading it back would only
+        // deserialize another copy of its blobs
+        return object;
+    }
+
+    @Override
+    public <ID> int addReferences(ID id, int delta) {
+        int count = (Integer) getCache().invoke(id, new ReferenceCountProcessor(delta));
+        if (log.isDebugEnabled())
+            log.debug("{} [id={}] has {} references", new Object[] { nameOfCache, id, count });
+        return count;
     }
 
     @Override
@@ -96,9 +163,57 @@ public class CoherenceManagerImpl implements PersistenceManager {
         return new ArrayList<Long>(keySet);
     }
 
+    @Override
+    public <ID> List<ID> getAllIds() {
+        return new ArrayList<ID>(getCache().keySet(AlwaysFilter.INSTANCE));
+    }
+
+    @Override
+    public List<ProcessInstanceSummary> getProcessInstanceSummaries(long afterId, int maxResults) {
+        OptimisticNamedCache cache = getCache();
+        if (KEY_INDEXED.add(nameOfCache)) {
+            cache.addIndex(KEY, true, null);
+        }
+        // the members only return the first keys of the page, in key order
+        LimitFilter filter = new LimitFilter(new GreaterFilter(KEY, Long.valueOf(afterId)), maxResults);
+        filter.setComparator(new EntryComparator(SafeComparator.INSTANCE, EntryComparator.CMP_KEY));
+        Set keySet = cache.keySet(filter);
+        List<Long> ids = new ArrayList<Long>(keySet);
+        Collections.sort(ids);
+        if (ids.size() > maxResults) {
+            ids = ids.subList(0, maxResults);
+        }
+        List<ProcessInstanceSummary> summaries = new ArrayList<ProcessInstanceSummary>(ids.size());
+        if (ids.isEmpty()) {
+            return summaries;
+        }
+        // attributes are read from the serialized entries, the snapshots are
+        // neither deserialized nor sent
+        Map<Long, List> attributes = cache.invokeAll(ids, new ExtractorProcessor(SUMMARY));
+        for (Long id : ids) {
+            List values = attributes.get(id);
+            // removed since the keys were read
+            if (values == null) {
+                continue;
+            }
+            Integer state = (Integer) values.get(1);
+            Collection eventTypes = (Collection) values.get(4);
+            summaries.add(new ProcessInstanceSummary(id, (String) values.get(0), state != null ? state : 0,
+                    toDate((Long) values.get(2)), toDate((Long) values.get(3)), eventTypes != null ? new HashSet<String>(
+                            eventTypes) : new HashSet<String>()));
+        }
+        if (log.isDebugEnabled())
+            log.debug("{} summaries after {}, size={}", new Object[] { nameOfCache, afterId, summaries.size() });
+        return summaries;
+    }
+
+    private static Date toDate(Long time) {
+        return time != null ? new Date(time) : null;
+    }
+
     @Override
     public long generateIdentity() {
-        return seq.next();
+        return SEQUENCE.next();
     }
 
 }
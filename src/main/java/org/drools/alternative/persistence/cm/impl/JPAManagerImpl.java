@@ -1,13 +1,20 @@
 package org.drools.alternative.persistence.cm.impl;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
 import java.util.HashSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import javax.persistence.EntityManager;
 import javax.persistence.EntityManagerFactory;
 import javax.persistence.Query;
 
 import org.drools.alternative.persistence.PersistenceManager;
+import org.drools.domain.ProcessInstanceSummary;
 import org.drools.domain.Versioning;
 import org.drools.runtime.Environment;
 import org.drools.runtime.EnvironmentName;
@@ -35,20 +42,80 @@ public class JPAManagerImpl implements PersistenceManager {
         return (T) getEM().find(entityClass, id);
     }
 
+    @Override
+    public <T extends Versioning, ID> Map<ID, T> getByIds(Collection<ID> ids) {
+        Map<ID, T> objects = new HashMap<ID, T>();
+        if (ids.isEmpty()) {
+            return objects;
+        }
+        List<T> found = getEM().createQuery(
+                "select e from " + entityClass.getSimpleName() + " e where e.id in :ids").setParameter("ids",
+                new ArrayList<ID>(ids)).getResultList();
+        for (T object : found) {
+            objects.put((ID) getEM().getEntityManagerFactory().getPersistenceUnitUtil().getIdentifier(object),
+                    object);
+        }
+        return objects;
+    }
+
+    @Override
+    public <ID> int getVersion(ID id) {
+        List<?> versions = getEM()
+                .createQuery("select e.version from " + entityClass.getSimpleName() + " e where e.id = :id")
+                .setParameter("id", id).getResultList();
+        return versions.isEmpty() ? -1 : ((Number) versions.get(0)).intValue();
+    }
+
     @Override
     public <ID> void removeById(ID id) {
         Object obj = getById(id);
-        getEM().remove(obj);
+        // like a cache remove, a missing entity is no error
+        if (obj != null) {
+            getEM().remove(obj);
+        }
+    }
+
+    @Override
+    public <ID> void removeByIds(Collection<ID> ids) {
+        // read in bulk, then removed when the transaction flushes
+        for (Object object : getByIds(ids).values()) {
+            getEM().remove(object);
+        }
     }
 
     @Override
     public <T extends Versioning, ID> T saveOrUpdate(T object, ID id) {
-        Object obj = getById(id);
-        if(obj == null) {
-            getEM().persist(object);
+        EntityManager em = getEM();
+        if (em.contains(object)) {
+            // managed, its changes are written when the transaction flushes
             return object;
-        }        
-        return getEM().merge(object);
+        }
+        // the @Version field is only set once stored, new entities have none
+        if (object.getVersion() == 0) {
+            em.persist(object);
+            return object;
+        }
+        return em.merge(object);
+    }
+
+    @Override
+    public <ID> int addReferences(ID id, int delta) {
+        String entityName = entityClass.getSimpleName();
+        // an update statement locks the row instead of failing on its version
+        int updated = getEM().createQuery(
+                "update " + entityName + " e set e.referenceCount = e.referenceCount + :delta where e.id = :id")
+                .setParameter("delta", delta).setParameter("id", id).executeUpdate();
+        if (updated == 0) {
+            return -1;
+        }
+        int count = ((Number) getEM().createQuery(
+                "select e.referenceCount from " + entityName + " e where e.id = :id").setParameter("id", id)
+                .getSingleResult()).intValue();
+        if (count <= 0) {
+            getEM().createQuery("delete from " + entityName + " e where e.id = :id").setParameter("id", id)
+                    .executeUpdate();
+        }
+        return count;
     }
 
     @Override
@@ -59,6 +126,41 @@ public class JPAManagerImpl implements PersistenceManager {
         return query.getResultList();
     }
 
+    @Override
+    public <ID> List<ID> getAllIds() {
+        return getEM().createQuery("select e.id from " + entityClass.getSimpleName() + " e").getResultList();
+    }
+
+    @Override
+    public List<ProcessInstanceSummary> getProcessInstanceSummaries(long afterId, int maxResults) {
+        // selected columns only, the snapshot lob is not fetched
+        List<Object[]> rows = getEM().createQuery(
+                "select p.id, p.processId, p.state, p.startDate, p.lastModificationDate from ProcessInstanceInfo p "
+                        + "where p.id > :cursor order by p.id").setParameter("cursor", afterId).setMaxResults(
+                maxResults).getResultList();
+        Map<Long, Object[]> page = new LinkedHashMap<Long, Object[]>();
+        Map<Long, HashSet<String>> eventTypes = new LinkedHashMap<Long, HashSet<String>>();
+        for (Object[] row : rows) {
+            Long id = (Long) row[0];
+            page.put(id, row);
+            eventTypes.put(id, new HashSet<String>());
+        }
+        if (!page.isEmpty()) {
+            List<Object[]> types = getEM().createQuery(
+                    "select p.id, e from ProcessInstanceInfo p join p.eventTypes e where p.id in :ids")
+                    .setParameter("ids", new ArrayList<Long>(page.keySet())).getResultList();
+            for (Object[] type : types) {
+                eventTypes.get(type[0]).add((String) type[1]);
+            }
+        }
+        List<ProcessInstanceSummary> summaries = new ArrayList<ProcessInstanceSummary>(page.size());
+        for (Object[] row : page.values()) {
+            summaries.add(new ProcessInstanceSummary((Long) row[0], (String) row[1], ((Number) row[2]).intValue(),
+                    (Date) row[3], (Date) row[4], eventTypes.get(row[0])));
+        }
+        return summaries;
+    }
+
     private EntityManager getEM() {
         return (EntityManager) environment.get(EnvironmentName.CMD_SCOPED_ENTITY_MANAGER);
     }
@@ -0,0 +1,58 @@
+package org.drools.alternative.persistence.cm.impl;
+
+import java.io.IOException;
+
+import org.drools.domain.ReferenceCounted;
+
+import com.tangosol.io.pof.PofReader;
+import com.tangosol.io.pof.PofWriter;
+import com.tangosol.io.pof.PortableObject;
+import com.tangosol.util.InvocableMap;
+import com.tangosol.util.processor.AbstractProcessor;
+
+/**
+ * Adds to the reference count of a {@link ReferenceCounted} entry where it is
+ * stored, and removes the entry once no reference is left. Concurrent changes
+ * of the count are applied one after the other instead of conflicting.
+ */
+public class ReferenceCountProcessor extends AbstractProcessor implements PortableObject {
+
+    private static final long serialVersionUID = 1L;
+
+    private int delta;
+
+    public ReferenceCountProcessor() {
+    }
+
+    public ReferenceCountProcessor(int delta) {
+        this.delta = delta;
+    }
+
+    /**
+     * @return the count after the change, <code>-1</code> if the entry is
+     *         missing
+     */
+    public Object process(InvocableMap.Entry entry) {
+        if (!entry.isPresent()) {
+            return Integer.valueOf(-1);
+        }
+        ReferenceCounted value = (ReferenceCounted) entry.getValue();
+        int count = value.getReferenceCount() + delta;
+        if (count <= 0) {
+            entry.remove(false);
+        } else {
+            value.setReferenceCount(count);
+            entry.setValue(value, false);
+        }
+        return Integer.valueOf(count);
+    }
+
+    public void readExternal(PofReader in) throws IOException {
+        delta = in.readInt(0);
+    }
+
+    public void writeExternal(PofWriter out) throws IOException {
+        out.writeInt(0, delta);
+    }
+
+}
@@ -0,0 +1,23 @@
+package org.drools.alternative.persistence.impl;
+
+/**
+ * Thrown when the member a command was routed to left before answering. The
+ * command may have been committed there or not, so it is not sent again: the
+ * caller has to check the state of the session before retrying.
+ */
+public class CommandOutcomeUnknownException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int sessionId;
+
+    public CommandOutcomeUnknownException(int sessionId, String message) {
+        super(message);
+        this.sessionId = sessionId;
+    }
+
+    public int getSessionId() {
+        return sessionId;
+    }
+
+}
@@ -0,0 +1,48 @@
+package org.drools.alternative.persistence.impl;
+
+import java.io.Serializable;
+import java.util.Map;
+
+import org.drools.command.Context;
+import org.drools.command.impl.GenericCommand;
+import org.drools.command.impl.KnowledgeCommandContext;
+import org.drools.domain.WorkItemDispatch;
+import org.drools.runtime.StatefulKnowledgeSession;
+
+/**
+ * Completes or aborts a work item run by a worker member and removes its
+ * {@link WorkItemDispatch} in the same transaction, see
+ * {@link GridWorkItemHandler}.
+ */
+public class CompleteDispatchedWorkItemCommand implements GenericCommand<Void>, Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final long workItemId;
+    private final Map<String, Object> results;
+    private final boolean abort;
+
+    public CompleteDispatchedWorkItemCommand(long workItemId, Map<String, Object> results, boolean abort) {
+        this.workItemId = workItemId;
+        this.results = results;
+        this.abort = abort;
+    }
+
+    public Void execute(Context context) {
+        StatefulKnowledgeSession ksession = ((KnowledgeCommandContext) context).getStatefulKnowledgesession();
+        PersistenceDroolsImpl.getPersistenceManager(WorkItemDispatch.class, ksession.getEnvironment()).removeById(
+                workItemId);
+        if (abort) {
+            ksession.getWorkItemManager().abortWorkItem(workItemId);
+        } else {
+            ksession.getWorkItemManager().completeWorkItem(workItemId, results);
+        }
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return "CompleteDispatchedWorkItemCommand [workItemId=" + workItemId + ", abort=" + abort + "]";
+    }
+
+}
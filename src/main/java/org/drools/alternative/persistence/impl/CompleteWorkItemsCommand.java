@@ -0,0 +1,42 @@
+package org.drools.alternative.persistence.impl;
+
+import java.io.Serializable;
+import java.util.Map;
+
+import org.drools.command.Context;
+import org.drools.command.impl.GenericCommand;
+import org.drools.command.impl.KnowledgeCommandContext;
+import org.drools.impl.StatefulKnowledgeSessionImpl;
+
+/**
+ * Completes a batch of work items of a session in one transaction, see
+ * {@link WorkItemManagerImpl#completeWorkItems}.
+ */
+public class CompleteWorkItemsCommand implements GenericCommand<Void>, Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Map<Long, Map<String, Object>> results;
+
+    /**
+     * @param results
+     *            results by work item id, in order of completion, serializable
+     *            if the command is routed to another member
+     */
+    public CompleteWorkItemsCommand(Map<Long, Map<String, Object>> results) {
+        this.results = results;
+    }
+
+    public Void execute(Context context) {
+        StatefulKnowledgeSessionImpl ksession = (StatefulKnowledgeSessionImpl) ((KnowledgeCommandContext) context)
+                .getStatefulKnowledgesession();
+        ((WorkItemManagerImpl) ksession.session.getWorkItemManager()).completeWorkItems(results);
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return "CompleteWorkItemsCommand [" + results.size() + " work items]";
+    }
+
+}
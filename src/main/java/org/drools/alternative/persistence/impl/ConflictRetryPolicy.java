@@ -0,0 +1,132 @@
+package org.drools.alternative.persistence.impl;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.persistence.OptimisticLockException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.dao.ConcurrencyFailureException;
+
+import com.tangosol.coherence.transaction.exception.PredicateFailedException;
+import com.tangosol.coherence.transaction.exception.UnableToAcquireLockException;
+
+/**
+ * Decides whether a failed command is re-executed after an optimistic
+ * conflict, i.e. the session was written by another transaction since it was
+ * loaded. The retry reloads the session at its latest version.
+ *
+ * Retries wait a random delay below an exponentially growing bound (full
+ * jitter), so competing writers of a hot session spread out instead of
+ * conflicting again.
+ *
+ * Not bound by default, see
+ * {@link org.drools.alternative.persistence.utils.EnvironmentUtils#enableConflictRetry(org.drools.runtime.Environment, int, long, long)}.
+ */
+public class ConflictRetryPolicy {
+
+    private static Logger log = LoggerFactory.getLogger(ConflictRetryPolicy.class);
+
+    private final int maxAttempts;
+    private final long baseDelay;
+    private final long maxDelay;
+    private final Random random = new Random();
+
+    private final AtomicLong conflicts = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong exhausted = new AtomicLong();
+
+    /**
+     * @param maxAttempts
+     *            executions of a command, including the first one
+     * @param baseDelay
+     *            bound of the first backoff, in milliseconds
+     * @param maxDelay
+     *            upper bound of any backoff, in milliseconds
+     */
+    public ConflictRetryPolicy(int maxAttempts, long baseDelay, long maxDelay) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("maxAttempts must be at least 1");
+        }
+        this.maxAttempts = maxAttempts;
+        this.baseDelay = baseDelay;
+        this.maxDelay = maxDelay;
+    }
+
+    /**
+     * @return whether the command should be executed again after the given
+     *         failed attempt, counted from 1
+     */
+    public boolean shouldRetry(Throwable failure, int attempt) {
+        if (!isConflict(failure)) {
+            return false;
+        }
+        conflicts.incrementAndGet();
+        if (attempt >= maxAttempts) {
+            exhausted.incrementAndGet();
+            log.warn("Giving up after {} conflicting attempts", attempt);
+            return false;
+        }
+        retries.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Waits before the next attempt.
+     *
+     * @return <code>false</code> if the thread was interrupted
+     */
+    public boolean backoff(int attempt) {
+        long bound = Math.min(maxDelay, baseDelay << Math.min(attempt - 1, 30));
+        long delay;
+        synchronized (random) {
+            delay = bound > 0 ? (long) (random.nextDouble() * bound) : 0;
+        }
+        if (log.isDebugEnabled())
+            log.debug("Conflict on attempt {}, retrying in {} ms", attempt, delay);
+        try {
+            Thread.sleep(delay);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * @return whether the failure, or one of its causes, is an optimistic
+     *         conflict of Coherence or JPA
+     */
+    public static boolean isConflict(Throwable failure) {
+        for (Throwable t = failure; t != null; t = t.getCause()) {
+            if (t instanceof PredicateFailedException || t instanceof UnableToAcquireLockException
+                    || t instanceof OptimisticLockException || t instanceof ConcurrencyFailureException) {
+                return true;
+            }
+            if (t.getCause() == t) {
+                break;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return failed attempts caused by a conflict
+     */
+    public long getConflicts() {
+        return conflicts.get();
+    }
+
+    public long getRetries() {
+        return retries.get();
+    }
+
+    /**
+     * @return commands that failed because they kept conflicting
+     */
+    public long getExhausted() {
+        return exhausted.get();
+    }
+
+}
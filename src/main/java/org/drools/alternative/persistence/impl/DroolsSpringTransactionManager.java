@@ -5,6 +5,7 @@ import org.drools.alternative.persistence.TransactionManager;
 import org.drools.alternative.persistence.TransactionSynchronization;
 import org.springframework.transaction.TransactionDefinition;
 import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.UnexpectedRollbackException;
 import org.springframework.transaction.support.AbstractPlatformTransactionManager;
 import org.springframework.transaction.support.DefaultTransactionDefinition;
 import org.springframework.transaction.support.TransactionSynchronizationManager;
@@ -24,40 +25,58 @@ public class DroolsSpringTransactionManager
     private AbstractPlatformTransactionManager ptm;
 
     TransactionDefinition                      td                 = new DefaultTransactionDefinition();
-    TransactionStatus                          currentTransaction = null;
+
+    /** Transaction begun by this manager on the calling thread, if any */
+    private final ThreadLocal<LocalTransaction> localTransaction = new ThreadLocal<LocalTransaction>();
 
     public DroolsSpringTransactionManager(AbstractPlatformTransactionManager ptm) {
         this.ptm = ptm;
     }
 
-    private boolean localTransaction;
-
     public void begin() {
-        if ( getStatus() == TransactionManager.STATUS_NO_TRANSACTION ) {
+        LocalTransaction local = this.localTransaction.get();
+        if ( local != null ) {
+            // nested begin, the outermost commit or rollback completes the transaction
+            local.depth++;
+        } else if ( getStatus() == TransactionManager.STATUS_NO_TRANSACTION ) {
             // If there is no transaction then start one, we will commit within the same Command
             // it seems in spring calling getTransaction is enough to begin a new transaction
-            currentTransaction = this.ptm.getTransaction( td );
-            localTransaction = true;
-        } else {
-            localTransaction = false;
+            this.localTransaction.set( new LocalTransaction( this.ptm.getTransaction( td ) ) );
         }
     }
 
     public void commit() {
-        if ( this.localTransaction ) {
+        LocalTransaction local = this.localTransaction.get();
+        if ( local == null ) {
             // if we didn't begin this transaction, then do nothing
-            this.localTransaction = false;
-            this.ptm.commit( currentTransaction );
-            currentTransaction = null;
+            return;
+        }
+        if ( local.depth > 0 ) {
+            local.depth--;
+            return;
         }
+        this.localTransaction.remove();
+        if ( local.status.isRollbackOnly() ) {
+            // a nested scope rolled back, none of its work may be committed
+            this.ptm.rollback( local.status );
+            throw new UnexpectedRollbackException( "Transaction rolled back because a nested scope failed" );
+        }
+        this.ptm.commit( local.status );
     }
 
     public void rollback() {
-	if ( this.localTransaction ) {
-        	this.localTransaction = false;
-        	this.ptm.rollback( currentTransaction );
-		currentTransaction = null;
-	}
+        LocalTransaction local = this.localTransaction.get();
+        if ( local == null ) {
+            return;
+        }
+        if ( local.depth > 0 ) {
+            local.depth--;
+            // the outermost commit has to roll back as well
+            local.status.setRollbackOnly();
+            return;
+        }
+        this.localTransaction.remove();
+        this.ptm.rollback( local.status );
     }
 
     /**
@@ -69,8 +88,12 @@ public class DroolsSpringTransactionManager
             return TransactionManager.STATUS_NO_TRANSACTION;
         }
 
-        logger.debug("Current TX name (According to TransactionSynchronizationManager) : "+TransactionSynchronizationManager.getCurrentTransactionName());
+        if ( logger.isDebugEnabled() ) {
+            logger.debug("Current TX name (According to TransactionSynchronizationManager) : "+TransactionSynchronizationManager.getCurrentTransactionName());
+        }
         if ( TransactionSynchronizationManager.isActualTransactionActive() ) {
+            LocalTransaction local = this.localTransaction.get();
+            TransactionStatus currentTransaction = local == null ? null : local.status;
             TransactionStatus transaction = null;
             try {
                 if ( currentTransaction == null ) {
@@ -81,7 +104,9 @@ public class DroolsSpringTransactionManager
                 } else {
                     transaction = currentTransaction;
                 }
-                logger.debug("Current TX: "+transaction);
+                if ( logger.isDebugEnabled() ) {
+                    logger.debug("Current TX: "+transaction);
+                }
                 // If SynchronizationManager thinks it has an active transaction but
                 // our transaction is a new one
                 // then we must be in the middle of committing
@@ -108,4 +133,26 @@ public class DroolsSpringTransactionManager
     public void registerTransactionSynchronization(TransactionSynchronization ts) {
         TransactionSynchronizationManager.registerSynchronization( new SpringTransactionSynchronizationAdapter( ts ) );
     }
+
+    public void putResource(Object key, Object resource) {
+        TransactionSynchronizationManager.bindResource( key, resource );
+    }
+
+    public Object getResource(Object key) {
+        return TransactionSynchronizationManager.getResource( key );
+    }
+
+    public void removeResource(Object key) {
+        TransactionSynchronizationManager.unbindResourceIfPossible( key );
+    }
+
+    private static class LocalTransaction {
+
+        private final TransactionStatus status;
+        private int depth;
+
+        LocalTransaction(TransactionStatus status) {
+            this.status = status;
+        }
+    }
 }
\ No newline at end of file
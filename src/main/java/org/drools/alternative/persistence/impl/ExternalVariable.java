@@ -0,0 +1,28 @@
+package org.drools.alternative.persistence.impl;
+
+import java.io.Serializable;
+
+/**
+ * Stands in the marshalled process instance for a variable stored apart as a
+ * {@link org.drools.domain.VariableInfo}.
+ */
+public class ExternalVariable implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final long variableId;
+
+    public ExternalVariable(long variableId) {
+        this.variableId = variableId;
+    }
+
+    public long getVariableId() {
+        return variableId;
+    }
+
+    @Override
+    public String toString() {
+        return "ExternalVariable [variableId=" + variableId + "]";
+    }
+
+}
@@ -0,0 +1,202 @@
+package org.drools.alternative.persistence.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.drools.alternative.persistence.PersistenceManager;
+import org.drools.alternative.persistence.utils.ContentChunker;
+import org.drools.alternative.persistence.utils.MarshallingBufferPool;
+import org.drools.common.DroolsObjectInputStream;
+import org.drools.domain.ProcessInstanceInfo;
+import org.drools.domain.VariableInfo;
+import org.jbpm.process.core.context.variable.VariableScope;
+import org.jbpm.process.instance.ProcessInstance;
+import org.jbpm.process.instance.context.variable.VariableScopeInstance;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stores the large variables of process instances apart as
+ * {@link VariableInfo}, one per process instance and variable name, so a
+ * large variable is not marshalled into the instance again on every change of
+ * the instance, nor written again unless it changed itself.
+ *
+ * While an instance is marshalled its variables serialized to at least the
+ * minimum size are replaced by an {@link ExternalVariable} referring to their
+ * entry; after it is unmarshalled the references are resolved again, all in
+ * one request. Variables stored apart are serialized again on every write and
+ * only written when their hash changed, as they may be changed in place, e.g.
+ * a list a script adds to, without any variable change event. Variables kept
+ * in the instance are only measured again when such an event names them. Only
+ * the variables of the process scope are stored apart, those of composite
+ * node scopes stay in the instance.
+ */
+public class ExternalVariableStore {
+
+    private static Logger log = LoggerFactory.getLogger(ExternalVariableStore.class);
+
+    private final PersistenceManager cm;
+    private final int minSize;
+
+    /**
+     * @param cm
+     *            manager of {@link VariableInfo}
+     * @param minSize
+     *            serialized size from which a variable is stored apart
+     */
+    public ExternalVariableStore(PersistenceManager cm, int minSize) {
+        this.cm = cm;
+        this.minSize = minSize;
+    }
+
+    /**
+     * Stores the changed large variables of the instance and replaces all
+     * large variables by references, until {@link #restore} is called. Entries
+     * of variables that were removed or became small are removed.
+     * 
+     * @param changed
+     *            names of the variables changed since the instance was last
+     *            externalized, <code>null</code> to measure all of them;
+     *            variables already stored apart are measured anyway
+     * @return the replaced values
+     */
+    public Map<String, Object> externalize(ProcessInstanceInfo info, ProcessInstance processInstance,
+            Set<String> changed) {
+        Map<String, Object> replaced = new HashMap<String, Object>();
+        VariableScopeInstance scope = getScope(processInstance);
+        if (scope == null) {
+            return replaced;
+        }
+        Map<String, VariableInfo> stored = info.getVariables();
+        Set<String> gone = new HashSet<String>(stored.keySet());
+        for (Map.Entry<String, Object> e : new HashMap<String, Object>(scope.getVariables()).entrySet()) {
+            String name = e.getKey();
+            Object value = e.getValue();
+            VariableInfo variable = stored.get(name);
+            if (variable == null && changed != null && !changed.contains(name)) {
+                // kept in the instance when last measured
+                continue;
+            }
+            if (!(value instanceof Serializable)) {
+                continue;
+            }
+            byte[] data = serialize(value);
+            if (data.length < minSize) {
+                continue;
+            }
+            gone.remove(name);
+            String hash = ContentChunker.contentHash(data, 0, data.length);
+            if (variable == null) {
+                variable = new VariableInfo();
+                variable.setId(cm.generateIdentity());
+                variable.setName(name);
+                variable.setProcessInstanceId(processInstance.getId());
+            }
+            if (!hash.equals(variable.getHash())) {
+                variable.setHash(hash);
+                variable.setData(data);
+                stored.put(name, cm.saveOrUpdate(variable, variable.getId()));
+                if (log.isDebugEnabled())
+                    log.debug("Stored variable {} of process instance {}, {} bytes", new Object[] { name,
+                            processInstance.getId(), data.length });
+            }
+            replaced.put(name, value);
+            scope.internalSetVariable(name, new ExternalVariable(variable.getId()));
+        }
+        for (String name : gone) {
+            cm.removeById(stored.remove(name).getId());
+        }
+        return replaced;
+    }
+
+    /**
+     * Puts the values replaced by {@link #externalize} back.
+     */
+    public void restore(ProcessInstance processInstance, Map<String, Object> replaced) {
+        VariableScopeInstance scope = getScope(processInstance);
+        for (Map.Entry<String, Object> e : replaced.entrySet()) {
+            scope.internalSetVariable(e.getKey(), e.getValue());
+        }
+    }
+
+    /**
+     * Replaces the references of an unmarshalled instance by the stored
+     * variables.
+     */
+    public void resolve(ProcessInstanceInfo info, ProcessInstance processInstance, ClassLoader classLoader) {
+        VariableScopeInstance scope = getScope(processInstance);
+        if (scope == null) {
+            return;
+        }
+        Map<String, Long> ids = new HashMap<String, Long>();
+        for (Map.Entry<String, Object> e : scope.getVariables().entrySet()) {
+            if (e.getValue() instanceof ExternalVariable) {
+                ids.put(e.getKey(), ((ExternalVariable) e.getValue()).getVariableId());
+            }
+        }
+        if (ids.isEmpty()) {
+            return;
+        }
+        Map<Long, VariableInfo> variables = cm.getByIds(ids.values());
+        for (Map.Entry<String, Long> e : ids.entrySet()) {
+            VariableInfo variable = variables.get(e.getValue());
+            if (variable == null) {
+                throw new IllegalStateException("Could not find variable " + e.getKey() + " of process instance "
+                        + processInstance.getId());
+            }
+            scope.internalSetVariable(e.getKey(), deserialize(variable.getData(), classLoader));
+            info.getVariables().put(e.getKey(), variable);
+        }
+    }
+
+    /**
+     * Removes the stored variables of a removed instance.
+     */
+    public void remove(ProcessInstanceInfo info) {
+        for (VariableInfo variable : info.getVariables().values()) {
+            cm.removeById(variable.getId());
+        }
+        info.getVariables().clear();
+    }
+
+    private VariableScopeInstance getScope(ProcessInstance processInstance) {
+        return (VariableScopeInstance) processInstance.getContextInstance(VariableScope.VARIABLE_SCOPE);
+    }
+
+    private byte[] serialize(Object value) {
+        MarshallingBufferPool.Buffer buffer = MarshallingBufferPool.acquire(0);
+        try {
+            ObjectOutputStream out = new ObjectOutputStream(buffer);
+            out.writeObject(value);
+            out.close();
+            return buffer.detach();
+        } catch (IOException e) {
+            throw new IllegalArgumentException("IOException while storing variable: " + e.getMessage(), e);
+        } finally {
+            MarshallingBufferPool.release(buffer);
+        }
+    }
+
+    private Object deserialize(byte[] data, ClassLoader classLoader) {
+        try {
+            ObjectInputStream in = new DroolsObjectInputStream(new ByteArrayInputStream(data), classLoader);
+            try {
+                return in.readObject();
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException("IOException while loading variable: " + e.getMessage(), e);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalArgumentException("Could not load variable class: " + e.getMessage(), e);
+        }
+    }
+
+}
@@ -0,0 +1,117 @@
+package org.drools.alternative.persistence.impl;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.drools.alternative.persistence.HistorySink;
+import org.drools.alternative.persistence.utils.HistoryRecordCodec;
+import org.drools.domain.HistoryRecord;
+
+/**
+ * Appends history to local segment files, each batch encoded by
+ * {@link HistoryRecordCodec} and prefixed with its length. A new segment is
+ * started once the current one reaches the segment size; segments are never
+ * rewritten, so old ones can be moved away or dropped at will.
+ */
+public class FileHistorySink implements HistorySink {
+
+    public static final long DEFAULT_SEGMENT_SIZE = 64L * 1024 * 1024;
+
+    private static final Pattern SEGMENT = Pattern.compile("history-(\\d+)\\.bin");
+
+    private final File directory;
+    private final long segmentSize;
+    private int segment;
+    private File file;
+    private DataOutputStream out;
+
+    public FileHistorySink(File directory) {
+        this(directory, DEFAULT_SEGMENT_SIZE);
+    }
+
+    public FileHistorySink(File directory, long segmentSize) {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IllegalArgumentException("Could not create history directory " + directory);
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        // continues after the segments of earlier runs
+        for (String name : directory.list()) {
+            Matcher matcher = SEGMENT.matcher(name);
+            if (matcher.matches()) {
+                segment = Math.max(segment, Integer.parseInt(matcher.group(1)));
+            }
+        }
+    }
+
+    public synchronized void append(List<HistoryRecord> records) {
+        byte[] batch = HistoryRecordCodec.encode(records);
+        try {
+            if (out == null || file.length() >= segmentSize) {
+                roll();
+            }
+            out.writeInt(batch.length);
+            out.write(batch);
+            out.flush();
+        } catch (IOException e) {
+            close();
+            throw new RuntimeException("Could not append history to " + file, e);
+        }
+    }
+
+    /**
+     * Closes the current segment.
+     */
+    public synchronized void close() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                // nothing left to write
+            }
+            out = null;
+        }
+    }
+
+    private void roll() throws IOException {
+        close();
+        // also after a failed append, which may have left a partial batch
+        segment++;
+        file = new File(directory, "history-" + segment + ".bin");
+        out = new DataOutputStream(new FileOutputStream(file, true));
+    }
+
+    /**
+     * @return the records of a segment in order of appending
+     */
+    public static List<HistoryRecord> read(File segment) throws IOException {
+        List<HistoryRecord> records = new ArrayList<HistoryRecord>();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(segment)));
+        try {
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    return records;
+                }
+                byte[] batch = new byte[length];
+                in.readFully(batch);
+                records.addAll(HistoryRecordCodec.decode(batch));
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+}
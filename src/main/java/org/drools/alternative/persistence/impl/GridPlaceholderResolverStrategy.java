@@ -0,0 +1,449 @@
+package org.drools.alternative.persistence.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.drools.alternative.persistence.PersistenceDrools;
+import org.drools.alternative.persistence.PersistenceManager;
+import org.drools.alternative.persistence.TransactionManager;
+import org.drools.alternative.persistence.TransactionSynchronization;
+import org.drools.alternative.persistence.utils.MarshallingBufferPool;
+import org.drools.common.DroolsObjectInputStream;
+import org.drools.common.InternalWorkingMemory;
+import org.drools.common.InternalWorkingMemoryEntryPoint;
+import org.drools.domain.FactInfo;
+import org.drools.event.DefaultWorkingMemoryEventListener;
+import org.drools.event.ObjectRetractedEvent;
+import org.drools.event.ObjectUpdatedEvent;
+import org.drools.marshalling.ObjectMarshallingStrategy;
+import org.drools.marshalling.ObjectMarshallingStrategyAcceptor;
+import org.drools.marshalling.impl.MarshallerReaderContext;
+import org.drools.marshalling.impl.MarshallerWriteContext;
+import org.drools.runtime.Environment;
+import org.drools.runtime.StatefulKnowledgeSession;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Marshals accepted facts as a reference to a {@link FactInfo} holding their
+ * serialized form, in the spirit of the JPA placeholder strategy of
+ * drools-persistence-jpa.
+ *
+ * Facts are keyed by identity: a fact gets an id when it is first written and
+ * keeps it until it is updated in a session, so an unchanged fact is neither
+ * serialized nor looked up again when a session is snapshotted. A fact shared
+ * by several sessions is stored once, and loading its id again while the fact
+ * is still in use on the node gives back the same instance.
+ *
+ * Each stored fact counts the sessions whose snapshot refers to it. A session
+ * releases the fact when it is retracted or replaced, and the entry is removed
+ * once no session refers to it anymore. Nothing would release facts written
+ * outside of a session, such as process variables, nor tell when they change,
+ * so they are serialized inline instead.
+ *
+ * Register it on the environment ahead of the default serialization strategy
+ * through {@link org.drools.alternative.persistence.utils.EnvironmentUtils#setMarshallingStrategies}.
+ */
+public class GridPlaceholderResolverStrategy implements ObjectMarshallingStrategy {
+
+    private static Logger log = LoggerFactory.getLogger(GridPlaceholderResolverStrategy.class);
+
+    private final Environment env;
+    private final ObjectMarshallingStrategyAcceptor acceptor;
+
+    // facts of the node by identity and by id, only weakly held
+    private final Map<IdentityKey, FactRef> refs = new HashMap<IdentityKey, FactRef>();
+    private final Map<String, FactRef> refsById = new HashMap<String, FactRef>();
+    private final ReferenceQueue<Object> collected = new ReferenceQueue<Object>();
+
+    private final Map<InternalWorkingMemory, SessionFacts> sessions = new WeakHashMap<InternalWorkingMemory, SessionFacts>();
+
+    /**
+     * @param acceptor
+     *            selects the large or shared facts to store apart
+     */
+    public GridPlaceholderResolverStrategy(Environment env, ObjectMarshallingStrategyAcceptor acceptor) {
+        this.env = env;
+        this.acceptor = acceptor;
+    }
+
+    public boolean accept(Object object) {
+        return acceptor.accept(object);
+    }
+
+    public void write(ObjectOutputStream os, Object object) throws IOException {
+        SessionFacts facts = os instanceof MarshallerWriteContext ? getFacts(((MarshallerWriteContext) os).wm) : null;
+        if (facts == null) {
+            os.writeBoolean(false);
+            os.writeObject(object);
+            return;
+        }
+        PersistenceManager cm = getPersistenceManager();
+        String id = null;
+        synchronized (refs) {
+            FactRef ref = refs.get(new IdentityKey(object, null));
+            if (ref != null && !ref.changed) {
+                id = ref.id;
+            }
+        }
+        boolean stored = id == null;
+        if (stored) {
+            id = String.valueOf(cm.generateIdentity());
+            insert(cm, id, object);
+            assign(object, id);
+        }
+        String previous = facts.put(object, id);
+        if (!id.equals(previous)) {
+            // written by a transaction not committed yet
+            if (!stored && cm.addReferences(id, 1) < 0) {
+                insert(cm, id, object);
+            }
+            if (previous != null) {
+                release(cm, previous);
+            }
+        }
+        os.writeBoolean(true);
+        os.writeUTF(id);
+    }
+
+    public Object read(ObjectInputStream is) throws IOException, ClassNotFoundException {
+        if (!is.readBoolean()) {
+            return is.readObject();
+        }
+        String id = is.readUTF();
+        Object object = null;
+        synchronized (refs) {
+            expunge();
+            FactRef ref = refsById.get(id);
+            if (ref != null && !ref.changed) {
+                object = ref.key.get();
+            }
+        }
+        if (object == null) {
+            FactInfo info = (FactInfo) getPersistenceManager().getById(id);
+            if (info == null) {
+                throw new IllegalStateException("Could not find fact " + id);
+            }
+            ClassLoader classLoader = is instanceof MarshallerReaderContext ? ((MarshallerReaderContext) is).classLoader
+                    : getClass().getClassLoader();
+            ObjectInputStream in = new DroolsObjectInputStream(new ByteArrayInputStream(info.getData()), classLoader);
+            try {
+                object = in.readObject();
+            } finally {
+                in.close();
+            }
+            assign(object, id);
+        }
+        SessionFacts facts = is instanceof MarshallerReaderContext ? getFacts(((MarshallerReaderContext) is).wm) : null;
+        if (facts != null) {
+            // already counted by the stored snapshot
+            facts.loaded(object, id);
+        }
+        return object;
+    }
+
+    /**
+     * Forgets the facts referred to by a session, to be called before another
+     * snapshot is loaded into it. They are read from the snapshot again.
+     */
+    public void resetSession(StatefulKnowledgeSession ksession) {
+        InternalWorkingMemory wm = ((InternalWorkingMemoryEntryPoint) ksession).getInternalWorkingMemory();
+        SessionFacts facts;
+        synchronized (sessions) {
+            facts = sessions.get(wm);
+        }
+        if (facts != null) {
+            facts.clear();
+        }
+    }
+
+    private void insert(PersistenceManager cm, String id, Object object) throws IOException {
+        byte[] data = serialize(object);
+        FactInfo info = new FactInfo(id, object.getClass().getName(), data);
+        // referred to by the session writing it
+        info.setReferenceCount(1);
+        cm.saveOrUpdate(info, id);
+        if (log.isDebugEnabled())
+            log.debug("Stored fact {} of {}, {} bytes", new Object[] { id, object.getClass().getName(), data.length });
+    }
+
+    private void release(PersistenceManager cm, final String id) {
+        int count = cm.addReferences(id, -1);
+        if (count <= 0) {
+            final FactRef ref;
+            synchronized (refs) {
+                ref = refsById.remove(id);
+                if (ref != null) {
+                    // stored again once written
+                    ref.changed = true;
+                }
+            }
+            if (ref != null) {
+                // the removal is rolled back, reloaded snapshots get the instance again
+                onRollback(new Runnable() {
+                    public void run() {
+                        synchronized (refs) {
+                            if (id.equals(ref.id) && !refsById.containsKey(id)) {
+                                ref.changed = false;
+                                refsById.put(id, ref);
+                            }
+                        }
+                    }
+                });
+            }
+            if (log.isDebugEnabled())
+                log.debug("Removed fact {}", id);
+        }
+    }
+
+    private void assign(Object object, final String id) {
+        final FactRef ref;
+        synchronized (refs) {
+            expunge();
+            IdentityKey key = new IdentityKey(object, collected);
+            FactRef existing = refs.get(key);
+            if (existing != null) {
+                ref = existing;
+                if (refsById.get(ref.id) == ref) {
+                    refsById.remove(ref.id);
+                }
+            } else {
+                ref = new FactRef(key);
+                refs.put(key, ref);
+            }
+            ref.id = id;
+            ref.changed = false;
+            refsById.put(id, ref);
+        }
+        onRollback(new Runnable() {
+            public void run() {
+                synchronized (refs) {
+                    if (id.equals(ref.id)) {
+                        ref.changed = true;
+                    }
+                    if (refsById.get(id) == ref) {
+                        refsById.remove(id);
+                    }
+                }
+            }
+        });
+    }
+
+    private void changed(Object object) {
+        synchronized (refs) {
+            FactRef ref = refs.get(new IdentityKey(object, null));
+            if (ref != null) {
+                ref.changed = true;
+                if (refsById.get(ref.id) == ref) {
+                    refsById.remove(ref.id);
+                }
+            }
+        }
+    }
+
+    private void expunge() {
+        Reference<?> key;
+        while ((key = collected.poll()) != null) {
+            FactRef ref = refs.remove(key);
+            if (ref != null && refsById.get(ref.id) == ref) {
+                refsById.remove(ref.id);
+            }
+        }
+    }
+
+    private SessionFacts getFacts(InternalWorkingMemory wm) {
+        if (wm == null) {
+            return null;
+        }
+        synchronized (sessions) {
+            SessionFacts facts = sessions.get(wm);
+            if (facts == null) {
+                facts = new SessionFacts();
+                sessions.put(wm, facts);
+                wm.addEventListener(facts);
+            }
+            return facts;
+        }
+    }
+
+    /**
+     * Undoes the changes of the in memory state when the transaction of the
+     * calling thread rolls back, the stored state is rolled back with it.
+     */
+    private void onRollback(Runnable undo) {
+        TransactionManager txm = (TransactionManager) env.get(PersistenceDrools.DROOLS_TRANSACTION_MANAGER);
+        if (txm == null || txm.getStatus() != TransactionManager.STATUS_ACTIVE) {
+            return;
+        }
+        RollbackSync sync = (RollbackSync) txm.getResource(this);
+        if (sync == null) {
+            sync = new RollbackSync(txm);
+            txm.registerTransactionSynchronization(sync);
+            txm.putResource(this, sync);
+        }
+        sync.undos.add(undo);
+    }
+
+    private byte[] serialize(Object object) throws IOException {
+        MarshallingBufferPool.Buffer buffer = MarshallingBufferPool.acquire(0);
+        try {
+            ObjectOutputStream out = new ObjectOutputStream(buffer);
+            out.writeObject(object);
+            out.close();
+            return buffer.detach();
+        } finally {
+            MarshallingBufferPool.release(buffer);
+        }
+    }
+
+    private PersistenceManager getPersistenceManager() {
+        return PersistenceDroolsImpl.getPersistenceManager(FactInfo.class, env);
+    }
+
+    /**
+     * Id a fact is stored under, no longer valid once the fact changed.
+     */
+    private static class FactRef {
+
+        private final IdentityKey key;
+        private String id;
+        private boolean changed;
+
+        FactRef(IdentityKey key) {
+            this.key = key;
+        }
+    }
+
+    private static class IdentityKey extends WeakReference<Object> {
+
+        private final int hash;
+
+        IdentityKey(Object object, ReferenceQueue<Object> queue) {
+            super(object, queue);
+            this.hash = System.identityHashCode(object);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof IdentityKey)) {
+                return false;
+            }
+            Object object = get();
+            return object != null && object == ((IdentityKey) o).get();
+        }
+    }
+
+    /**
+     * Ids of the facts the snapshot of a session refers to, released when the
+     * facts are retracted or replaced.
+     */
+    private class SessionFacts extends DefaultWorkingMemoryEventListener {
+
+        private final Map<Object, String> ids = new IdentityHashMap<Object, String>();
+
+        synchronized void loaded(Object object, String id) {
+            ids.put(object, id);
+        }
+
+        synchronized void clear() {
+            ids.clear();
+        }
+
+        String put(final Object object, String id) {
+            final String previous;
+            synchronized (this) {
+                previous = ids.put(object, id);
+            }
+            if (!id.equals(previous)) {
+                onRollback(new Runnable() {
+                    public void run() {
+                        restore(object, previous);
+                    }
+                });
+            }
+            return previous;
+        }
+
+        private void remove(final Object object) {
+            final String id;
+            synchronized (this) {
+                id = ids.remove(object);
+            }
+            if (id != null) {
+                onRollback(new Runnable() {
+                    public void run() {
+                        restore(object, id);
+                    }
+                });
+                release(getPersistenceManager(), id);
+            }
+        }
+
+        private synchronized void restore(Object object, String id) {
+            if (id != null) {
+                ids.put(object, id);
+            } else {
+                ids.remove(object);
+            }
+        }
+
+        @Override
+        public void objectUpdated(ObjectUpdatedEvent event) {
+            if (event.getObject() == event.getOldObject()) {
+                changed(event.getObject());
+            } else {
+                remove(event.getOldObject());
+            }
+        }
+
+        @Override
+        public void objectRetracted(ObjectRetractedEvent event) {
+            remove(event.getOldObject());
+        }
+    }
+
+    private class RollbackSync implements TransactionSynchronization {
+
+        private final TransactionManager txm;
+        private final List<Runnable> undos = new ArrayList<Runnable>();
+
+        RollbackSync(TransactionManager txm) {
+            this.txm = txm;
+        }
+
+        public void beforeCommit() {
+        }
+
+        public void beforeCompletion() {
+        }
+
+        public void afterCompletion(int status) {
+            txm.removeResource(GridPlaceholderResolverStrategy.this);
+            if (status != TransactionManager.STATUS_COMMITTED) {
+                for (int i = undos.size() - 1; i >= 0; i--) {
+                    undos.get(i).run();
+                }
+            }
+        }
+    }
+
+}
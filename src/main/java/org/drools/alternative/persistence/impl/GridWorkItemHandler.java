@@ -0,0 +1,334 @@
+package org.drools.alternative.persistence.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.drools.alternative.persistence.PersistenceDrools;
+import org.drools.alternative.persistence.PersistenceManager;
+import org.drools.alternative.persistence.TransactionManager;
+import org.drools.alternative.persistence.TransactionSynchronization;
+import org.drools.alternative.persistence.utils.DaemonThreadFactory;
+import org.drools.domain.WorkItemDispatch;
+import org.drools.runtime.Environment;
+import org.drools.runtime.process.WorkItem;
+import org.drools.runtime.process.WorkItemHandler;
+import org.drools.runtime.process.WorkItemManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.tangosol.net.CacheFactory;
+import com.tangosol.net.InvocationService;
+import com.tangosol.net.Member;
+import com.tangosol.net.MemberEvent;
+import com.tangosol.net.MemberListener;
+import com.tangosol.util.ExternalizableHelper;
+
+/**
+ * Hands work items of a session to worker members of the grid instead of
+ * running their handlers on the command thread, so a slow handler no longer
+ * holds the session.
+ *
+ * A work item is stored as a {@link WorkItemDispatch} in the transaction
+ * creating it, and sent once the transaction committed to a member whose role
+ * matches the role of the handler, chosen by the work item id. The member
+ * runs the handler registered with {@link #registerWorker} on a pool of its
+ * own. The handler completes or aborts the item through a work item manager
+ * that sends the completion back to the session as a command of its own,
+ * through the {@link SessionCommandRouter} registered on the worker under the
+ * given name; the command removes the dispatch with the item.
+ *
+ * The oldest member sends the stored items again whose member left, or that
+ * found no member with the role, whenever members join or leave and when it
+ * starts. A delivery failing on its worker is sent to the next worker, the
+ * item is aborted after {@link #MAX_FAILURES} failures. Items may thus run
+ * more than once, their handlers have to tolerate it. An abort is sent once,
+ * to the member the item was sent to.
+ */
+public class GridWorkItemHandler implements WorkItemHandler {
+
+    private static Logger log = LoggerFactory.getLogger(GridWorkItemHandler.class);
+
+    public static final int WORKER_THREADS = 6;
+
+    public static final int MAX_FAILURES = 3;
+
+    private static final ConcurrentMap<String, WorkItemHandler> WORKERS = new ConcurrentHashMap<String, WorkItemHandler>();
+
+    private static final ExecutorService WORKER_POOL = Executors.newFixedThreadPool(WORKER_THREADS,
+            new DaemonThreadFactory("grid-work-item"));
+
+    private static final ExecutorService RECOVERY_POOL = Executors.newSingleThreadExecutor(new DaemonThreadFactory(
+            "grid-work-item-recovery"));
+
+    // one recovery per service and node
+    private static final ConcurrentMap<InvocationService, Recovery> RECOVERIES = new ConcurrentHashMap<InvocationService, Recovery>();
+
+    private final Environment env;
+    private final InvocationService service;
+    private final String routerName;
+    private final int sessionId;
+    private final String role;
+
+    /**
+     * @param routerName
+     *            name of the {@link SessionCommandRouter} completing items
+     * @param role
+     *            role of the members executing the items, <code>null</code>
+     *            for any member
+     */
+    public GridWorkItemHandler(Environment env, String routerName, int sessionId, String role) {
+        this(env, getService(), routerName, sessionId, role);
+    }
+
+    public GridWorkItemHandler(Environment env, InvocationService service, String routerName, int sessionId,
+            String role) {
+        this.env = env;
+        this.service = service;
+        this.routerName = routerName;
+        this.sessionId = sessionId;
+        this.role = role;
+        Recovery recovery = new Recovery(env, service);
+        if (RECOVERIES.putIfAbsent(service, recovery) == null) {
+            service.addMemberListener(recovery);
+            recovery.schedule();
+        }
+    }
+
+    /**
+     * Registers the handler running the work items of the given name on this
+     * member.
+     */
+    public static void registerWorker(String workItemName, WorkItemHandler handler) {
+        WORKERS.put(workItemName, handler);
+    }
+
+    public static void unregisterWorker(String workItemName) {
+        WORKERS.remove(workItemName);
+    }
+
+    static WorkItemHandler getWorker(String workItemName) {
+        return WORKERS.get(workItemName);
+    }
+
+    static void run(Runnable task) {
+        WORKER_POOL.execute(task);
+    }
+
+    static InvocationService getService() {
+        return (InvocationService) CacheFactory.getConfigurableCacheFactory().ensureService(
+                SessionCommandRouter.INVOCATION_SERVICE);
+    }
+
+    public void executeWorkItem(WorkItem workItem, WorkItemManager manager) {
+        WorkItemDispatch dispatch = new WorkItemDispatch(workItem.getId(), routerName, sessionId, role,
+                ExternalizableHelper.toByteArray(workItem));
+        Member worker = chooseMember(service, role, workItem.getId(), 0);
+        if (worker != null) {
+            dispatch.setMemberUid(worker.getUid().toString());
+        } else {
+            log.warn("No member with role {} to execute work item {}, sent once one joins", role, workItem.getId());
+        }
+        getPersistenceManager(env).saveOrUpdate(dispatch, dispatch.getId());
+        if (worker != null) {
+            sendAfterCommit(env, service, new GridWorkItemInvocable(dispatch, false), worker);
+        }
+    }
+
+    public void abortWorkItem(WorkItem workItem, WorkItemManager manager) {
+        PersistenceManager cm = getPersistenceManager(env);
+        WorkItemDispatch dispatch = cm.getById(workItem.getId());
+        if (dispatch == null) {
+            return;
+        }
+        cm.removeById(dispatch.getId());
+        Member worker = getMember(service, dispatch.getMemberUid());
+        if (worker != null) {
+            sendAfterCommit(env, service, new GridWorkItemInvocable(dispatch, true), worker);
+        }
+    }
+
+    /**
+     * Sends a stored item that failed on its worker to the next worker, or
+     * aborts it once it failed {@link #MAX_FAILURES} times. Called within a
+     * transaction of the session of the item.
+     */
+    static void redeliver(Environment env, WorkItemDispatch dispatch, WorkItemManager manager) {
+        PersistenceManager cm = getPersistenceManager(env);
+        dispatch.setFailures(dispatch.getFailures() + 1);
+        if (dispatch.getFailures() >= MAX_FAILURES) {
+            log.error("Work item {} of session {} failed {} times, aborting it", new Object[] { dispatch.getId(),
+                    dispatch.getSessionId(), dispatch.getFailures() });
+            cm.removeById(dispatch.getId());
+            manager.abortWorkItem(dispatch.getId());
+            return;
+        }
+        InvocationService service = getService();
+        Member worker = chooseMember(service, dispatch.getRole(), dispatch.getId(), dispatch.getFailures());
+        dispatch.setMemberUid(worker != null ? worker.getUid().toString() : null);
+        cm.saveOrUpdate(dispatch, dispatch.getId());
+        if (worker != null) {
+            sendAfterCommit(env, service, new GridWorkItemInvocable(dispatch, false), worker);
+        }
+    }
+
+    private static void sendAfterCommit(Environment env, final InvocationService service,
+            final GridWorkItemInvocable invocable, final Member worker) {
+        TransactionManager txm = (TransactionManager) env.get(PersistenceDrools.DROOLS_TRANSACTION_MANAGER);
+        // a worker must find the work item stored when completing it
+        txm.registerTransactionSynchronization(new TransactionSynchronization() {
+            public void beforeCommit() {
+            }
+
+            public void beforeCompletion() {
+            }
+
+            public void afterCompletion(int status) {
+                if (status == TransactionManager.STATUS_COMMITTED) {
+                    send(service, invocable, worker);
+                }
+            }
+        });
+    }
+
+    private static void send(InvocationService service, GridWorkItemInvocable invocable, Member worker) {
+        if (log.isDebugEnabled())
+            log.debug("Sending work item {} to member {}", invocable.getWorkItemId(), worker.getId());
+        try {
+            // does not wait for the member to run it
+            service.execute(invocable, Collections.singleton(worker), null);
+        } catch (RuntimeException e) {
+            // sent again once the member is seen leaving
+            log.warn("Could not send work item " + invocable.getWorkItemId() + " to member " + worker.getId(), e);
+        }
+    }
+
+    private static Member chooseMember(InvocationService service, String role, long workItemId, int failures) {
+        List<Member> workers = new ArrayList<Member>();
+        for (Object o : (Set) service.getInfo().getServiceMembers()) {
+            Member member = (Member) o;
+            if (role == null || role.equals(member.getRoleName())) {
+                workers.add(member);
+            }
+        }
+        if (workers.isEmpty()) {
+            return null;
+        }
+        // members by join order, the same on every member
+        Collections.sort(workers, new Comparator<Member>() {
+            public int compare(Member m1, Member m2) {
+                return m1.getId() - m2.getId();
+            }
+        });
+        // a failed item goes to the next worker
+        return workers.get((int) (((workItemId + failures) & Long.MAX_VALUE) % workers.size()));
+    }
+
+    private static Member getMember(InvocationService service, String uid) {
+        if (uid == null) {
+            return null;
+        }
+        for (Object o : (Set) service.getInfo().getServiceMembers()) {
+            Member member = (Member) o;
+            if (uid.equals(member.getUid().toString())) {
+                return member;
+            }
+        }
+        return null;
+    }
+
+    private static PersistenceManager getPersistenceManager(Environment env) {
+        return PersistenceDroolsImpl.getPersistenceManager(WorkItemDispatch.class, env);
+    }
+
+    /**
+     * Sends the stored items again that have no member to run them, from the
+     * oldest member only.
+     */
+    private static class Recovery implements MemberListener, Runnable {
+
+        private final Environment env;
+        private final InvocationService service;
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+
+        Recovery(Environment env, InvocationService service) {
+            this.env = env;
+            this.service = service;
+        }
+
+        public void memberJoined(MemberEvent event) {
+            schedule();
+        }
+
+        public void memberLeaving(MemberEvent event) {
+        }
+
+        public void memberLeft(MemberEvent event) {
+            schedule();
+        }
+
+        void schedule() {
+            Member local = service.getCluster().getLocalMember();
+            if (local.equals(service.getInfo().getOldestMember()) && scheduled.compareAndSet(false, true)) {
+                RECOVERY_POOL.execute(this);
+            }
+        }
+
+        public void run() {
+            scheduled.set(false);
+            Set<String> members = new HashSet<String>();
+            for (Object o : (Set) service.getInfo().getServiceMembers()) {
+                members.add(((Member) o).getUid().toString());
+            }
+            List<GridWorkItemInvocable> invocables = new ArrayList<GridWorkItemInvocable>();
+            List<Member> workers = new ArrayList<Member>();
+            TransactionManager txm = (TransactionManager) env.get(PersistenceDrools.DROOLS_TRANSACTION_MANAGER);
+            PersistenceManager cm = getPersistenceManager(env);
+            try {
+                txm.begin();
+                cm.initConnection();
+                List<Long> ids = cm.getAllIds();
+                Map<Long, WorkItemDispatch> dispatches = cm.getByIds(ids);
+                for (WorkItemDispatch dispatch : dispatches.values()) {
+                    if (dispatch.getMemberUid() != null && members.contains(dispatch.getMemberUid())) {
+                        continue;
+                    }
+                    Member worker = chooseMember(service, dispatch.getRole(), dispatch.getId(), dispatch
+                            .getFailures());
+                    if (worker == null) {
+                        continue;
+                    }
+                    // a concurrent recovery makes the commit fail
+                    dispatch.setMemberUid(worker.getUid().toString());
+                    cm.saveOrUpdate(dispatch, dispatch.getId());
+                    invocables.add(new GridWorkItemInvocable(dispatch, false));
+                    workers.add(worker);
+                }
+                txm.commit();
+            } catch (RuntimeException t1) {
+                try {
+                    txm.rollback();
+                } catch (RuntimeException t2) {
+                    log.error("Could not rollback work item recovery", t2);
+                }
+                log.warn("Could not send stored work items again", t1);
+                return;
+            }
+            if (!invocables.isEmpty())
+                log.info("Sending {} stored work items again", invocables.size());
+            for (int i = 0; i < invocables.size(); i++) {
+                send(service, invocables.get(i), workers.get(i));
+            }
+        }
+    }
+
+}
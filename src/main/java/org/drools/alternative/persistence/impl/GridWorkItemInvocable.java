@@ -0,0 +1,141 @@
+package org.drools.alternative.persistence.impl;
+
+import java.io.IOException;
+import java.util.Map;
+
+import org.drools.command.Command;
+import org.drools.domain.WorkItemDispatch;
+import org.drools.runtime.process.WorkItem;
+import org.drools.runtime.process.WorkItemHandler;
+import org.drools.runtime.process.WorkItemManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.tangosol.io.pof.PofReader;
+import com.tangosol.io.pof.PofWriter;
+import com.tangosol.io.pof.PortableObject;
+import com.tangosol.net.AbstractInvocable;
+import com.tangosol.util.ExternalizableHelper;
+
+/**
+ * Runs or aborts a work item on a worker member, see
+ * {@link GridWorkItemHandler}.
+ *
+ * The work item is carried as serialized bytes, as it is not a POF type.
+ */
+public class GridWorkItemInvocable extends AbstractInvocable implements PortableObject {
+
+    private static final long serialVersionUID = 1L;
+
+    private static Logger log = LoggerFactory.getLogger(GridWorkItemInvocable.class);
+
+    private String routerName;
+    private int sessionId;
+    private long workItemId;
+    private boolean abort;
+    private byte[] workItem;
+
+    public GridWorkItemInvocable() {
+    }
+
+    public GridWorkItemInvocable(WorkItemDispatch dispatch, boolean abort) {
+        this.routerName = dispatch.getRouterName();
+        this.sessionId = dispatch.getSessionId();
+        this.workItemId = dispatch.getId();
+        this.abort = abort;
+        this.workItem = dispatch.getData();
+    }
+
+    long getWorkItemId() {
+        return workItemId;
+    }
+
+    public void run() {
+        final WorkItem item = (WorkItem) ExternalizableHelper.fromByteArray(workItem);
+        final WorkItemHandler handler = GridWorkItemHandler.getWorker(item.getName());
+        final RoutingWorkItemManager manager = new RoutingWorkItemManager();
+        // the invocation service thread is released right away
+        GridWorkItemHandler.run(new Runnable() {
+            public void run() {
+                try {
+                    if (handler == null) {
+                        if (!abort) {
+                            log.error("No worker for work item {} of session {}", item.getName(), sessionId);
+                            manager.redeliver(item.getId());
+                        }
+                    } else if (abort) {
+                        handler.abortWorkItem(item, manager);
+                    } else {
+                        handler.executeWorkItem(item, manager);
+                    }
+                } catch (RuntimeException e) {
+                    log.error("Work item " + item.getId() + " of session " + sessionId + " failed", e);
+                    if (!abort) {
+                        redeliver(manager, item.getId());
+                    }
+                }
+            }
+        });
+    }
+
+    private void redeliver(RoutingWorkItemManager manager, long id) {
+        try {
+            manager.redeliver(id);
+        } catch (RuntimeException e) {
+            // sent again by the recovery at the latest once this member leaves
+            log.error("Could not redeliver work item " + id + " of session " + sessionId, e);
+        }
+    }
+
+    /**
+     * Completes work items as commands of the session they belong to.
+     */
+    private class RoutingWorkItemManager implements WorkItemManager {
+
+        public void completeWorkItem(long id, Map<String, Object> results) {
+            execute(new CompleteDispatchedWorkItemCommand(id, results, false));
+        }
+
+        public void abortWorkItem(long id) {
+            execute(new CompleteDispatchedWorkItemCommand(id, null, true));
+        }
+
+        /**
+         * Registers the handler as the worker of this member, see
+         * {@link GridWorkItemHandler#registerWorker}.
+         */
+        public void registerWorkItemHandler(String workItemName, WorkItemHandler handler) {
+            GridWorkItemHandler.registerWorker(workItemName, handler);
+        }
+
+        void redeliver(long id) {
+            execute(new RedeliverWorkItemCommand(id));
+        }
+
+        private void execute(Command<?> command) {
+            SessionCommandRouter router = SessionCommandRouter.getRouter(routerName);
+            if (router == null) {
+                throw new IllegalStateException("No router " + routerName + " registered on member "
+                        + getService().getCluster().getLocalMember());
+            }
+            router.execute(sessionId, command);
+        }
+    }
+
+    public void readExternal(PofReader in) throws IOException {
+        routerName = in.readString(0);
+        sessionId = in.readInt(1);
+        workItemId = in.readLong(2);
+        abort = in.readBoolean(3);
+        workItem = in.readByteArray(4);
+    }
+
+    public void writeExternal(PofWriter out) throws IOException {
+        out.writeString(0, routerName);
+        out.writeInt(1, sessionId);
+        out.writeLong(2, workItemId);
+        out.writeBoolean(3, abort);
+        out.writeByteArray(4, workItem);
+    }
+
+}
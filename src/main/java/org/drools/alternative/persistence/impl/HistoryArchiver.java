@@ -0,0 +1,93 @@
+package org.drools.alternative.persistence.impl;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.drools.alternative.persistence.HistorySink;
+import org.drools.alternative.persistence.utils.DaemonThreadFactory;
+import org.drools.domain.HistoryRecord;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Hands the history of committed transactions to a {@link HistorySink} on a
+ * background thread, so keeping history adds nothing to the transactions.
+ *
+ * Set it in the environment as
+ * {@link org.drools.alternative.persistence.PersistenceDrools#HISTORY_ARCHIVER}
+ * to keep history; without it completed instances and work items are only
+ * removed. History is kept on a best effort basis, a batch the sink fails to
+ * append is logged and lost. So is a batch committed while
+ * {@link #DEFAULT_QUEUE_SIZE} or the given number of batches are waiting for a
+ * sink that cannot keep up.
+ */
+public class HistoryArchiver {
+
+    private static Logger log = LoggerFactory.getLogger(HistoryArchiver.class);
+
+    public static final int DEFAULT_QUEUE_SIZE = 1000;
+
+    private final HistorySink sink;
+
+    // a single writer keeps the batches in commit order
+    private final ThreadPoolExecutor writer;
+
+    public HistoryArchiver(HistorySink sink) {
+        this(sink, DEFAULT_QUEUE_SIZE);
+    }
+
+    /**
+     * @param queueSize
+     *            number of batches waiting to be archived, beyond which
+     *            batches are dropped
+     */
+    public HistoryArchiver(HistorySink sink, int queueSize) {
+        this.sink = sink;
+        this.writer = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(
+                queueSize), new DaemonThreadFactory("history-archiver"), new RejectedExecutionHandler() {
+            public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+                // never blocks the committing thread
+                log.warn("Dropped {} history records, {} batches are waiting to be archived",
+                        ((ArchiveTask) task).records.size(), executor.getQueue().size());
+            }
+        });
+    }
+
+    /**
+     * @param records
+     *            history of a committed transaction
+     */
+    public void archive(List<HistoryRecord> records) {
+        writer.execute(new ArchiveTask(records));
+    }
+
+    /**
+     * Archives the batches already handed over and stops.
+     */
+    public void shutdown() {
+        writer.shutdown();
+    }
+
+    private class ArchiveTask implements Runnable {
+
+        private final List<HistoryRecord> records;
+
+        ArchiveTask(List<HistoryRecord> records) {
+            this.records = records;
+        }
+
+        public void run() {
+            try {
+                sink.append(records);
+                if (log.isDebugEnabled())
+                    log.debug("Archived {} history records", records.size());
+            } catch (RuntimeException e) {
+                log.warn("Could not archive " + records.size() + " history records", e);
+            }
+        }
+    }
+
+}
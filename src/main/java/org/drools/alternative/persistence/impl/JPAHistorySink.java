@@ -0,0 +1,41 @@
+package org.drools.alternative.persistence.impl;
+
+import java.util.List;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+import org.drools.alternative.persistence.HistorySink;
+import org.drools.domain.HistoryRecord;
+
+/**
+ * Appends history to the {@link HistoryRecord} table, one resource local
+ * transaction per batch.
+ */
+public class JPAHistorySink implements HistorySink {
+
+    private final EntityManagerFactory emf;
+
+    public JPAHistorySink(EntityManagerFactory emf) {
+        this.emf = emf;
+    }
+
+    public void append(List<HistoryRecord> records) {
+        EntityManager em = emf.createEntityManager();
+        try {
+            em.getTransaction().begin();
+            for (HistoryRecord record : records) {
+                em.persist(record);
+            }
+            em.getTransaction().commit();
+        } catch (RuntimeException e) {
+            if (em.getTransaction().isActive()) {
+                em.getTransaction().rollback();
+            }
+            throw e;
+        } finally {
+            em.close();
+        }
+    }
+
+}
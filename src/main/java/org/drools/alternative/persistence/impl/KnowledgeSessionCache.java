@@ -0,0 +1,458 @@
+package org.drools.alternative.persistence.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.drools.SessionConfiguration;
+import org.drools.alternative.persistence.utils.DaemonThreadFactory;
+import org.drools.alternative.persistence.utils.SessionMarshallingHelper;
+import org.drools.domain.SessionInfo;
+import org.drools.runtime.StatefulKnowledgeSession;
+import org.drools.runtime.conf.ClockTypeOption;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Node local cache of live sessions keyed by session id.
+ *
+ * Entries keep the unmarshalled {@link StatefulKnowledgeSession} together
+ * with the {@link SessionInfo} version it was built from, so a command only
+ * has to compare versions with the store and reloads the snapshot when the
+ * session was changed by another node or the last transaction rolled back.
+ *
+ * The retained heap of each entry is estimated from its snapshot size, twice
+ * if a read only replica was built from the snapshot as well. When
+ * the estimate of all entries exceeds the memory budget, the least recently
+ * used sessions without pending work are passivated in the background: they
+ * are dropped and disposed, their state being already persisted by their
+ * last transaction. The next command reloads them.
+ */
+public class KnowledgeSessionCache {
+
+    private static Logger log = LoggerFactory.getLogger(KnowledgeSessionCache.class);
+
+    /** Ratio of the heap retained by a live session to its snapshot size */
+    public static final int SNAPSHOT_EXPANSION = 10;
+
+    private final ConcurrentMap<Integer, CachedSession> sessions = new ConcurrentHashMap<Integer, CachedSession>();
+
+    private final AtomicLong estimatedSize = new AtomicLong();
+    private volatile long memoryBudget = Runtime.getRuntime().maxMemory() / 4;
+
+    private final AtomicBoolean passivating = new AtomicBoolean();
+    private final ExecutorService passivator = Executors.newSingleThreadExecutor(new DaemonThreadFactory(
+            "session-passivator"));
+
+    public CachedSession get(int sessionId) {
+        return sessions.get(sessionId);
+    }
+
+    public void put(int sessionId, CachedSession session) {
+        CachedSession previous = sessions.put(sessionId, session);
+        if (previous != null) {
+            estimatedSize.addAndGet(-previous.getEstimatedSize());
+        }
+        added(session);
+    }
+
+    /**
+     * @return the entry already cached for the id, or <code>null</code> if the
+     *         given one was registered
+     */
+    public CachedSession putIfAbsent(int sessionId, CachedSession session) {
+        CachedSession previous = sessions.putIfAbsent(sessionId, session);
+        if (previous == null) {
+            added(session);
+        }
+        return previous;
+    }
+
+    public void remove(int sessionId, CachedSession session) {
+        if (sessions.remove(sessionId, session)) {
+            estimatedSize.addAndGet(-session.getEstimatedSize());
+        }
+    }
+
+    public int size() {
+        return sessions.size();
+    }
+
+    /**
+     * @return estimated heap retained by the cached sessions, in bytes
+     */
+    public long getEstimatedSize() {
+        return estimatedSize.get();
+    }
+
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    public void setMemoryBudget(long memoryBudget) {
+        this.memoryBudget = memoryBudget;
+        checkBudget();
+    }
+
+    /**
+     * Updates the size estimate of a session from its latest snapshot.
+     */
+    public void resize(CachedSession session, int snapshotSize) {
+        long previous = session.getEstimatedSize();
+        session.setEstimatedSize((long) snapshotSize * SNAPSHOT_EXPANSION);
+        resized(session, previous);
+    }
+
+    /**
+     * @return the read only replica of the session, see
+     *         {@link CachedSession#getReadView()}, accounted for in the size
+     *         estimate of the session
+     */
+    public SessionReadView getReadView(CachedSession session) {
+        long previous = session.getEstimatedSize();
+        SessionReadView readView = session.getReadView();
+        resized(session, previous);
+        return readView;
+    }
+
+    private void resized(CachedSession session, long previous) {
+        long delta = session.getEstimatedSize() - previous;
+        if (delta != 0 && sessions.get(session.getInfo().getId()) == session) {
+            estimatedSize.addAndGet(delta);
+            checkBudget();
+        }
+    }
+
+    private void added(CachedSession session) {
+        session.touch();
+        estimatedSize.addAndGet(session.getEstimatedSize());
+        checkBudget();
+    }
+
+    private void checkBudget() {
+        if (estimatedSize.get() > memoryBudget && passivating.compareAndSet(false, true)) {
+            passivator.execute(new Runnable() {
+                public void run() {
+                    try {
+                        passivate();
+                    } catch (RuntimeException e) {
+                        log.warn("Could not passivate sessions", e);
+                    } finally {
+                        passivating.set(false);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Passivates the least recently used sessions until the estimate fits the
+     * budget again.
+     */
+    private void passivate() {
+        List<CachedSession> candidates = new ArrayList<CachedSession>(sessions.values());
+        long total = 0;
+        for (CachedSession session : candidates) {
+            total += session.getEstimatedSize();
+        }
+        // the scan is exact, the running estimate may drift under races
+        estimatedSize.set(total);
+        if (total <= memoryBudget) {
+            return;
+        }
+        Collections.sort(candidates, LEAST_RECENTLY_USED);
+        int passivated = 0;
+        for (CachedSession session : candidates) {
+            if (total <= memoryBudget) {
+                break;
+            }
+            synchronized (session) {
+                // changes of an ongoing transaction are not persisted yet
+                if (session.getChangeTracker().isDirty() || !session.isPipelineIdle()) {
+                    continue;
+                }
+                if (!sessions.remove(session.getInfo().getId(), session)) {
+                    continue;
+                }
+                session.passivate();
+            }
+            estimatedSize.addAndGet(-session.getEstimatedSize());
+            total -= session.getEstimatedSize();
+            passivated++;
+        }
+        if (log.isDebugEnabled())
+            log.debug("Passivated {} sessions, {} bytes estimated for {} live sessions", new Object[] { passivated,
+                    total, sessions.size() });
+    }
+
+    private static final Comparator<CachedSession> LEAST_RECENTLY_USED = new Comparator<CachedSession>() {
+        public int compare(CachedSession s1, CachedSession s2) {
+            long a1 = s1.getLastAccess();
+            long a2 = s2.getLastAccess();
+            return a1 < a2 ? -1 : (a1 == a2 ? 0 : 1);
+        }
+    };
+
+    /**
+     * Live session shared by all command services of the same session id on
+     * this node. Command services execute while holding the entry monitor.
+     */
+    public static class CachedSession {
+
+        private final StatefulKnowledgeSession ksession;
+        private final SessionMarshallingHelper marshallingHelper;
+        private final SessionChangeTracker changeTracker;
+        private volatile SessionInfo info;
+        private volatile boolean stale;
+        private volatile boolean passivated;
+        private volatile long lastAccess;
+        private volatile long estimatedSize;
+
+        // delta chain state, see SessionDeltaStore
+        private byte[] snapshot;
+        private int deltaSequence;
+        private int deltaSize;
+        private volatile boolean compactionRequested;
+        private volatile boolean compactionScheduled;
+
+        private SessionCommandPipeline pipeline;
+        private final Object pipelineLock = new Object();
+
+        // last committed snapshot and the replica read only commands run on
+        private volatile byte[] committedSnapshot;
+        private volatile byte[] pendingSnapshot;
+        private SessionReadView readView;
+        private volatile long readViewSize;
+        private final Object readViewLock = new Object();
+
+        public CachedSession(StatefulKnowledgeSession ksession, SessionMarshallingHelper marshallingHelper,
+                SessionInfo info) {
+            this.ksession = ksession;
+            this.marshallingHelper = marshallingHelper;
+            this.changeTracker = new SessionChangeTracker(ksession);
+            this.info = info;
+        }
+
+        public StatefulKnowledgeSession getKsession() {
+            return ksession;
+        }
+
+        public SessionMarshallingHelper getMarshallingHelper() {
+            return marshallingHelper;
+        }
+
+        public SessionChangeTracker getChangeTracker() {
+            return changeTracker;
+        }
+
+        public SessionInfo getInfo() {
+            return info;
+        }
+
+        public void setInfo(SessionInfo info) {
+            this.info = info;
+        }
+
+        /**
+         * @return whether the in-memory state may diverge from the last
+         *         committed snapshot
+         */
+        public boolean isStale() {
+            return stale;
+        }
+
+        public void setStale(boolean stale) {
+            this.stale = stale;
+        }
+
+        /**
+         * @return the last persisted snapshot, kept to compute deltas against
+         */
+        public byte[] getSnapshot() {
+            return snapshot;
+        }
+
+        public void setSnapshot(byte[] snapshot) {
+            this.snapshot = snapshot;
+        }
+
+        public int getDeltaSequence() {
+            return deltaSequence;
+        }
+
+        public void setDeltaSequence(int deltaSequence) {
+            this.deltaSequence = deltaSequence;
+        }
+
+        public int getDeltaSize() {
+            return deltaSize;
+        }
+
+        public void setDeltaSize(int deltaSize) {
+            this.deltaSize = deltaSize;
+        }
+
+        public boolean isCompactionRequested() {
+            return compactionRequested;
+        }
+
+        public void setCompactionRequested(boolean compactionRequested) {
+            this.compactionRequested = compactionRequested;
+        }
+
+        public boolean isCompactionScheduled() {
+            return compactionScheduled;
+        }
+
+        public void setCompactionScheduled(boolean compactionScheduled) {
+            this.compactionScheduled = compactionScheduled;
+        }
+
+        /**
+         * @return whether the session was dropped from the cache and disposed,
+         *         command services have to reload it
+         */
+        public boolean isPassivated() {
+            return passivated;
+        }
+
+        void passivate() {
+            passivated = true;
+            snapshot = null;
+            ksession.dispose();
+            synchronized (readViewLock) {
+                if (readView != null) {
+                    readView.dispose();
+                    readView = null;
+                }
+            }
+        }
+
+        public void setCommittedSnapshot(byte[] data) {
+            this.committedSnapshot = data;
+        }
+
+        /**
+         * Holds a snapshot written by the ongoing transaction until it commits.
+         */
+        public void setPendingSnapshot(byte[] pendingSnapshot) {
+            this.pendingSnapshot = pendingSnapshot;
+        }
+
+        /**
+         * Promotes the snapshot of the committed transaction, if it wrote one.
+         */
+        public void committed() {
+            byte[] pending = pendingSnapshot;
+            if (pending != null) {
+                pendingSnapshot = null;
+                setCommittedSnapshot(pending);
+            }
+        }
+
+        public void rolledBack() {
+            pendingSnapshot = null;
+        }
+
+        /**
+         * @return the replica of the last committed state if it is already
+         *         built, <code>null</code> otherwise
+         */
+        public SessionReadView getCurrentReadView() {
+            synchronized (readViewLock) {
+                return !passivated && readView != null && readView.getSnapshot() == committedSnapshot ? readView
+                        : null;
+            }
+        }
+
+        /**
+         * Unmarshalling the replica may read from the store, e.g. with grid
+         * marshalling strategies, so it has to be called within a transaction.
+         * 
+         * @return a replica of the last committed state, rebuilt when a newer
+         *         snapshot was committed, or <code>null</code> if none is known
+         */
+        public SessionReadView getReadView() {
+            byte[] data = committedSnapshot;
+            if (data == null) {
+                return null;
+            }
+            synchronized (readViewLock) {
+                if (passivated) {
+                    return null;
+                }
+                if (readView == null || readView.getSnapshot() != data) {
+                    // a pseudo clock keeps timers of the replica from ever firing
+                    SessionConfiguration conf = new SessionConfiguration();
+                    conf.setOption(ClockTypeOption.get("pseudo"));
+                    StatefulKnowledgeSession replica = new SessionMarshallingHelper(marshallingHelper.getKbase(),
+                            conf, marshallingHelper.getEnv()).loadSnapshot(data, null);
+                    if (readView != null) {
+                        readView.dispose();
+                    }
+                    readView = new SessionReadView(data, replica);
+                    readViewSize = (long) data.length * SNAPSHOT_EXPANSION;
+                }
+                return readView;
+            }
+        }
+
+        public long getLastAccess() {
+            return lastAccess;
+        }
+
+        public void touch() {
+            lastAccess = System.nanoTime();
+        }
+
+        /**
+         * @return estimated heap retained by the session and its read only
+         *         replica, in bytes
+         */
+        public long getEstimatedSize() {
+            return estimatedSize + readViewSize;
+        }
+
+        void setEstimatedSize(long estimatedSize) {
+            this.estimatedSize = estimatedSize;
+        }
+
+        boolean isPipelineIdle() {
+            synchronized (pipelineLock) {
+                return pipeline == null || pipeline.isIdle();
+            }
+        }
+
+        /**
+         * @return the queue of asynchronously submitted commands of the
+         *         session, created on first use or when the executor was
+         *         replaced while the queue was idle
+         */
+        public SessionCommandPipeline getPipeline(Executor executor) {
+            // not the entry monitor, which is held for whole transactions
+            synchronized (pipelineLock) {
+                if (pipeline == null || (pipeline.getExecutor() != executor && pipeline.isIdle())) {
+                    pipeline = new SessionCommandPipeline(executor);
+                }
+                return pipeline;
+            }
+        }
+
+        /**
+         * @return whether the in-memory state matches the given committed
+         *         version
+         */
+        public boolean isValid(int version) {
+            return !stale && info != null && info.getVersion() == version;
+        }
+    }
+
+}
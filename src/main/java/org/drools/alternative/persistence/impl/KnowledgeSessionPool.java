@@ -0,0 +1,154 @@
+package org.drools.alternative.persistence.impl;
+
+import java.util.ArrayList;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.drools.KnowledgeBase;
+import org.drools.SessionConfiguration;
+import org.drools.alternative.persistence.utils.DaemonThreadFactory;
+import org.drools.impl.KnowledgeBaseImpl;
+import org.drools.impl.StatefulKnowledgeSessionImpl;
+import org.drools.reteoo.ReteooStatefulSession;
+import org.drools.runtime.Environment;
+import org.drools.runtime.StatefulKnowledgeSession;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bounded pools of pre-built empty sessions, one per {@link KnowledgeBase}.
+ *
+ * Building a session creates its Rete network memories, so creating or
+ * loading a session takes a ready one from the pool instead, and the pool is
+ * refilled in the background. Loading unmarshals into the pooled session,
+ * which resets it to the persisted state. Only sessions with the default
+ * configuration are pooled.
+ *
+ * Pooled sessions refer to their kbase, so a pool keeps its kbase reachable
+ * until {@link #remove(KnowledgeBase)} is called. The pool is therefore not
+ * bound by default, see
+ * {@link org.drools.alternative.persistence.utils.EnvironmentUtils#enableSessionPool(Environment, int)}.
+ */
+public class KnowledgeSessionPool {
+
+    private static Logger log = LoggerFactory.getLogger(KnowledgeSessionPool.class);
+
+    public static final int DEFAULT_SIZE = 4;
+
+    private final Environment env;
+    private final int size;
+    private final ConcurrentMap<KnowledgeBase, Pool> pools = new ConcurrentHashMap<KnowledgeBase, Pool>();
+    private final ExecutorService refiller = Executors.newSingleThreadExecutor(new DaemonThreadFactory(
+            "session-pool-refill"));
+
+    public KnowledgeSessionPool(Environment env, int size) {
+        this.env = env;
+        this.size = size;
+    }
+
+    /**
+     * @return an empty session of the kbase, built on the calling thread
+     *         only if the pool is drained
+     */
+    public StatefulKnowledgeSession take(KnowledgeBase kbase) {
+        Pool pool = pools.get(kbase);
+        if (pool == null) {
+            Pool created = new Pool(kbase);
+            pool = pools.putIfAbsent(kbase, created);
+            if (pool == null) {
+                pool = created;
+            }
+        }
+        StatefulKnowledgeSession ksession = pool.sessions.poll();
+        pool.refill();
+        if (ksession == null) {
+            if (log.isDebugEnabled())
+                log.debug("Session pool of {} drained, building session on request", kbase);
+            ksession = newSession(kbase);
+        }
+        return ksession;
+    }
+
+    /**
+     * Drops and disposes the pooled sessions of an undeployed kbase.
+     */
+    public void remove(KnowledgeBase kbase) {
+        Pool pool = pools.remove(kbase);
+        if (pool != null) {
+            StatefulKnowledgeSession ksession;
+            while ((ksession = pool.sessions.poll()) != null) {
+                ksession.dispose();
+            }
+        }
+    }
+
+    /**
+     * @return the number of sessions of the kbase ready to be taken
+     */
+    public int getAvailable(KnowledgeBase kbase) {
+        Pool pool = pools.get(kbase);
+        return pool != null ? pool.sessions.size() : 0;
+    }
+
+    /**
+     * Stops refilling and disposes the pooled sessions of all kbases. Sessions
+     * taken afterwards are built on request.
+     */
+    public void shutdown() {
+        refiller.shutdown();
+        for (KnowledgeBase kbase : new ArrayList<KnowledgeBase>(pools.keySet())) {
+            remove(kbase);
+        }
+    }
+
+    private StatefulKnowledgeSession newSession(KnowledgeBase kbase) {
+        ReteooStatefulSession rsession = (ReteooStatefulSession) ((KnowledgeBaseImpl) kbase).ruleBase
+                .newStatefulSession(new SessionConfiguration(), env);
+        return new StatefulKnowledgeSessionImpl(rsession, kbase);
+    }
+
+    private class Pool implements Runnable {
+
+        private final KnowledgeBase kbase;
+        private final BlockingQueue<StatefulKnowledgeSession> sessions;
+        private final AtomicBoolean refilling = new AtomicBoolean();
+
+        Pool(KnowledgeBase kbase) {
+            this.kbase = kbase;
+            this.sessions = new LinkedBlockingQueue<StatefulKnowledgeSession>(size);
+        }
+
+        void refill() {
+            if (sessions.remainingCapacity() > 0 && refilling.compareAndSet(false, true)) {
+                try {
+                    refiller.execute(this);
+                } catch (RejectedExecutionException e) {
+                    // shut down
+                    refilling.set(false);
+                }
+            }
+        }
+
+        public void run() {
+            try {
+                while (sessions.remainingCapacity() > 0 && pools.get(kbase) == this) {
+                    StatefulKnowledgeSession ksession = newSession(kbase);
+                    if (!sessions.offer(ksession)) {
+                        ksession.dispose();
+                    }
+                }
+            } catch (RuntimeException e) {
+                log.warn("Could not refill session pool", e);
+            } finally {
+                refilling.set(false);
+            }
+        }
+    }
+
+}
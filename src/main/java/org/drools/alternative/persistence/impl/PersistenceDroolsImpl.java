@@ -16,22 +16,36 @@ public class PersistenceDroolsImpl implements PersistenceDrools {
 
     @Override
     public ProcessInstanceManager createProcessInstanceManager(InternalKnowledgeRuntime runtime) {
-        return new ProcessInstanceManagerImpl(runtime, createCacheManagerInstance(ProcessInstanceInfo.class,
+        return new ProcessInstanceManagerImpl(runtime, getPersistenceManager(ProcessInstanceInfo.class,
                 runtime.getEnvironment()));
     }
 
     @Override
     public SignalManager createSignalManager(InternalKnowledgeRuntime runtime) {
-        return new SignalManagerImpl(runtime, createCacheManagerInstance(ProcessInstanceInfo.class,
+        return new SignalManagerImpl(runtime, getPersistenceManager(ProcessInstanceInfo.class,
                 runtime.getEnvironment()));
     }
 
     @Override
     public WorkItemManager createWorkItemManager(InternalKnowledgeRuntime runtime) {
-        return new WorkItemManagerImpl(runtime, createCacheManagerInstance(WorkItemInfo.class,
+        return new WorkItemManagerImpl(runtime, getPersistenceManager(WorkItemInfo.class,
                 runtime.getEnvironment()));
     }
 
+    /**
+     * Returns the shared manager from the {@link PersistenceManagerRegistry}
+     * bound to the environment, falling back to a new instance when the
+     * environment was not built with a registry.
+     */
+    public static PersistenceManager getPersistenceManager(Class clazz, Environment environment) {
+        PersistenceManagerRegistry registry = (PersistenceManagerRegistry) environment
+                .get(PersistenceDrools.CACHE_MANAGER_REGISTRY);
+        if (registry != null) {
+            return registry.getPersistenceManager(clazz);
+        }
+        return createCacheManagerInstance(clazz, environment);
+    }
+
     @SuppressWarnings({"rawtypes","unchecked"})
     public static PersistenceManager createCacheManagerInstance(Class clazz, Environment environment) {
         Class cmClazz = (Class) environment.get(PersistenceDrools.CACHE_MANAGER_CLASS);
@@ -0,0 +1,71 @@
+package org.drools.alternative.persistence.impl;
+
+import java.lang.reflect.Constructor;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.drools.alternative.persistence.PersistenceDrools;
+import org.drools.alternative.persistence.PersistenceManager;
+import org.drools.runtime.Environment;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Holds one shared {@link PersistenceManager} per entity type for a single
+ * backend ({@link PersistenceDrools#CACHE_MANAGER_CLASS}).
+ *
+ * Managers are stateless (connections are resolved per thread through the
+ * environment), so the same instance is handed out to every session, process
+ * instance manager, work item manager and signal manager.
+ */
+public class PersistenceManagerRegistry {
+
+    private static Logger log = LoggerFactory.getLogger(PersistenceManagerRegistry.class);
+
+    private final Environment environment;
+    private final Constructor<?> cmConstructor;
+    private final ConcurrentMap<Class<?>, PersistenceManager> managers = new ConcurrentHashMap<Class<?>, PersistenceManager>();
+
+    /**
+     * @param cmClass
+     *            {@link PersistenceManager} implementation of the backend
+     * @param environment
+     *            environment the managers will resolve their connections from
+     * @param entityClasses
+     *            entity types to build managers for right away
+     */
+    public PersistenceManagerRegistry(Class<?> cmClass, Environment environment, Class<?>... entityClasses) {
+        this.environment = environment;
+        try {
+            this.cmConstructor = cmClass.getConstructor(Class.class, Environment.class);
+        } catch (NoSuchMethodException e) {
+            throw new IllegalArgumentException(cmClass + " must declare a (Class, Environment) constructor", e);
+        }
+        for (Class<?> entityClass : entityClasses) {
+            getPersistenceManager(entityClass);
+        }
+    }
+
+    public PersistenceManager getPersistenceManager(Class<?> entityClass) {
+        PersistenceManager cm = managers.get(entityClass);
+        if (cm == null) {
+            cm = createInstance(entityClass);
+            PersistenceManager existing = managers.putIfAbsent(entityClass, cm);
+            if (existing != null) {
+                cm = existing;
+            }
+        }
+        return cm;
+    }
+
+    private PersistenceManager createInstance(Class<?> entityClass) {
+        if (log.isDebugEnabled())
+            log.debug("Creating {} for {}", cmConstructor.getDeclaringClass().getSimpleName(), entityClass.getName());
+        try {
+            return (PersistenceManager) cmConstructor.newInstance(entityClass, environment);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+}
@@ -0,0 +1,89 @@
+package org.drools.alternative.persistence.impl;
+
+import java.util.List;
+
+import org.drools.alternative.persistence.PersistenceDrools;
+import org.drools.alternative.persistence.PersistenceManager;
+import org.drools.alternative.persistence.TransactionManager;
+import org.drools.domain.ProcessInstanceInfo;
+import org.drools.domain.ProcessInstanceSummary;
+import org.drools.runtime.Environment;
+
+/**
+ * Lists the stored process instances page by page in id order, as
+ * {@link ProcessInstanceSummary} read without the process instance snapshots.
+ *
+ * The cursor is the id of the last instance returned, so a listing can be
+ * resumed from {@link #getPosition()} by a new cursor, and instances added or
+ * removed meanwhile never shift a page. Each page is read in a transaction of
+ * its own, joining the transaction of the calling thread if there is one.
+ */
+public class ProcessInstanceCursor {
+
+    private final Environment env;
+    private final int pageSize;
+    private long position;
+    private boolean exhausted;
+
+    public ProcessInstanceCursor(Environment env, int pageSize) {
+        this(env, pageSize, 0);
+    }
+
+    /**
+     * @param position
+     *            id of the last instance already listed
+     */
+    public ProcessInstanceCursor(Environment env, int pageSize, long position) {
+        if (pageSize <= 0) {
+            throw new IllegalArgumentException("Page size must be positive: " + pageSize);
+        }
+        this.env = env;
+        this.pageSize = pageSize;
+        this.position = position;
+    }
+
+    /**
+     * @return whether a further page may hold instances
+     */
+    public boolean hasNext() {
+        return !exhausted;
+    }
+
+    /**
+     * @return the instances following the position, empty once all are listed
+     */
+    public List<ProcessInstanceSummary> next() {
+        List<ProcessInstanceSummary> page = read();
+        if (page.size() < pageSize) {
+            exhausted = true;
+        }
+        if (!page.isEmpty()) {
+            position = page.get(page.size() - 1).getId();
+        }
+        return page;
+    }
+
+    public long getPosition() {
+        return position;
+    }
+
+    private List<ProcessInstanceSummary> read() {
+        TransactionManager txm = (TransactionManager) env.get(PersistenceDrools.DROOLS_TRANSACTION_MANAGER);
+        PersistenceManager cm = PersistenceDroolsImpl.getPersistenceManager(ProcessInstanceInfo.class, env);
+        try {
+            txm.begin();
+            cm.initConnection();
+            List<ProcessInstanceSummary> page = cm.getProcessInstanceSummaries(position, pageSize);
+            txm.commit();
+            return page;
+        } catch (RuntimeException t1) {
+            try {
+                txm.rollback();
+            } catch (RuntimeException t2) {
+                throw new RuntimeException("Could not commit process instance listing or rollback", t2);
+            }
+            throw t1;
+        }
+    }
+
+}
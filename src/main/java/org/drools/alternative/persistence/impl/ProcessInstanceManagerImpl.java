@@ -1,25 +1,36 @@
 package org.drools.alternative.persistence.impl;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
 import org.drools.WorkingMemory;
+import org.drools.alternative.persistence.PersistenceDrools;
 import org.drools.alternative.persistence.PersistenceManager;
+import org.drools.alternative.persistence.utils.MarshallingContextPool;
 import org.drools.common.InternalKnowledgeRuntime;
 import org.drools.common.InternalRuleBase;
 import org.drools.common.InternalWorkingMemory;
 import org.drools.common.InternalWorkingMemoryEntryPoint;
+import org.drools.domain.HistoryRecord;
 import org.drools.domain.ProcessInstanceInfo;
+import org.drools.domain.VariableInfo;
+import org.drools.event.process.DefaultProcessEventListener;
+import org.drools.event.process.ProcessCompletedEvent;
+import org.drools.event.process.ProcessEvent;
+import org.drools.event.process.ProcessNodeLeftEvent;
+import org.drools.event.process.ProcessNodeTriggeredEvent;
+import org.drools.event.process.ProcessStartedEvent;
+import org.drools.event.process.ProcessVariableChangedEvent;
 import org.drools.marshalling.impl.MarshallerReaderContext;
 import org.drools.marshalling.impl.MarshallerWriteContext;
 import org.drools.runtime.Environment;
@@ -29,9 +40,53 @@ import org.jbpm.process.instance.ProcessInstance;
 import org.jbpm.process.instance.ProcessInstanceManager;
 import org.jbpm.process.instance.impl.ProcessInstanceImpl;
 
+/**
+ * Process instances are only marshalled and written at the end of a
+ * transaction if process events show they changed: nodes triggered or left,
+ * variables changed, the instance started or completed. Instances that were
+ * merely read are skipped without marshalling.
+ *
+ * The instances of a committed transaction are kept disconnected, together
+ * with the info they were read or written as, in a bounded cache of the
+ * session, so the next transaction reconnects them instead of reading and
+ * unmarshalling them again. A cached instance is only reused while the stored
+ * version still equals that of its info; the instances of a transaction that
+ * rolls back are dropped. Cached infos do not keep the marshalled instance,
+ * so a reused instance that changed is written without comparing it to the
+ * stored data. The cache holds
+ * {@link PersistenceDrools#PROCESS_INSTANCE_CACHE_SIZE} instances,
+ * {@link #DEFAULT_CACHE_SIZE} if not set in the environment, 0 disables it.
+ *
+ * If {@link PersistenceDrools#EXTERNAL_VARIABLE_SIZE} is set, variables of at
+ * least that serialized size are stored apart through an
+ * {@link ExternalVariableStore}.
+ *
+ * If a {@link HistoryArchiver} is set in the environment, removed instances
+ * are handed to it once the transaction committed.
+ */
 public class ProcessInstanceManagerImpl implements ProcessInstanceManager {
 
+    public static final int DEFAULT_CACHE_SIZE = 100;
+
     private transient Map<Long, ProcessInstance> processInstances;
+    // infos read or created in the current transaction, keeping their version
+    private final Map<Long, ProcessInstanceInfo> infos = new ConcurrentHashMap<Long, ProcessInstanceInfo>();
+    // stored data sizes of the instances reused from the cache
+    private final Map<Long, Integer> dataSizes = new ConcurrentHashMap<Long, Integer>();
+    private final Set<Long> changed = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+    // names of the variables changed in the current transaction, and the
+    // instances whose variables were never measured by the variable store
+    private final Map<Long, Set<String>> changedVariables = new ConcurrentHashMap<Long, Set<String>>();
+    private final Set<Long> unmeasured = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+    private volatile boolean tracking;
+    // instances of committed transactions, least recently used first
+    private final Map<Long, CachedInstance> cache;
+    // instances of the current transaction, cached once it commits
+    private final Map<Long, CachedInstance> pending = new ConcurrentHashMap<Long, CachedInstance>();
+    private final ExternalVariableStore variableStore;
+    private final HistoryArchiver archiver;
+    // instances removed in the current transaction
+    private final List<HistoryRecord> history = Collections.synchronizedList(new ArrayList<HistoryRecord>());
     private WorkingMemory workingMemory;
     private InternalKnowledgeRuntime internalKnowledgeRuntime;
     private PersistenceManager cm;
@@ -40,6 +95,23 @@ public class ProcessInstanceManagerImpl implements ProcessInstanceManager {
         this.workingMemory = ((InternalWorkingMemoryEntryPoint)runtime).getInternalWorkingMemory();
         this.internalKnowledgeRuntime = runtime;
         this.cm = cm;
+        Integer cacheSize = (Integer) workingMemory.getEnvironment().get(PersistenceDrools.PROCESS_INSTANCE_CACHE_SIZE);
+        this.cache = createCache(cacheSize != null ? cacheSize : DEFAULT_CACHE_SIZE);
+        Integer variableSize = (Integer) workingMemory.getEnvironment().get(PersistenceDrools.EXTERNAL_VARIABLE_SIZE);
+        this.variableStore = variableSize != null && variableSize > 0 ? new ExternalVariableStore(PersistenceDroolsImpl
+                .getPersistenceManager(VariableInfo.class, workingMemory.getEnvironment()), variableSize) : null;
+        this.archiver = (HistoryArchiver) workingMemory.getEnvironment().get(PersistenceDrools.HISTORY_ARCHIVER);
+    }
+
+    private static Map<Long, CachedInstance> createCache(final int size) {
+        return Collections.synchronizedMap(new LinkedHashMap<Long, CachedInstance>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, CachedInstance> eldest) {
+                return size() > size;
+            }
+        });
     }
 
     @Override
@@ -52,14 +124,25 @@ public class ProcessInstanceManagerImpl implements ProcessInstanceManager {
                 return processInstance;
             }
         }
-        ProcessInstanceInfo processInstanceInfo = cm.getById(id);  
-        
-        // Is Process Instance finished ? 
-        if (processInstanceInfo == null)
-            return null;
+        ProcessInstanceInfo processInstanceInfo;
+        // taken out while in use, it is cached again when the transaction commits
+        CachedInstance cached = cache.remove(id);
+        if (cached != null && cm.getVersion(id) == cached.info.getVersion()) {
+            processInstanceInfo = cached.info;
+            processInstance = cached.processInstance;
+            dataSizes.put(id, cached.dataSize);
+        } else {
+            processInstanceInfo = cm.getById(id);  
+            
+            // Is Process Instance finished ? 
+            if (processInstanceInfo == null)
+                return null;
+            
+            processInstance = getProcessInstance(processInstanceInfo, workingMemory, environment);
+        }
 
         processInstanceInfo.updateLastReadDate();
-        processInstance = getProcessInstance(processInstanceInfo, workingMemory, environment);
+        infos.put(id, processInstanceInfo);
         org.drools.definition.process.Process process = ((InternalRuleBase) workingMemory.getRuleBase()).getProcess(processInstance.getProcessId());
         if (process == null) {
             throw new IllegalArgumentException("Could not find process " + processInstance.getProcessId());
@@ -81,7 +164,18 @@ public class ProcessInstanceManagerImpl implements ProcessInstanceManager {
     public void addProcessInstance(org.drools.runtime.process.ProcessInstance processInstance) {
         Long pID = cm.generateIdentity();
         ((org.jbpm.process.instance.ProcessInstance)processInstance).setId(pID);
-        handleCachedProcessInfo(pID, (ProcessInstance)processInstance);
+        ProcessInstanceInfo pi = new ProcessInstanceInfo();
+        pi.updateLastReadDate();
+        pi.setId(pID);
+        // listed without reading the snapshot, so kept on the info itself
+        pi.setProcessId(processInstance.getProcessId());
+        pi.setStartDate(new Date());
+        infos.put(pID, pi);
+        // written once at the end of the transaction
+        changed.add(pID);
+        if (variableStore != null) {
+            unmeasured.add(pID);
+        }
         internalAddProcessInstance(processInstance);
     }
 
@@ -90,11 +184,28 @@ public class ProcessInstanceManagerImpl implements ProcessInstanceManager {
         if (this.processInstances == null) {
             this.processInstances = new ConcurrentHashMap<Long, ProcessInstance>();
         }
+        if (!tracking) {
+            // the process runtime is still being built when this manager is
+            tracking = true;
+            internalKnowledgeRuntime.getProcessRuntime().addEventListener(new ProcessInstanceChanges());
+        }
         processInstances.put(processInstance.getId(), (ProcessInstance)processInstance);
     }
 
     @Override
     public void removeProcessInstance(org.drools.runtime.process.ProcessInstance processInstance) {
+        ProcessInstanceInfo info = infos.remove(processInstance.getId());
+        if (variableStore != null && info != null) {
+            variableStore.remove(info);
+        }
+        if (archiver != null) {
+            history.add(new HistoryRecord(HistoryRecord.PROCESS_INSTANCE, processInstance.getId(), processInstance
+                    .getProcessId(), processInstance.getId(), processInstance.getState(), info != null ? info
+                    .getStartDate() : null, new Date()));
+        }
+        changed.remove(processInstance.getId());
+        pending.remove(processInstance.getId());
+        cache.remove(processInstance.getId());
         cm.removeById(processInstance.getId());
         internalRemoveProcessInstance(processInstance);
     }
@@ -108,33 +219,173 @@ public class ProcessInstanceManagerImpl implements ProcessInstanceManager {
 
     public void clearProcessInstances() {
         if (processInstances != null) {
+            // all changed instances are marshalled through one context
+            MarshallingContextPool.Writer writer = null;
             for (Map.Entry<Long, ProcessInstance> e : processInstances.entrySet()) {
-                handleCachedProcessInfo(e.getKey(), e.getValue());
+                ProcessInstanceInfo info;
+                if (changed.remove(e.getKey())) {
+                    if (writer == null) {
+                        writer = acquireWriter();
+                    }
+                    info = handleCachedProcessInfo(e.getKey(), e.getValue(), writer);
+                } else {
+                    info = infos.get(e.getKey());
+                }
+                // disconnected instances are reconnected as if just unmarshalled
                 ((ProcessInstanceImpl) e.getValue()).disconnect();
+                if (info != null) {
+                    pending.put(e.getKey(), new CachedInstance(info, e.getValue(), getDataSize(e.getKey(), info)));
+                }
+            }
+            if (writer != null) {
+                MarshallingContextPool.release(writer);
             }
         }
+        infos.clear();
+        dataSizes.clear();
+        changed.clear();
+        changedVariables.clear();
+        unmeasured.clear();
     }
 
-    private ProcessInstanceInfo handleCachedProcessInfo(long id, ProcessInstance processInstance) {
-        ProcessInstanceInfo pi = new ProcessInstanceInfo();
-        pi.updateLastReadDate();
-        pi.setId(id);
-        update(pi, processInstance);
-        cm.saveOrUpdate(pi, id);
+    /**
+     * Caches the instances of the transaction and archives those removed,
+     * called once it committed.
+     */
+    public void committed() {
+        for (CachedInstance cached : pending.values()) {
+            // no longer written through, only its size is kept
+            cached.info.setData(null);
+        }
+        cache.putAll(pending);
+        pending.clear();
+        if (archiver != null && !history.isEmpty()) {
+            archiver.archive(new ArrayList<HistoryRecord>(history));
+            history.clear();
+        }
+    }
+
+    /**
+     * Drops the instances of the transaction, they may hold changes that were
+     * not stored.
+     */
+    public void rolledBack() {
+        if (processInstances != null) {
+            for (ProcessInstance processInstance : processInstances.values()) {
+                ((ProcessInstanceImpl) processInstance).disconnect();
+            }
+            processInstances.clear();
+        }
+        infos.clear();
+        dataSizes.clear();
+        changed.clear();
+        changedVariables.clear();
+        unmeasured.clear();
+        pending.clear();
+        history.clear();
+    }
+
+    private ProcessInstanceInfo handleCachedProcessInfo(long id, ProcessInstance processInstance,
+            MarshallingContextPool.Writer writer) {
+        ProcessInstanceInfo pi = infos.get(id);
+        if (pi == null) {
+            // kept in memory from an earlier transaction
+            pi = cm.getById(id);
+            if (pi == null) {
+                pi = new ProcessInstanceInfo();
+                pi.setId(id);
+            }
+            pi.updateLastReadDate();
+            // its stored variables are not known
+            if (variableStore != null) {
+                unmeasured.add(id);
+            }
+        }
+        if (update(pi, processInstance, writer)) {
+            // a merged copy carries the version the cached instance is validated against
+            pi = cm.saveOrUpdate(pi, id);
+        }
         return pi;
     }
 
+    private int getDataSize(long id, ProcessInstanceInfo info) {
+        if (info.getData() != null) {
+            return info.getData().length;
+        }
+        Integer size = dataSizes.get(id);
+        return size != null ? size : 0;
+    }
+
+    private static class CachedInstance {
+
+        private final ProcessInstanceInfo info;
+        private final ProcessInstance processInstance;
+        private final int dataSize;
+
+        CachedInstance(ProcessInstanceInfo info, ProcessInstance processInstance, int dataSize) {
+            this.info = info;
+            this.processInstance = processInstance;
+            this.dataSize = dataSize;
+        }
+    }
+
+    private class ProcessInstanceChanges extends DefaultProcessEventListener {
+
+        private void changed(ProcessEvent event) {
+            changed.add(event.getProcessInstance().getId());
+        }
+
+        @Override
+        public void afterProcessStarted(ProcessStartedEvent event) {
+            changed(event);
+        }
+
+        @Override
+        public void afterProcessCompleted(ProcessCompletedEvent event) {
+            changed(event);
+        }
+
+        @Override
+        public void afterNodeTriggered(ProcessNodeTriggeredEvent event) {
+            changed(event);
+        }
+
+        @Override
+        public void afterNodeLeft(ProcessNodeLeftEvent event) {
+            changed(event);
+        }
+
+        @Override
+        public void afterVariableChanged(ProcessVariableChangedEvent event) {
+            changed(event);
+            if (variableStore != null) {
+                long id = event.getProcessInstance().getId();
+                Set<String> names = changedVariables.get(id);
+                if (names == null) {
+                    names = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+                    changedVariables.put(id, names);
+                }
+                names.add(event.getVariableId());
+            }
+        }
+    }
+
     public ProcessInstance getProcessInstance(ProcessInstanceInfo info, WorkingMemory workingMemory, Environment env) {
         ProcessInstance processInstance = null;
         try {
-            ByteArrayInputStream bais = new ByteArrayInputStream(info.getData());
-            MarshallerReaderContext context = new MarshallerReaderContext(bais,
-                    (InternalRuleBase) workingMemory.getRuleBase(), null, null,workingMemory.getEnvironment());
+            MarshallingContextPool.Reader reader = MarshallingContextPool.acquireReader(workingMemory
+                    .getEnvironment(), (InternalRuleBase) workingMemory.getRuleBase());
+            MarshallerReaderContext context = reader.begin(info.getData());
             context.wm = (InternalWorkingMemory) workingMemory;
             ProcessInstanceMarshaller marshaller = getMarshallerFromContext(context);
             processInstance = (ProcessInstance) marshaller.readProcessInstance(context);
 
-            context.close();
+            reader.end();
+            MarshallingContextPool.release(reader);
+            if (variableStore != null) {
+                variableStore.resolve(info, processInstance, ((InternalRuleBase) workingMemory.getRuleBase())
+                        .getRootClassLoader());
+            }
         } catch (IOException e) {
             e.printStackTrace();
             throw new IllegalArgumentException("IOException while loading process instance: " + e.getMessage(), e);
@@ -155,31 +406,55 @@ public class ProcessInstanceManagerImpl implements ProcessInstanceManager {
         stream.writeUTF(processInstanceType);
     }
 
-    private void update(ProcessInstanceInfo info, ProcessInstance processInstance) {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        boolean variablesChanged = false;
+    private MarshallingContextPool.Writer acquireWriter() {
+        try {
+            return MarshallingContextPool.acquireWriter(workingMemory.getEnvironment());
+        } catch (IOException e) {
+            throw new IllegalArgumentException("IOException while creating marshaller context: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return whether the marshalled instance differs from the info data
+     */
+    private boolean update(ProcessInstanceInfo info, ProcessInstance processInstance,
+            MarshallingContextPool.Writer writer) {
+        Map<String, Object> externalized = null;
+        if (variableStore != null) {
+            Set<String> names = changedVariables.get(processInstance.getId());
+            externalized = variableStore.externalize(info, processInstance,
+                    unmeasured.contains(processInstance.getId()) ? null : names != null ? names : Collections
+                            .<String> emptySet());
+        }
         try {
-            MarshallerWriteContext context = new MarshallerWriteContext(baos, null, null, null, null,workingMemory.getEnvironment());
+            MarshallerWriteContext context = writer.begin(getDataSize(processInstance.getId(), info));
             String processType = ((ProcessInstanceImpl) processInstance).getProcess().getType();
             saveProcessInstanceType(context, processInstance, processType);
             ProcessInstanceMarshaller marshaller = ProcessMarshallerRegistry.INSTANCE.getMarshaller(processType);
             marshaller.writeProcessInstance(context, processInstance);
 
-            context.close();
-        } catch (IOException e) {
-            throw new IllegalArgumentException("IOException while storing process instance " + processInstance.getId()
-                    + ": " + e.getMessage());
-        }
-        byte[] newByteArray = baos.toByteArray();
-        if (variablesChanged || !Arrays.equals(newByteArray, info.getData())) {
+            // compared in place, only a changed instance is copied out; an
+            // info reused from the cache has no data and is always written
+            if (writer.contentEquals(info.getData())) {
+                return false;
+            }
+            info.setProcessId(processInstance.getProcessId());
             info.setState(processInstance.getState());
             info.setLastModificationDate(new Date());
-            info.setData(newByteArray);
+            info.setData(writer.toByteArray());
             Set<String> eventTypes = info.getEventTypes();
             eventTypes.clear();
             for (String type : processInstance.getEventTypes()) {
                 eventTypes.add(type);
             }
+            return true;
+        } catch (IOException e) {
+            throw new IllegalArgumentException("IOException while storing process instance " + processInstance.getId()
+                    + ": " + e.getMessage());
+        } finally {
+            if (externalized != null) {
+                variableStore.restore(processInstance, externalized);
+            }
         }
     }
 
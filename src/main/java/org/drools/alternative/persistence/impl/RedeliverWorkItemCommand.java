@@ -0,0 +1,41 @@
+package org.drools.alternative.persistence.impl;
+
+import java.io.Serializable;
+
+import org.drools.command.Context;
+import org.drools.command.impl.GenericCommand;
+import org.drools.command.impl.KnowledgeCommandContext;
+import org.drools.domain.WorkItemDispatch;
+import org.drools.runtime.StatefulKnowledgeSession;
+
+/**
+ * Sends a work item that failed on its worker member to another one, see
+ * {@link GridWorkItemHandler#redeliver}.
+ */
+public class RedeliverWorkItemCommand implements GenericCommand<Void>, Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final long workItemId;
+
+    public RedeliverWorkItemCommand(long workItemId) {
+        this.workItemId = workItemId;
+    }
+
+    public Void execute(Context context) {
+        StatefulKnowledgeSession ksession = ((KnowledgeCommandContext) context).getStatefulKnowledgesession();
+        WorkItemDispatch dispatch = PersistenceDroolsImpl.getPersistenceManager(WorkItemDispatch.class,
+                ksession.getEnvironment()).getById(workItemId);
+        // completed or aborted meanwhile
+        if (dispatch != null) {
+            GridWorkItemHandler.redeliver(ksession.getEnvironment(), dispatch, ksession.getWorkItemManager());
+        }
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return "RedeliverWorkItemCommand [workItemId=" + workItemId + "]";
+    }
+
+}
@@ -0,0 +1,124 @@
+package org.drools.alternative.persistence.impl;
+
+import java.io.IOException;
+import java.io.Serializable;
+
+import org.drools.command.Command;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.tangosol.io.pof.PofReader;
+import com.tangosol.io.pof.PofWriter;
+import com.tangosol.io.pof.PortableObject;
+import com.tangosol.net.AbstractInvocable;
+import com.tangosol.util.ExternalizableHelper;
+
+/**
+ * Executes a command on the member owning its session, see
+ * {@link SessionCommandRouter}.
+ *
+ * Commands and results are carried as serialized bytes, as they are not POF
+ * types.
+ */
+public class RoutedCommandInvocable extends AbstractInvocable implements PortableObject {
+
+    private static final long serialVersionUID = 1L;
+
+    private static Logger log = LoggerFactory.getLogger(RoutedCommandInvocable.class);
+
+    private String routerName;
+    private int sessionId;
+    private byte[] command;
+
+    public RoutedCommandInvocable() {
+    }
+
+    public RoutedCommandInvocable(String routerName, int sessionId, Command<?> command) {
+        this.routerName = routerName;
+        this.sessionId = sessionId;
+        this.command = ExternalizableHelper.toByteArray(command);
+    }
+
+    public void run() {
+        SessionCommandRouter router = SessionCommandRouter.getRouter(routerName);
+        Outcome outcome;
+        if (router == null) {
+            if (log.isDebugEnabled())
+                log.debug("No router {} registered on member {}", routerName, getService().getCluster()
+                        .getLocalMember());
+            outcome = new Outcome(false, null, null);
+        } else {
+            try {
+                Command<?> routed = (Command<?>) ExternalizableHelper.fromByteArray(command);
+                outcome = new Outcome(true, router.executeLocally(sessionId, routed), null);
+            } catch (RuntimeException e) {
+                outcome = new Outcome(true, null, e);
+            }
+        }
+        setResult(toByteArray(outcome));
+    }
+
+    /**
+     * @return the outcome serialized, or the failure to serialize it
+     */
+    private static byte[] toByteArray(Outcome outcome) {
+        try {
+            return ExternalizableHelper.toByteArray(outcome);
+        } catch (RuntimeException e) {
+            // the command took effect, but its result or failure cannot be sent
+            log.warn("Could not serialize outcome of routed command", e);
+            RuntimeException failure = new IllegalStateException("Outcome of routed command is not serializable: "
+                    + (outcome.failure != null ? outcome.failure : e));
+            failure.setStackTrace((outcome.failure != null ? outcome.failure : e).getStackTrace());
+            return ExternalizableHelper.toByteArray(new Outcome(true, null, failure));
+        }
+    }
+
+    static Outcome unwrap(Object bytes) {
+        return (Outcome) ExternalizableHelper.fromByteArray((byte[]) bytes);
+    }
+
+    /**
+     * Result or failure of a command on the member it was sent to. A member
+     * without the router cannot execute the command, which is then rerouted.
+     */
+    static class Outcome implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final boolean routed;
+        private final Object result;
+        private final RuntimeException failure;
+
+        Outcome(boolean routed, Object result, RuntimeException failure) {
+            this.routed = routed;
+            this.result = result;
+            this.failure = failure;
+        }
+
+        boolean isRouted() {
+            return routed;
+        }
+
+        @SuppressWarnings("unchecked")
+        <T> T get() {
+            if (failure != null) {
+                throw new RuntimeException("Routed command failed", failure);
+            }
+            return (T) result;
+        }
+    }
+
+    public void readExternal(PofReader in) throws IOException {
+        routerName = in.readString(0);
+        sessionId = in.readInt(1);
+        command = in.readByteArray(2);
+    }
+
+    public void writeExternal(PofWriter out) throws IOException {
+        out.writeString(0, routerName);
+        out.writeInt(1, sessionId);
+        out.writeByteArray(2, command);
+    }
+
+}
@@ -0,0 +1,138 @@
+package org.drools.alternative.persistence.impl;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.drools.event.process.DefaultProcessEventListener;
+import org.drools.event.process.ProcessCompletedEvent;
+import org.drools.event.process.ProcessNodeLeftEvent;
+import org.drools.event.process.ProcessNodeTriggeredEvent;
+import org.drools.event.process.ProcessStartedEvent;
+import org.drools.event.rule.ActivationCancelledEvent;
+import org.drools.event.rule.ActivationCreatedEvent;
+import org.drools.event.rule.AfterActivationFiredEvent;
+import org.drools.event.rule.AgendaGroupPoppedEvent;
+import org.drools.event.rule.AgendaGroupPushedEvent;
+import org.drools.event.rule.DefaultAgendaEventListener;
+import org.drools.event.rule.DefaultWorkingMemoryEventListener;
+import org.drools.event.rule.ObjectInsertedEvent;
+import org.drools.event.rule.ObjectRetractedEvent;
+import org.drools.event.rule.ObjectUpdatedEvent;
+import org.drools.event.rule.RuleFlowGroupActivatedEvent;
+import org.drools.event.rule.RuleFlowGroupDeactivatedEvent;
+import org.drools.runtime.StatefulKnowledgeSession;
+
+/**
+ * Counts working memory, agenda and process changes of a session, so the
+ * session snapshot is only taken and written when something has changed since
+ * the last one.
+ */
+public class SessionChangeTracker {
+
+    private final AtomicLong changes = new AtomicLong();
+    private volatile long snapshotChanges;
+
+    public SessionChangeTracker(StatefulKnowledgeSession ksession) {
+        ksession.addEventListener(new WorkingMemoryChanges());
+        ksession.addEventListener(new AgendaChanges());
+        ksession.addEventListener(new ProcessChanges());
+    }
+
+    /**
+     * Records a change the listeners cannot observe, e.g. a global being set.
+     */
+    public void changed() {
+        changes.incrementAndGet();
+    }
+
+    public boolean isDirty() {
+        return changes.get() != snapshotChanges;
+    }
+
+    /**
+     * Marks the current state as the persisted one.
+     */
+    public void snapshotTaken() {
+        snapshotChanges = changes.get();
+    }
+
+    private class WorkingMemoryChanges extends DefaultWorkingMemoryEventListener {
+
+        @Override
+        public void objectInserted(ObjectInsertedEvent event) {
+            changed();
+        }
+
+        @Override
+        public void objectUpdated(ObjectUpdatedEvent event) {
+            changed();
+        }
+
+        @Override
+        public void objectRetracted(ObjectRetractedEvent event) {
+            changed();
+        }
+    }
+
+    private class AgendaChanges extends DefaultAgendaEventListener {
+
+        @Override
+        public void activationCreated(ActivationCreatedEvent event) {
+            changed();
+        }
+
+        @Override
+        public void activationCancelled(ActivationCancelledEvent event) {
+            changed();
+        }
+
+        @Override
+        public void afterActivationFired(AfterActivationFiredEvent event) {
+            changed();
+        }
+
+        // the focus stack is part of the snapshot, e.g. after a SetFocus
+        @Override
+        public void agendaGroupPushed(AgendaGroupPushedEvent event) {
+            changed();
+        }
+
+        @Override
+        public void agendaGroupPopped(AgendaGroupPoppedEvent event) {
+            changed();
+        }
+
+        @Override
+        public void afterRuleFlowGroupActivated(RuleFlowGroupActivatedEvent event) {
+            changed();
+        }
+
+        @Override
+        public void afterRuleFlowGroupDeactivated(RuleFlowGroupDeactivatedEvent event) {
+            changed();
+        }
+    }
+
+    private class ProcessChanges extends DefaultProcessEventListener {
+
+        @Override
+        public void afterProcessStarted(ProcessStartedEvent event) {
+            changed();
+        }
+
+        @Override
+        public void afterProcessCompleted(ProcessCompletedEvent event) {
+            changed();
+        }
+
+        @Override
+        public void afterNodeTriggered(ProcessNodeTriggeredEvent event) {
+            changed();
+        }
+
+        @Override
+        public void afterNodeLeft(ProcessNodeLeftEvent event) {
+            changed();
+        }
+    }
+
+}
@@ -0,0 +1,201 @@
+package org.drools.alternative.persistence.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.drools.command.Command;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Queue of commands submitted asynchronously to one session.
+ *
+ * At most one drain task per session runs at a time. It takes all queued
+ * commands (up to {@link #MAX_BATCH_SIZE}) and commits them in a single
+ * transaction, so commit and snapshot costs are shared under bursty load
+ * while the submission order is kept. If the group fails, its commands are
+ * retried one by one so each future reports its own outcome.
+ */
+public class SessionCommandPipeline {
+
+    private static Logger log = LoggerFactory.getLogger(SessionCommandPipeline.class);
+
+    public static final int MAX_BATCH_SIZE = 256;
+
+    private final Executor executor;
+    private final Queue<PendingCommand<?>> queue = new ConcurrentLinkedQueue<PendingCommand<?>>();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    public SessionCommandPipeline(Executor executor) {
+        this.executor = executor;
+    }
+
+    public <T> Future<T> submit(SingleSessionCommandServiceImpl service, Command<T> command) {
+        PendingCommand<T> pending = new PendingCommand<T>(command);
+        queue.add(pending);
+        schedule(service);
+        return pending;
+    }
+
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * @return whether no command is queued or executing
+     */
+    public boolean isIdle() {
+        return queue.isEmpty() && !scheduled.get();
+    }
+
+    private void schedule(SingleSessionCommandServiceImpl service) {
+        if (scheduled.compareAndSet(false, true)) {
+            try {
+                executor.execute(new Drain(service));
+            } catch (RejectedExecutionException e) {
+                // the executor was shut down, nothing would drain the queue
+                scheduled.set(false);
+                PendingCommand<?> pending;
+                while ((pending = queue.poll()) != null) {
+                    pending.fail(e);
+                }
+            }
+        }
+    }
+
+    private class Drain implements Runnable {
+
+        private final SingleSessionCommandServiceImpl service;
+
+        Drain(SingleSessionCommandServiceImpl service) {
+            this.service = service;
+        }
+
+        public void run() {
+            try {
+                List<PendingCommand<?>> batch = new ArrayList<PendingCommand<?>>();
+                PendingCommand<?> pending;
+                while (batch.size() < MAX_BATCH_SIZE && (pending = queue.poll()) != null) {
+                    batch.add(pending);
+                }
+                if (!batch.isEmpty()) {
+                    execute(batch);
+                }
+            } finally {
+                scheduled.set(false);
+                // commands queued after the batch was taken
+                if (!queue.isEmpty()) {
+                    schedule(service);
+                }
+            }
+        }
+
+        private void execute(List<PendingCommand<?>> batch) {
+            List<Command<?>> commands = new ArrayList<Command<?>>(batch.size());
+            for (PendingCommand<?> pending : batch) {
+                commands.add(pending.command);
+            }
+            try {
+                List<Object> results = service.executeBatch(commands);
+                for (int i = 0; i < batch.size(); i++) {
+                    batch.get(i).complete(results.get(i));
+                }
+                if (log.isDebugEnabled())
+                    log.debug("Session {} committed {} queued commands", service.getSessionId(), batch.size());
+            } catch (RuntimeException e) {
+                if (batch.size() == 1) {
+                    batch.get(0).fail(e);
+                    return;
+                }
+                log.debug("Group commit of session {} failed, retrying commands one by one", service.getSessionId());
+                for (PendingCommand<?> pending : batch) {
+                    try {
+                        pending.complete(service.execute(pending.command));
+                    } catch (Throwable single) {
+                        pending.fail(single);
+                    }
+                }
+            } finally {
+                // an Error or a failing fallback must not leave callers waiting
+                for (PendingCommand<?> pending : batch) {
+                    pending.fail(new IllegalStateException("Command was not executed"));
+                }
+            }
+        }
+    }
+
+    /**
+     * Future completed by the drain task, only the first outcome is kept.
+     */
+    private static class PendingCommand<T> implements Future<T> {
+
+        private final Command<T> command;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private final AtomicBoolean completed = new AtomicBoolean();
+        private volatile T result;
+        private volatile Throwable failure;
+
+        PendingCommand(Command<T> command) {
+            this.command = command;
+        }
+
+        @SuppressWarnings("unchecked")
+        void complete(Object result) {
+            if (completed.compareAndSet(false, true)) {
+                this.result = (T) result;
+                done.countDown();
+            }
+        }
+
+        void fail(Throwable t) {
+            if (completed.compareAndSet(false, true)) {
+                this.failure = t;
+                done.countDown();
+            }
+        }
+
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            // queued commands are executed in order, they cannot be withdrawn
+            return false;
+        }
+
+        public boolean isCancelled() {
+            return false;
+        }
+
+        public boolean isDone() {
+            return done.getCount() == 0;
+        }
+
+        public T get() throws InterruptedException, ExecutionException {
+            done.await();
+            return outcome();
+        }
+
+        public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException,
+                TimeoutException {
+            if (!done.await(timeout, unit)) {
+                throw new TimeoutException();
+            }
+            return outcome();
+        }
+
+        private T outcome() throws ExecutionException {
+            if (failure != null) {
+                throw new ExecutionException(failure);
+            }
+            return result;
+        }
+    }
+
+}
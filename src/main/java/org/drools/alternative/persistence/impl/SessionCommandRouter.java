@@ -0,0 +1,147 @@
+package org.drools.alternative.persistence.impl;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.drools.KnowledgeBase;
+import org.drools.command.Command;
+import org.drools.runtime.Environment;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.tangosol.net.CacheFactory;
+import com.tangosol.net.InvocationService;
+import com.tangosol.net.Member;
+
+/**
+ * Routes the commands of each session to its owning member, so the session
+ * stays live in the owner's {@link KnowledgeSessionCache} and only commands
+ * and results cross the network instead of session snapshots.
+ *
+ * Owners are chosen by rendezvous hashing over the members running the
+ * invocation service: when a member leaves, only the sessions it owned move
+ * to other members, which reload them from the store on their next command.
+ * Every member routing a kbase registers a router under the same name.
+ *
+ * A command is only sent again when the member it was sent to did not run
+ * it, i.e. has no such router. When the owner leaves before answering, the
+ * command may already be committed there, so a
+ * {@link CommandOutcomeUnknownException} is thrown instead.
+ */
+public class SessionCommandRouter {
+
+    private static Logger log = LoggerFactory.getLogger(SessionCommandRouter.class);
+
+    public static final String INVOCATION_SERVICE = "InvocationService";
+
+    private static final ConcurrentMap<String, SessionCommandRouter> ROUTERS = new ConcurrentHashMap<String, SessionCommandRouter>();
+
+    private final String name;
+    private final KnowledgeBase kbase;
+    private final Environment env;
+    private final InvocationService service;
+
+    public SessionCommandRouter(String name, KnowledgeBase kbase, Environment env) {
+        this(name, kbase, env, (InvocationService) CacheFactory.getConfigurableCacheFactory().ensureService(
+                INVOCATION_SERVICE));
+    }
+
+    public SessionCommandRouter(String name, KnowledgeBase kbase, Environment env, InvocationService service) {
+        this.name = name;
+        this.kbase = kbase;
+        this.env = env;
+        this.service = service;
+        if (ROUTERS.putIfAbsent(name, this) != null) {
+            throw new IllegalArgumentException("Router " + name + " is already registered");
+        }
+    }
+
+    static SessionCommandRouter getRouter(String name) {
+        return ROUTERS.get(name);
+    }
+
+    public void close() {
+        ROUTERS.remove(name, this);
+    }
+
+    /**
+     * Executes the command on the member owning the session.
+     * 
+     * @throws CommandOutcomeUnknownException
+     *             if the owner left before answering
+     */
+    public <T> T execute(int sessionId, Command<T> command) {
+        // members running the service without this router, e.g. while starting
+        Set<Member> unrouted = new HashSet<Member>();
+        for (;;) {
+            Member owner = getOwner(sessionId, unrouted);
+            if (owner == null || owner.equals(service.getCluster().getLocalMember())) {
+                return executeLocally(sessionId, command);
+            }
+            if (log.isDebugEnabled())
+                log.debug("Routing command for session {} to member {}", sessionId, owner.getId());
+
+            Map result = service.query(new RoutedCommandInvocable(name, sessionId, command), Collections
+                    .singleton(owner));
+            if (result.containsKey(owner)) {
+                RoutedCommandInvocable.Outcome outcome = RoutedCommandInvocable.unwrap(result.get(owner));
+                if (outcome.isRouted()) {
+                    return outcome.<T> get();
+                }
+                log.warn("Member {} has no router {}, rerouting session {}", new Object[] { owner, name, sessionId });
+                unrouted.add(owner);
+            } else {
+                // the owner left before answering, it may have committed the command
+                throw new CommandOutcomeUnknownException(sessionId, "Owner " + owner + " of session " + sessionId
+                        + " left before answering, the command may have been executed");
+            }
+        }
+    }
+
+    /**
+     * @return the member owning the session, <code>null</code> if no member
+     *         runs the invocation service
+     */
+    public Member getOwner(int sessionId) {
+        return getOwner(sessionId, Collections.<Member> emptySet());
+    }
+
+    private Member getOwner(int sessionId, Set<Member> excluded) {
+        Set members = service.getInfo().getServiceMembers();
+        Member owner = null;
+        long best = Long.MIN_VALUE;
+        for (Object o : members) {
+            Member member = (Member) o;
+            if (excluded.contains(member)) {
+                continue;
+            }
+            long weight = weight(sessionId, member.getUid().hashCode());
+            if (owner == null || weight > best) {
+                owner = member;
+                best = weight;
+            }
+        }
+        return owner;
+    }
+
+    <T> T executeLocally(int sessionId, Command<T> command) {
+        // cheap once the session is cached on this member
+        return new SingleSessionCommandServiceImpl(sessionId, kbase, null, env).execute(command);
+    }
+
+    private static long weight(int sessionId, int memberHash) {
+        // 64 bit mix of both hashes, see MurmurHash3 finalizer
+        long h = ((long) sessionId << 32) ^ (memberHash & 0xffffffffL);
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+}
@@ -0,0 +1,179 @@
+package org.drools.alternative.persistence.impl;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.drools.alternative.persistence.PersistenceManager;
+import org.drools.alternative.persistence.impl.KnowledgeSessionCache.CachedSession;
+import org.drools.alternative.persistence.utils.DaemonThreadFactory;
+import org.drools.alternative.persistence.utils.SnapshotDelta;
+import org.drools.command.Context;
+import org.drools.command.impl.GenericCommand;
+import org.drools.domain.SessionDeltaInfo;
+import org.drools.domain.SessionInfo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Persists session snapshots as a base snapshot in {@link SessionInfo} plus a
+ * chain of {@link SessionDeltaInfo} entries, one per changed transaction.
+ *
+ * Once the chain grows past the configured size a background command folds it
+ * into a new base snapshot and removes the obsolete deltas.
+ */
+public class SessionDeltaStore {
+
+    private static Logger log = LoggerFactory.getLogger(SessionDeltaStore.class);
+
+    private final PersistenceManager cm;
+    private final int compactionSize;
+    private final ExecutorService compactor = Executors.newSingleThreadExecutor(new DaemonThreadFactory(
+            "session-delta-compactor"));
+
+    /**
+     * @param cm
+     *            manager of {@link SessionDeltaInfo}
+     * @param compactionSize
+     *            size in bytes of the delta chain that triggers compaction
+     */
+    public SessionDeltaStore(PersistenceManager cm, int compactionSize) {
+        this.cm = cm;
+        this.compactionSize = compactionSize;
+    }
+
+    /**
+     * Rebuilds the latest snapshot by replaying the deltas written after the
+     * base snapshot of the given info.
+     *
+     * @param base
+     *            the decoded base snapshot of the info
+     */
+    public Chain load(SessionInfo info, byte[] base) {
+        byte[] snapshot = base;
+        int sequence = info.getBaseSequence();
+        int size = 0;
+        SessionDeltaInfo delta;
+        while ((delta = (SessionDeltaInfo) cm.getById(SessionDeltaInfo.key(info.getId(), sequence + 1))) != null) {
+            snapshot = SnapshotDelta.apply(snapshot, delta.getData());
+            size += delta.getData().length;
+            sequence++;
+        }
+        if (log.isDebugEnabled())
+            log.debug("Session {} replayed up to delta {} from base {}",
+                    new Object[] { info.getId(), sequence, info.getBaseSequence() });
+        return new Chain(snapshot, sequence, size);
+    }
+
+    /**
+     * @return whether no other node appended a delta the session has not seen
+     */
+    public boolean isCurrent(CachedSession session) {
+        return cm.getVersion(SessionDeltaInfo.key(session.getInfo().getId(), session.getDeltaSequence() + 1)) < 0;
+    }
+
+    /**
+     * Writes the difference to the last snapshot of the session as the next
+     * delta.
+     *
+     * @return <code>false</code> if a full snapshot has to be written instead
+     */
+    public boolean append(CachedSession session, byte[] snapshot) {
+        if (session.getSnapshot() == null || session.isCompactionRequested()) {
+            return false;
+        }
+        byte[] delta = SnapshotDelta.diff(session.getSnapshot(), snapshot);
+        int sequence = session.getDeltaSequence() + 1;
+        cm.saveOrUpdate(new SessionDeltaInfo(session.getInfo().getId(), sequence, delta),
+                SessionDeltaInfo.key(session.getInfo().getId(), sequence));
+        session.setDeltaSequence(sequence);
+        session.setDeltaSize(session.getDeltaSize() + delta.length);
+        if (log.isDebugEnabled())
+            log.debug("Session {} delta {} written, {} of {} bytes", new Object[] { session.getInfo().getId(),
+                    sequence, delta.length, snapshot.length });
+        return true;
+    }
+
+    /**
+     * Removes the deltas folded into the new base snapshot of the session.
+     *
+     * @param previousBase
+     *            base sequence of the replaced snapshot
+     */
+    public void compacted(CachedSession session, int previousBase) {
+        int sessionId = session.getInfo().getId();
+        for (int sequence = previousBase + 1; sequence <= session.getDeltaSequence(); sequence++) {
+            cm.removeById(SessionDeltaInfo.key(sessionId, sequence));
+        }
+        session.setDeltaSize(0);
+        session.setCompactionRequested(false);
+        session.setCompactionScheduled(false);
+    }
+
+    /**
+     * @return whether the delta chain of the session is due for compaction
+     */
+    public boolean isCompactionDue(CachedSession session) {
+        return session.getDeltaSize() > compactionSize;
+    }
+
+    /**
+     * Folds the delta chain into a new base snapshot through the given
+     * command service, outside of the caller's transaction.
+     */
+    public void compactLater(final SingleSessionCommandServiceImpl service, CachedSession session) {
+        if (session.isCompactionScheduled()) {
+            return;
+        }
+        session.setCompactionScheduled(true);
+        compactor.execute(new Runnable() {
+            public void run() {
+                try {
+                    service.execute(new CompactSnapshotCommand());
+                } catch (RuntimeException e) {
+                    log.warn("Could not compact session " + service.getSessionId(), e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Replayed snapshot of a session and the position in its delta chain.
+     */
+    public static class Chain {
+
+        private final byte[] snapshot;
+        private final int sequence;
+        private final int size;
+
+        Chain(byte[] snapshot, int sequence, int size) {
+            this.snapshot = snapshot;
+            this.sequence = sequence;
+            this.size = size;
+        }
+
+        public byte[] getSnapshot() {
+            return snapshot;
+        }
+
+        public void restore(CachedSession session) {
+            session.setSnapshot(snapshot);
+            session.setDeltaSequence(sequence);
+            session.setDeltaSize(size);
+            session.setCompactionRequested(false);
+            session.setCompactionScheduled(false);
+        }
+    }
+
+    /**
+     * Makes the next snapshot of the session a full one.
+     */
+    public static class CompactSnapshotCommand implements GenericCommand<Void> {
+
+        private static final long serialVersionUID = 1L;
+
+        public Void execute(Context context) {
+            return null;
+        }
+    }
+
+}
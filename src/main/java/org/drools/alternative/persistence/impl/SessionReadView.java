@@ -0,0 +1,48 @@
+package org.drools.alternative.persistence.impl;
+
+import org.drools.command.impl.ContextImpl;
+import org.drools.command.impl.GenericCommand;
+import org.drools.command.impl.KnowledgeCommandContext;
+import org.drools.runtime.StatefulKnowledgeSession;
+
+/**
+ * Read only replica of a session, unmarshalled from one committed snapshot.
+ *
+ * Readers share the replica and serialize on it, never on the live session
+ * writers lock.
+ */
+public class SessionReadView {
+
+    private final byte[] snapshot;
+    private final StatefulKnowledgeSession ksession;
+    private final KnowledgeCommandContext context;
+    private boolean disposed;
+
+    public SessionReadView(byte[] snapshot, StatefulKnowledgeSession ksession) {
+        this.snapshot = snapshot;
+        this.ksession = ksession;
+        this.context = new KnowledgeCommandContext(new ContextImpl("ksession", null), null, null, ksession, null);
+    }
+
+    /**
+     * @return the committed snapshot the replica was built from
+     */
+    public byte[] getSnapshot() {
+        return snapshot;
+    }
+
+    public synchronized <T> T execute(GenericCommand<T> command) {
+        if (disposed) {
+            throw new IllegalStateException("Read view is disposed");
+        }
+        return command.execute(context);
+    }
+
+    public synchronized void dispose() {
+        if (!disposed) {
+            disposed = true;
+            ksession.dispose();
+        }
+    }
+
+}
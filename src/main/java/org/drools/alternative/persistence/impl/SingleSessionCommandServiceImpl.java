@@ -1,16 +1,22 @@
 package org.drools.alternative.persistence.impl;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
-import java.util.IdentityHashMap;
-import java.util.Map;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
 
 import org.drools.KnowledgeBase;
 import org.drools.RuleBase;
 import org.drools.SessionConfiguration;
+import org.drools.alternative.persistence.PersistenceDrools;
 import org.drools.alternative.persistence.PersistenceManager;
+import org.drools.alternative.persistence.ReadOnlyCommand;
 import org.drools.alternative.persistence.TransactionManager;
 import org.drools.alternative.persistence.TransactionSynchronization;
+import org.drools.alternative.persistence.impl.KnowledgeSessionCache.CachedSession;
+import org.drools.alternative.persistence.impl.SessionDeltaStore.CompactSnapshotCommand;
 import org.drools.alternative.persistence.utils.SessionMarshallingHelper;
 import org.drools.command.Command;
 import org.drools.command.CommandService;
@@ -18,6 +24,8 @@ import org.drools.command.Context;
 import org.drools.command.impl.ContextImpl;
 import org.drools.command.impl.GenericCommand;
 import org.drools.command.impl.KnowledgeCommandContext;
+import org.drools.command.runtime.DisposeCommand;
+import org.drools.command.runtime.SetGlobalCommand;
 import org.drools.common.EndOperationListener;
 import org.drools.common.InternalKnowledgeRuntime;
 import org.drools.domain.SessionInfo;
@@ -28,6 +36,7 @@ import org.drools.runtime.Environment;
 import org.drools.runtime.EnvironmentName;
 import org.drools.runtime.KnowledgeSessionConfiguration;
 import org.drools.runtime.StatefulKnowledgeSession;
+import org.jbpm.process.instance.InternalProcessRuntime;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.transaction.support.AbstractPlatformTransactionManager;
@@ -37,16 +46,16 @@ public class SingleSessionCommandServiceImpl implements CommandService {
     private Logger logger = LoggerFactory.getLogger(SingleSessionCommandServiceImpl.class);
 
     private Environment env;
-    private SessionMarshallingHelper marshallingHelper;
-    private SessionInfo sessionInfo;
-    private StatefulKnowledgeSession ksession;
+    private CachedSession session;
+    private KnowledgeSessionCache sessionCache;
+    private SessionDeltaStore deltaStore;
+    private KnowledgeSessionPool sessionPool;
+    private ConflictRetryPolicy retryPolicy;
+    private SnapshotCodec codec;
     private KnowledgeCommandContext kContext;
-    private volatile boolean doRollback;
     private TransactionManager txm;
     private PersistenceManager cm;
 
-    private static Map<Object, Object> synchronizations = Collections.synchronizedMap(new IdentityHashMap<Object, Object>());
-
     public SingleSessionCommandServiceImpl(RuleBase ruleBase, SessionConfiguration conf, Environment env) {
         this(new KnowledgeBaseImpl(ruleBase), conf, env);
     }
@@ -56,30 +65,37 @@ public class SingleSessionCommandServiceImpl implements CommandService {
     }
 
     public SingleSessionCommandServiceImpl(KnowledgeBase kbase, KnowledgeSessionConfiguration conf, Environment env) {
-        if (conf == null) {
-            conf = new SessionConfiguration();
-        }        
         this.env = env;             
 
         checkEnvironment(this.env);
 
-        this.sessionInfo = new SessionInfo();
+        SessionInfo sessionInfo = new SessionInfo();
 
         initTransactionManager(this.env);
 
-        ReteooStatefulSession session = (ReteooStatefulSession) ((KnowledgeBaseImpl) kbase).ruleBase.newStatefulSession(
-                (SessionConfiguration) conf, this.env);
-        this.ksession = new StatefulKnowledgeSessionImpl(session, kbase);
+        StatefulKnowledgeSession ksession;
+        if (conf == null && this.sessionPool != null) {
+            conf = new SessionConfiguration();
+            ksession = this.sessionPool.take(kbase);
+        } else {
+            if (conf == null) {
+                conf = new SessionConfiguration();
+            }
+            ReteooStatefulSession rsession = (ReteooStatefulSession) ((KnowledgeBaseImpl) kbase).ruleBase
+                    .newStatefulSession((SessionConfiguration) conf, this.env);
+            ksession = new StatefulKnowledgeSessionImpl(rsession, kbase);
+        }
+
+        this.session = new CachedSession(ksession, new SessionMarshallingHelper(ksession, conf), sessionInfo);
 
-        this.kContext = new KnowledgeCommandContext(new ContextImpl("ksession", null), null, null, this.ksession, null);
+        this.kContext = new KnowledgeCommandContext(new ContextImpl("ksession", null), null, null, ksession, null);
 
         ((DefaultJDKTimerService) ((StatefulKnowledgeSessionImpl) ksession).session.getTimerService())
                 .setCommandExecutor(this);
 
-        this.marshallingHelper = new SessionMarshallingHelper(this.ksession, conf);
-        ((StatefulKnowledgeSessionImpl) this.ksession).session.setEndOperationListener(new EndOperationListenerImpl(
-                this.sessionInfo));
+        ((StatefulKnowledgeSessionImpl) ksession).session.setEndOperationListener(new EndOperationListenerImpl());
 
+        byte[] snapshot;
         try {
             this.txm.begin();
 
@@ -89,9 +105,17 @@ public class SingleSessionCommandServiceImpl implements CommandService {
             
             sessionInfo.setId((int)cm.generateIdentity());
 
-            sessionInfo.setData(this.marshallingHelper.getSnapshot());
+            snapshot = this.session.getMarshallingHelper().getSnapshot();
 
-            cm.saveOrUpdate(sessionInfo, sessionInfo.getId());
+            encode(kbase, sessionInfo, snapshot);
+
+            this.session.setInfo((SessionInfo) cm.saveOrUpdate(sessionInfo, sessionInfo.getId()));
+
+            this.session.getChangeTracker().snapshotTaken();
+
+            if (this.deltaStore != null) {
+                this.session.setSnapshot(snapshot);
+            }
 
             this.txm.commit();
 
@@ -105,23 +129,44 @@ public class SingleSessionCommandServiceImpl implements CommandService {
         }
 
         // update the session id to be the same as the session info id
-        ((StatefulKnowledgeSessionImpl) ksession).session.setId(this.sessionInfo.getId());
+        ((StatefulKnowledgeSessionImpl) ksession).session.setId(sessionInfo.getId());
+
+        this.session.setCommittedSnapshot(snapshot);
+
+        if (this.sessionCache != null) {
+            this.sessionCache.putIfAbsent(sessionInfo.getId(), this.session);
+            this.sessionCache.resize(this.session, snapshot.length);
+        }
 
     }
 
     public SingleSessionCommandServiceImpl(int sessionId, KnowledgeBase kbase, KnowledgeSessionConfiguration conf,
             Environment env) {
-        
-        if (conf == null) {
-            conf = new SessionConfiguration();
-        }
 
         this.env = env;
 
         checkEnvironment(this.env);
 
+        if (conf == null) {
+            conf = new SessionConfiguration();
+        } else {
+            // pooled sessions are built with the default configuration
+            this.sessionPool = null;
+        }
+
         initTransactionManager(this.env);
 
+        if (this.sessionCache != null) {
+            CachedSession cached = this.sessionCache.get(sessionId);
+            if (cached != null && cached.getMarshallingHelper().getKbase() == kbase) {
+                // validated against the stored version on first command
+                this.session = cached;
+                this.kContext = new KnowledgeCommandContext(new ContextImpl("ksession", null), null, null,
+                        cached.getKsession(), null);
+                return;
+            }
+        }
+
         initKsession(sessionId, kbase, conf);
     }
 
@@ -129,15 +174,20 @@ public class SingleSessionCommandServiceImpl implements CommandService {
 
         cm.initConnection();      
 
-        if (!doRollback && this.ksession != null) {
-            return;
-            // nothing to initialise
+        if (this.session != null) {
+            if (this.session.isValid(cm.getVersion(sessionId))
+                    && (this.deltaStore == null || this.deltaStore.isCurrent(this.session))) {
+                // nothing to initialise
+                attach(this.session.getKsession());
+                return;
+            }
+            if (logger.isDebugEnabled())
+                logger.debug("Reloading stale session {}", this.session.getInfo());
         }
 
-        this.doRollback = false;
-
+        SessionInfo sessionInfo;
         try {
-            this.sessionInfo = (SessionInfo) cm.getById(sessionId);
+            sessionInfo = (SessionInfo) cm.getById(sessionId);
         } catch (Exception e) {
             throw new RuntimeException("Could not find session data for id " + sessionId, e);
         }
@@ -146,73 +196,249 @@ public class SingleSessionCommandServiceImpl implements CommandService {
             throw new RuntimeException("Could not find session data for id " + sessionId);
         }
 
-        if (this.marshallingHelper == null) {
+        SessionDeltaStore.Chain chain = null;
+        byte[] snapshot = decode(kbase, sessionInfo);
+        if (this.deltaStore != null) {
+            chain = this.deltaStore.load(sessionInfo, snapshot);
+            snapshot = chain.getSnapshot();
+        }
+
+        if (this.session == null) {
             // this should only happen when this class is first constructed
-            this.marshallingHelper = new SessionMarshallingHelper(kbase, conf, env);
+            SessionMarshallingHelper marshallingHelper = new SessionMarshallingHelper(kbase, conf, env);
+            StatefulKnowledgeSession ksession = marshallingHelper.loadSnapshot(snapshot,
+                    this.sessionPool != null ? this.sessionPool.take(kbase) : null);
+            this.session = new CachedSession(ksession, marshallingHelper, sessionInfo);
+            if (this.sessionCache != null) {
+                this.sessionCache.put(sessionId, this.session);
+            }
+        } else {
+            // reuse the existing session
+            this.session.getMarshallingHelper().loadSnapshot(snapshot, this.session.getKsession());
+            this.session.setInfo(sessionInfo);
+        }
+        if (chain != null) {
+            chain.restore(this.session);
+        }
+        this.session.setStale(false);
+        this.session.getChangeTracker().snapshotTaken();
+        this.session.setCommittedSnapshot(snapshot);
+        if (this.sessionCache != null) {
+            this.sessionCache.resize(this.session, snapshot.length);
         }
 
-        // if this.ksession is null, it'll create a new one, else it'll use the
-        // existing one
-        this.ksession = this.marshallingHelper.loadSnapshot(this.sessionInfo.getData(), this.ksession);
+        StatefulKnowledgeSession ksession = this.session.getKsession();
 
         // update the session id to be the same as the session info id
-        ((StatefulKnowledgeSessionImpl) ksession).session.setId(this.sessionInfo.getId());
-
-        ((StatefulKnowledgeSessionImpl) this.ksession).session.setEndOperationListener(new EndOperationListenerImpl(
-                this.sessionInfo));
+        ((StatefulKnowledgeSessionImpl) ksession).session.setId(sessionInfo.getId());
 
-        ((DefaultJDKTimerService) ((StatefulKnowledgeSessionImpl) ksession).session.getTimerService())
-                .setCommandExecutor(this);
+        attach(ksession);
 
         if (this.kContext == null) {
             // this should only happen when this class is first constructed
-            this.kContext = new KnowledgeCommandContext(new ContextImpl("ksession", null), null, null, this.ksession, null);
+            this.kContext = new KnowledgeCommandContext(new ContextImpl("ksession", null), null, null, ksession, null);
         }
 
     }
 
+    /**
+     * Routes end of operation and timer callbacks of a (possibly shared)
+     * session to this command service.
+     */
+    private void attach(StatefulKnowledgeSession ksession) {
+        ((StatefulKnowledgeSessionImpl) ksession).session.setEndOperationListener(new EndOperationListenerImpl());
+
+        ((DefaultJDKTimerService) ((StatefulKnowledgeSessionImpl) ksession).session.getTimerService())
+                .setCommandExecutor(this);
+    }
+
     public Context getContext() {
         return this.kContext;
     }
 
-    public synchronized <T> T execute(Command<T> command) {
-        try {
-            txm.begin();
+    public <T> T execute(Command<T> command) {
+        // read your own writes inside a transaction that changed the session
+        if (command instanceof ReadOnlyCommand && txm.getResource(this) == null) {
+            SessionReadView view = readView(activeSession());
+            if (view != null) {
+                return view.execute((GenericCommand<T>) command);
+            }
+        }
+        return (T) executeBatch(Collections.<Command<?>> singletonList(command)).get(0);
+    }
+
+    /**
+     * Queues the command for asynchronous execution. Commands queued for the
+     * same session run in submission order, consecutive ones sharing a
+     * transaction and a snapshot. See
+     * {@link org.drools.alternative.persistence.utils.EnvironmentUtils#enableAsyncSubmit(Environment, int)}.
+     */
+    public <T> Future<T> submit(Command<T> command) {
+        Executor commandExecutor = (Executor) env.get(PersistenceDrools.COMMAND_EXECUTOR);
+        if (commandExecutor == null) {
+            throw new IllegalStateException("Command executor must be present in environment");
+        }
+        return session.getPipeline(commandExecutor).submit(this, command);
+    }
 
-            initKsession(this.sessionInfo.getId(), this.marshallingHelper.getKbase(), this.marshallingHelper.getConf());          
+    /**
+     * Executes the commands in order within a single transaction, so the
+     * session is validated and snapshotted once for the whole batch. Either
+     * all commands take effect or none does.
+     * 
+     * @return the result of each command, in order
+     */
+    public List<Object> executeBatch(List<? extends Command<?>> commands) {
+        for (int attempt = 1;; attempt++) {
+            try {
+                return executeBatchOnce(commands);
+            } catch (RuntimeException e) {
+                // an outer transaction is rollback only, its owner has to retry
+                if (retryPolicy == null || !retryPolicy.shouldRetry(e, attempt)
+                        || txm.getStatus() != TransactionManager.STATUS_NO_TRANSACTION
+                        || !retryPolicy.backoff(attempt)) {
+                    throw e;
+                }
+            }
+        }
+    }
 
-            registerRollbackSync(true);
+    private List<Object> executeBatchOnce(List<? extends Command<?>> commands) {
+        CachedSession current = activeSession();
+        // command services of the same session id share the cached session
+        synchronized (current) {
+            if (current.isPassivated()) {
+                // passivated while waiting for the monitor
+                return executeBatchOnce(commands);
+            }
+            current.touch();
+            try {
+                txm.begin();
 
-            T result = ((GenericCommand<T>) command).execute(this.kContext);
+                initKsession(getSessionId(), this.session.getMarshallingHelper().getKbase(),
+                        this.session.getMarshallingHelper().getConf());
 
-            txm.commit();
+                registerRollbackSync(true);
 
-            return result;
+                List<Object> results = new ArrayList<Object>(commands.size());
+                boolean disposed = false;
+                for (Command<?> command : commands) {
+                    results.add(executeCommand(command));
+                    disposed |= command instanceof DisposeCommand;
+                }
 
+                txm.commit();
+
+                if (disposed) {
+                    evict();
+                } else if (this.deltaStore != null && this.deltaStore.isCompactionDue(this.session)) {
+                    this.deltaStore.compactLater(this, this.session);
+                }
+
+                return results;
+
+            } catch (Exception t1) {
+                try {
+                    txm.rollback();
+                } catch (Exception t2) {
+                    throw new RuntimeException("Could not commit session or rollback", t2);
+                }
+                throw new RuntimeException("Could not commit session", t1);
+            }
+        }
+    }
+
+    /**
+     * Read only commands run against the last committed snapshot of this
+     * node, without transaction nor session lock. Only building a new replica
+     * needs a transaction, as strategies may read from the store.
+     */
+    private SessionReadView readView(CachedSession current) {
+        SessionReadView view = current.getCurrentReadView();
+        if (view != null) {
+            return view;
+        }
+        try {
+            txm.begin();
+            cm.initConnection();
+            view = sessionCache != null ? sessionCache.getReadView(current) : current.getReadView();
+            txm.commit();
+            return view;
         } catch (Exception t1) {
             try {
                 txm.rollback();
             } catch (Exception t2) {
-                throw new RuntimeException("Could not commit session or rollback", t2);
+                throw new RuntimeException("Could not build read view or rollback", t2);
             }
-            throw new RuntimeException("Could not commit session", t1);
+            throw new RuntimeException("Could not build read view", t1);
+        }
+    }
+
+    /**
+     * @return the cached session, reloaded if it was passivated
+     */
+    private synchronized CachedSession activeSession() {
+        CachedSession current = this.session;
+        if (!current.isPassivated()) {
+            return current;
+        }
+        int sessionId = current.getInfo().getId();
+        KnowledgeBase kbase = current.getMarshallingHelper().getKbase();
+        if (logger.isDebugEnabled())
+            logger.debug("Reactivating passivated session {}", sessionId);
+
+        CachedSession cached = this.sessionCache.get(sessionId);
+        if (cached != null && cached.getMarshallingHelper().getKbase() == kbase) {
+            // already reactivated by another command service
+            this.session = cached;
+            this.kContext = new KnowledgeCommandContext(new ContextImpl("ksession", null), null, null,
+                    cached.getKsession(), null);
+        } else {
+            this.session = null;
+            this.kContext = null;
+            initKsession(sessionId, kbase, current.getMarshallingHelper().getConf());
+        }
+        return this.session;
+    }
+
+    private Object executeCommand(Command<?> command) {
+        if (command instanceof CompactSnapshotCommand) {
+            this.session.setCompactionRequested(true);
+            this.session.getChangeTracker().changed();
+        }
+
+        Object result = ((GenericCommand<?>) command).execute(this.kContext);
+
+        if (command instanceof SetGlobalCommand) {
+            // globals are part of the snapshot but raise no events
+            this.session.getChangeTracker().changed();
         }
+        return result;
     }
 
     public void dispose() {
-        if (ksession != null) {
-            ksession.dispose();            
+        evict();
+        if (session != null) {
+            session.getKsession().dispose();            
         }
     }
 
     public int getSessionId() {
-        return sessionInfo.getId();
+        return session.getInfo().getId();
+    }
+
+    private void evict() {
+        if (sessionCache != null && session != null) {
+            sessionCache.remove(getSessionId(), session);
+        }
     }
 
     private void registerRollbackSync(boolean disposable) {
-        if (synchronizations.get(this) == null) {
-            txm.registerTransactionSynchronization(new SynchronizationImpl(this));
-            synchronizations.put(this, this);
+        // bound to the transaction of the calling thread, no shared state
+        if (txm.getResource(this) == null) {
+            SynchronizationImpl synchronization = new SynchronizationImpl(this);
+            txm.registerTransactionSynchronization(synchronization);
+            txm.putResource(this, synchronization);
         }
     }
 
@@ -227,58 +453,142 @@ public class SingleSessionCommandServiceImpl implements CommandService {
 
         public void afterCompletion(int status) {
             if (status != TransactionManager.STATUS_COMMITTED) {
+                this.service.session.rolledBack();
                 this.service.rollback();
-            }            
+            } else {
+                this.service.session.committed();
+            }
+            StatefulKnowledgeSessionImpl ksession = getActiveKsession();
+            if (ksession != null) {
+                InternalProcessRuntime processRuntime = (InternalProcessRuntime) ksession.getProcessRuntime();
+                ProcessInstanceManagerImpl processInstanceManager = (ProcessInstanceManagerImpl) processRuntime
+                        .getProcessInstanceManager();
+                WorkItemManagerImpl workItemManager = (WorkItemManagerImpl) ksession.session.getWorkItemManager();
+                if (status == TransactionManager.STATUS_COMMITTED) {
+                    processInstanceManager.committed();
+                    workItemManager.committed();
+                } else {
+                    processInstanceManager.rolledBack();
+                    workItemManager.rolledBack();
+                }
+            }
             // always cleanup thread local whatever the result
-            SingleSessionCommandServiceImpl.synchronizations.remove(this.service);            
+            this.service.txm.removeResource(this.service);
+        }
+
+        public void beforeCommit() {
+            CachedSession session = this.service.session;
+            synchronized (session) {
+                if (session.isPassivated()) {
+                    // unchanged in this transaction, already disposed
+                    return;
+                }
+                // a failed write, e.g. a version conflict, rolls back the transaction
+                StatefulKnowledgeSessionImpl ksession = ((StatefulKnowledgeSessionImpl) session.getKsession());
+                if (ksession != null) {
+                    ((InternalKnowledgeRuntime) ksession).getProcessRuntime().clearProcessInstances();
+                    ((WorkItemManagerImpl) ksession.session.getWorkItemManager()).clearWorkItems();
+                }
+                this.service.snapshot();
+            }
         }
 
         public void beforeCompletion() {
-            StatefulKnowledgeSessionImpl ksession = ((StatefulKnowledgeSessionImpl) this.service.ksession);
-            // clean up cached process and work item instances
-            if (ksession != null) {
-                ((InternalKnowledgeRuntime) ksession).getProcessRuntime().clearProcessInstances();
-                ((WorkItemManagerImpl) ksession.session.getWorkItemManager()).clearWorkItems();
-            }            
+            // writes are flushed in beforeCommit, failures here would be ignored
+        }
+
+        private StatefulKnowledgeSessionImpl getActiveKsession() {
+            CachedSession session = this.service.session;
+            synchronized (session) {
+                StatefulKnowledgeSessionImpl ksession = ((StatefulKnowledgeSessionImpl) session.getKsession());
+                return session.isPassivated() ? null : ksession;
+            }
         }
 
     }
 
     public class EndOperationListenerImpl implements EndOperationListener {
-        private SessionInfo info;
-
-        public EndOperationListenerImpl(SessionInfo info) {
-            this.info = info;
-        }
 
         @Override
         public void endOperation(InternalKnowledgeRuntime wm) {            
-            logger.debug("{} is finishing",sessionInfo.toString());
-            this.info.setLastModificationDate(new Date(wm.getLastIdleTimestamp()));
-
-            SessionMarshallingHelper helper = new SessionMarshallingHelper(
-                    (StatefulKnowledgeSession) wm, wm.getSessionConfiguration());
-            info.setData(helper.getSnapshot());
-            
-            cm.saveOrUpdate(info, info.getId());
-            
-            logger.debug("{} finished", sessionInfo.toString());
+            // the snapshot is taken once per transaction in beforeCommit
+            session.getInfo().setLastModificationDate(new Date(wm.getLastIdleTimestamp()));
         }
       
     }
 
+    /**
+     * Writes the session snapshot, unless nothing has changed since the last
+     * one.
+     */
+    private void snapshot() {
+        SessionChangeTracker changeTracker = session.getChangeTracker();
+        if (!changeTracker.isDirty()) {
+            logger.debug("{} is unchanged, skipping snapshot", session.getInfo());
+            return;
+        }
+        SessionInfo info = session.getInfo();
+        logger.debug("{} is finishing", info);
+
+        byte[] snapshot = session.getMarshallingHelper().getSnapshot();
+        session.setPendingSnapshot(snapshot);
+        if (deltaStore != null && deltaStore.append(session, snapshot)) {
+            session.setSnapshot(snapshot);
+        } else {
+            int previousBase = info.getBaseSequence();
+            encode(session.getMarshallingHelper().getKbase(), info, snapshot);
+            info.setBaseSequence(session.getDeltaSequence());
+
+            // keep the written version to validate the cached session against
+            session.setInfo((SessionInfo) cm.saveOrUpdate(info, info.getId()));
+
+            if (deltaStore != null) {
+                deltaStore.compacted(session, previousBase);
+                session.setSnapshot(snapshot);
+            }
+        }
+        changeTracker.snapshotTaken();
+        if (sessionCache != null) {
+            sessionCache.resize(session, snapshot.length);
+        }
+
+        logger.debug("{} finished", session.getInfo());
+    }
+
+    private void encode(KnowledgeBase kbase, SessionInfo info, byte[] snapshot) {
+        if (codec != null) {
+            codec.encode(kbase, info, snapshot);
+        } else {
+            info.setData(snapshot);
+        }
+    }
+
+    private byte[] decode(KnowledgeBase kbase, SessionInfo info) {
+        return codec != null ? codec.decode(kbase, info) : info.getData();
+    }
+
     private void rollback() {
-        this.doRollback = true;
+        this.session.setStale(true);
     }
 
     private void checkEnvironment(Environment env) {       
         if (env.get(EnvironmentName.TRANSACTION_MANAGER) == null) {
             throw new IllegalArgumentException("Transaction Manager must be present in environment");
         }
-        cm = PersistenceDroolsImpl.createCacheManagerInstance(SessionInfo.class,env);        
+        cm = PersistenceDroolsImpl.getPersistenceManager(SessionInfo.class,env);        
+        sessionCache = (KnowledgeSessionCache) env.get(PersistenceDrools.SESSION_CACHE);
+        deltaStore = (SessionDeltaStore) env.get(PersistenceDrools.SESSION_DELTA_STORE);
+        sessionPool = (KnowledgeSessionPool) env.get(PersistenceDrools.SESSION_POOL);
+        retryPolicy = (ConflictRetryPolicy) env.get(PersistenceDrools.RETRY_POLICY);
+        codec = (SnapshotCodec) env.get(PersistenceDrools.SNAPSHOT_CODEC);
     }
 
     private void initTransactionManager(Environment env) {
+        // shared by all sessions, it keeps the transaction state per thread
+        this.txm = (TransactionManager) env.get(PersistenceDrools.DROOLS_TRANSACTION_MANAGER);
+        if (this.txm != null) {
+            return;
+        }
         Object tm = env.get(EnvironmentName.TRANSACTION_MANAGER);
         try {
             this.txm = new DroolsSpringTransactionManager((AbstractPlatformTransactionManager) tm);
@@ -0,0 +1,155 @@
+package org.drools.alternative.persistence.impl;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import org.drools.alternative.persistence.PersistenceManager;
+import org.drools.alternative.persistence.utils.ByteArrayCache;
+import org.drools.alternative.persistence.utils.ContentChunker;
+import org.drools.alternative.persistence.utils.MarshallingBufferPool;
+import org.drools.domain.SnapshotChunk;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stores snapshots as lists of {@link SnapshotChunk}, each distinct chunk
+ * once under its content hash with the number of snapshots referring to it.
+ *
+ * Sessions of the same kbase share most of their snapshot, so the stored
+ * volume grows with the unique content rather than the number of sessions.
+ * Reference counts are only touched for chunks entering or leaving a
+ * snapshot, so the chunks shared by many sessions are not written when one of
+ * them changes. A chunk entering or leaving a snapshot still updates its
+ * count, which is shared with every other snapshot holding the chunk: the
+ * count is changed in place by
+ * {@link PersistenceManager#addReferences(Object, int)}, so snapshots
+ * changing the same chunk at once queue on it instead of failing with a
+ * version conflict.
+ *
+ * Chunks never change once written, so the recently read ones are kept in a
+ * node local cache bounded to {@link #CACHE_SIZE} bytes.
+ */
+public class SnapshotChunkStore {
+
+    private static Logger log = LoggerFactory.getLogger(SnapshotChunkStore.class);
+
+    public static final int CACHE_SIZE = 16 * 1024 * 1024;
+
+    private static final String SEPARATOR = ",";
+
+    private final PersistenceManager cm;
+
+    private final ByteArrayCache cache = new ByteArrayCache(CACHE_SIZE);
+
+    /**
+     * @param cm
+     *            manager of {@link SnapshotChunk}
+     */
+    public SnapshotChunkStore(PersistenceManager cm) {
+        this.cm = cm;
+    }
+
+    /**
+     * Stores the chunks of the snapshot that are new and releases those of
+     * the previous snapshot that are gone.
+     *
+     * @param previous
+     *            chunk list of the snapshot being replaced, <code>null</code>
+     *            if none
+     * @return the chunk list of the snapshot
+     */
+    public String write(String previous, byte[] snapshot) {
+        int[] cuts = ContentChunker.split(snapshot);
+        StringBuilder chunkIds = new StringBuilder(cuts.length * 41);
+        Set<String> referenced = new LinkedHashSet<String>();
+        Set<String> released = parse(previous);
+        int start = 0;
+        int written = 0;
+        for (int end : cuts) {
+            String id = ContentChunker.contentHash(snapshot, start, end - start);
+            if (chunkIds.length() > 0) {
+                chunkIds.append(SEPARATOR);
+            }
+            chunkIds.append(id);
+            // a snapshot holds one reference per distinct chunk
+            if (referenced.add(id) && !released.remove(id)) {
+                acquire(id, Arrays.copyOfRange(snapshot, start, end));
+                written++;
+            }
+            start = end;
+        }
+        for (String id : released) {
+            release(id);
+        }
+        if (log.isDebugEnabled())
+            log.debug("Snapshot of {} bytes stored as {} chunks, {} added and {} released", new Object[] {
+                    snapshot.length, cuts.length, written, released.size() });
+        return chunkIds.toString();
+    }
+
+    /**
+     * @return the snapshot assembled from its chunks
+     */
+    public byte[] read(String chunkIds) {
+        MarshallingBufferPool.Buffer buffer = MarshallingBufferPool.acquire(0);
+        try {
+            for (String id : chunkIds.split(SEPARATOR)) {
+                byte[] chunk = getChunk(id);
+                buffer.write(chunk, 0, chunk.length);
+            }
+            return buffer.detach();
+        } finally {
+            MarshallingBufferPool.release(buffer);
+        }
+    }
+
+    /**
+     * Releases all chunks of a snapshot that is removed or no longer chunked.
+     */
+    public void release(String chunkIds) {
+        for (String id : parse(chunkIds)) {
+            release(id);
+        }
+    }
+
+    private Set<String> parse(String chunkIds) {
+        if (chunkIds == null || chunkIds.length() == 0) {
+            return new LinkedHashSet<String>();
+        }
+        Set<String> ids = new LinkedHashSet<String>();
+        Collections.addAll(ids, chunkIds.split(SEPARATOR));
+        return ids;
+    }
+
+    private void acquire(String id, byte[] data) {
+        if (cm.addReferences(id, 1) < 0) {
+            // two snapshots adding the same new chunk at once conflict here
+            SnapshotChunk chunk = new SnapshotChunk(id, data);
+            chunk.setReferenceCount(1);
+            cm.saveOrUpdate(chunk, id);
+        }
+    }
+
+    private void release(String id) {
+        if (cm.addReferences(id, -1) < 0) {
+            log.warn("Released snapshot chunk {} is missing", id);
+        }
+    }
+
+    private byte[] getChunk(String id) {
+        byte[] chunk = cache.get(id);
+        if (chunk != null) {
+            return chunk;
+        }
+        SnapshotChunk stored = (SnapshotChunk) cm.getById(id);
+        if (stored == null) {
+            throw new IllegalStateException("Could not find snapshot chunk " + id);
+        }
+        chunk = stored.getData();
+        cache.put(id, chunk);
+        return chunk;
+    }
+
+}
@@ -0,0 +1,255 @@
+package org.drools.alternative.persistence.impl;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.drools.KnowledgeBase;
+import org.drools.alternative.persistence.PersistenceManager;
+import org.drools.alternative.persistence.TransactionManager;
+import org.drools.alternative.persistence.utils.DaemonThreadFactory;
+import org.drools.alternative.persistence.utils.SnapshotCompression;
+import org.drools.domain.SessionInfo;
+import org.drools.domain.SnapshotDictionary;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Encodes the snapshot stored in a {@link SessionInfo} according to the
+ * configured compression, recording the encoding in the info itself so any
+ * node decodes it whatever its own setting.
+ *
+ * With dictionary compression the first large enough snapshot written for a
+ * kbase trains its dictionary. The dictionary is stored in its own
+ * transaction in the background and only used once committed, so no stored
+ * snapshot ever refers to a missing dictionary; snapshots written meanwhile
+ * fall back to plain deflate. A node loading a session compressed with a
+ * dictionary of another node adopts that dictionary for the kbase instead of
+ * training its own.
+ *
+ * Only base snapshots are compressed, delta chain links stay as they are.
+ *
+ * When chunking is on, base snapshots are stored through a
+ * {@link SnapshotChunkStore} instead, uncompressed so that equal content
+ * still yields equal chunks.
+ */
+public class SnapshotCodec {
+
+    private static Logger log = LoggerFactory.getLogger(SnapshotCodec.class);
+
+    public static final int NONE = 0;
+    public static final int DEFLATE = 1;
+    public static final int DICTIONARY = 2;
+
+    /** Snapshots of fresh sessions make poor dictionaries, smaller ones are not sampled */
+    public static final int MIN_SAMPLE_SIZE = 4 * 1024;
+
+    private final PersistenceManager cm;
+    private final TransactionManager txm;
+    private final SnapshotChunkStore chunkStore;
+    private volatile int compression = NONE;
+    private volatile boolean chunked;
+
+    private final ConcurrentMap<String, byte[]> dictionaries = new ConcurrentHashMap<String, byte[]>();
+    // dictionary of each kbase, trained or adopted
+    private final Map<KnowledgeBase, KbaseDictionary> kbaseDictionaries = new WeakHashMap<KnowledgeBase, KbaseDictionary>();
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(new DaemonThreadFactory(
+            "snapshot-dictionary-writer"));
+
+    /**
+     * @param cm
+     *            manager of {@link SnapshotDictionary}
+     */
+    public SnapshotCodec(PersistenceManager cm, TransactionManager txm, SnapshotChunkStore chunkStore) {
+        this.cm = cm;
+        this.txm = txm;
+        this.chunkStore = chunkStore;
+    }
+
+    public int getCompression() {
+        return compression;
+    }
+
+    /**
+     * @param compression
+     *            {@link #NONE}, {@link #DEFLATE} or {@link #DICTIONARY}, for
+     *            snapshots written from now on
+     */
+    public void setCompression(int compression) {
+        if (compression < NONE || compression > DICTIONARY) {
+            throw new IllegalArgumentException("Unknown compression " + compression);
+        }
+        this.compression = compression;
+    }
+
+    public boolean isChunked() {
+        return chunked;
+    }
+
+    /**
+     * @param chunked
+     *            whether snapshots written from now on are deduplicated
+     *            through the chunk store, taking precedence over compression
+     */
+    public void setChunked(boolean chunked) {
+        this.chunked = chunked;
+    }
+
+    /**
+     * Sets the given snapshot as the data of the info, encoded with the
+     * configured compression.
+     */
+    public void encode(KnowledgeBase kbase, SessionInfo info, byte[] snapshot) {
+        if (chunked) {
+            info.setChunkIds(chunkStore.write(info.getChunkIds(), snapshot));
+            info.setData(null);
+            info.setCompression(NONE);
+            info.setDictionaryId(null);
+            return;
+        }
+        if (info.getChunkIds() != null) {
+            chunkStore.release(info.getChunkIds());
+            info.setChunkIds(null);
+        }
+        int mode = compression;
+        String dictionaryId = null;
+        if (mode == DICTIONARY) {
+            dictionaryId = getDictionaryId(kbase, snapshot);
+            if (dictionaryId == null) {
+                mode = DEFLATE;
+            }
+        }
+        switch (mode) {
+        case DICTIONARY:
+            info.setData(SnapshotCompression.compress(snapshot, dictionaries.get(dictionaryId)));
+            break;
+        case DEFLATE:
+            info.setData(SnapshotCompression.compress(snapshot));
+            break;
+        default:
+            info.setData(snapshot);
+        }
+        info.setCompression(mode);
+        info.setDictionaryId(dictionaryId);
+        if (log.isDebugEnabled())
+            log.debug("Session {} snapshot encoded with compression {}, {} of {} bytes",
+                    new Object[] { info.getId(), mode, info.getData().length, snapshot.length });
+    }
+
+    /**
+     * @return the snapshot stored in the info
+     */
+    public byte[] decode(KnowledgeBase kbase, SessionInfo info) {
+        if (info.getChunkIds() != null) {
+            return chunkStore.read(info.getChunkIds());
+        }
+        switch (info.getCompression()) {
+        case DICTIONARY:
+            byte[] dictionary = getDictionary(info.getDictionaryId());
+            adopt(kbase, info.getDictionaryId());
+            return SnapshotCompression.decompress(info.getData(), dictionary);
+        case DEFLATE:
+            return SnapshotCompression.decompress(info.getData());
+        default:
+            return info.getData();
+        }
+    }
+
+    private byte[] getDictionary(String id) {
+        byte[] dictionary = dictionaries.get(id);
+        if (dictionary == null) {
+            SnapshotDictionary stored = (SnapshotDictionary) cm.getById(id);
+            if (stored == null) {
+                throw new IllegalStateException("Could not find snapshot dictionary " + id);
+            }
+            dictionary = stored.getData();
+            dictionaries.putIfAbsent(id, dictionary);
+        }
+        return dictionary;
+    }
+
+    private void adopt(KnowledgeBase kbase, String id) {
+        synchronized (kbaseDictionaries) {
+            if (!kbaseDictionaries.containsKey(kbase)) {
+                kbaseDictionaries.put(kbase, new KbaseDictionary(id, true));
+            }
+        }
+    }
+
+    /**
+     * @return the id of the stored dictionary of the kbase, or
+     *         <code>null</code> if it is not committed yet
+     */
+    private String getDictionaryId(KnowledgeBase kbase, byte[] sample) {
+        KbaseDictionary entry;
+        synchronized (kbaseDictionaries) {
+            entry = kbaseDictionaries.get(kbase);
+            if (entry == null) {
+                if (sample.length < MIN_SAMPLE_SIZE) {
+                    return null;
+                }
+                byte[] dictionary = SnapshotCompression.trainDictionary(sample);
+                entry = new KbaseDictionary(SnapshotCompression.dictionaryId(dictionary), false);
+                kbaseDictionaries.put(kbase, entry);
+                dictionaries.put(entry.id, dictionary);
+                storeLater(kbase, entry, dictionary);
+            }
+        }
+        return entry.stored ? entry.id : null;
+    }
+
+    private void storeLater(final KnowledgeBase kbase, final KbaseDictionary entry, final byte[] dictionary) {
+        writer.execute(new Runnable() {
+            public void run() {
+                try {
+                    store(entry.id, dictionary);
+                    entry.stored = true;
+                    if (log.isDebugEnabled())
+                        log.debug("Snapshot dictionary {} stored, {} bytes", entry.id, dictionary.length);
+                } catch (RuntimeException e) {
+                    log.warn("Could not store snapshot dictionary " + entry.id, e);
+                    // train again from a later snapshot
+                    synchronized (kbaseDictionaries) {
+                        if (kbaseDictionaries.get(kbase) == entry) {
+                            kbaseDictionaries.remove(kbase);
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    private void store(String id, byte[] dictionary) {
+        try {
+            txm.begin();
+            cm.initConnection();
+            // another node may have trained the very same dictionary
+            if (cm.getVersion(id) < 0) {
+                cm.saveOrUpdate(new SnapshotDictionary(id, dictionary), id);
+            }
+            txm.commit();
+        } catch (RuntimeException t1) {
+            try {
+                txm.rollback();
+            } catch (RuntimeException t2) {
+                throw new RuntimeException("Could not commit snapshot dictionary or rollback", t2);
+            }
+            throw t1;
+        }
+    }
+
+    private static class KbaseDictionary {
+
+        private final String id;
+        private volatile boolean stored;
+
+        KbaseDictionary(String id, boolean stored) {
+            this.id = id;
+            this.stored = stored;
+        }
+    }
+
+}
@@ -33,6 +33,7 @@ public class SpringTransactionSynchronizationAdapter
     }
 
     public void beforeCommit(boolean readOnly) {
+        this.ts.beforeCommit();
     }
 
     public void beforeCompletion() {
@@ -1,18 +1,23 @@
 package org.drools.alternative.persistence.impl;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
 import org.drools.WorkingMemory;
+import org.drools.alternative.persistence.PersistenceDrools;
 import org.drools.alternative.persistence.PersistenceManager;
+import org.drools.alternative.persistence.utils.MarshallingContextPool;
 import org.drools.common.InternalKnowledgeRuntime;
 import org.drools.common.InternalWorkingMemoryEntryPoint;
+import org.drools.domain.HistoryRecord;
 import org.drools.domain.WorkItemInfo;
 import org.drools.marshalling.impl.InputMarshaller;
 import org.drools.marshalling.impl.MarshallerReaderContext;
@@ -36,14 +41,26 @@ public class WorkItemManagerImpl implements WorkItemManager {
 
     private WorkingMemory workingMemory;
     private PersistenceManager cm;    
+    private HistoryArchiver archiver;
+    // work items aborted along with their process while a batch completes
+    private Set<Long> abortedInBatch;
+    // work items completed by the current batch, removed from the store at
+    // its end but no longer found meanwhile
+    private Set<Long> completedInBatch;
+    // work items removed in the current transaction
+    private final List<HistoryRecord> history = Collections.synchronizedList(new ArrayList<HistoryRecord>());
 
     public WorkItemManagerImpl(InternalKnowledgeRuntime runtime, PersistenceManager cm) {       
         this.workingMemory = ((InternalWorkingMemoryEntryPoint)runtime).getInternalWorkingMemory();
         this.cm = cm;        
+        this.archiver = (HistoryArchiver) workingMemory.getEnvironment().get(PersistenceDrools.HISTORY_ARCHIVER);
     }
 
     @Override
     public void completeWorkItem(long id, Map<String, Object> results) {
+        if (isCompletedInBatch(id)) {
+            return;
+        }
         Environment env = this.workingMemory.getEnvironment();
 
         WorkItemInfo workItemInfo = null;
@@ -74,6 +91,7 @@ public class WorkItemManagerImpl implements WorkItemManager {
             }
             
             cm.removeById(id);
+            archive(workItemInfo, workItem);
             
             if (workItems != null) {
                 this.workItems.remove(workItem.getId());
@@ -85,8 +103,77 @@ public class WorkItemManagerImpl implements WorkItemManager {
 
     }
 
+    /**
+     * Completes the work items with their results at once: the items are
+     * read in one request and removed in one request, and rules are fired
+     * once after all items have been signalled. Items already gone are
+     * skipped, like with {@link #completeWorkItem}; so are items aborted by
+     * the completion of an earlier item of the batch. An item completed by
+     * the batch is no longer found from then on, as if it was removed.
+     * 
+     * @param results
+     *            results by work item id, in order of completion
+     */
+    public void completeWorkItems(Map<Long, Map<String, Object>> results) {
+        Environment env = this.workingMemory.getEnvironment();
+
+        Map<Long, WorkItemInfo> infos = new HashMap<Long, WorkItemInfo>();
+        List<Long> missing = new ArrayList<Long>();
+        for (Long id : results.keySet()) {
+            WorkItemInfo workItemInfo = workItems != null ? workItems.get(id) : null;
+            if (workItemInfo != null) {
+                infos.put(id, workItemInfo);
+            } else {
+                missing.add(id);
+            }
+        }
+        if (!missing.isEmpty()) {
+            infos.putAll(cm.<WorkItemInfo, Long> getByIds(missing));
+        }
+
+        List<Long> completed = new ArrayList<Long>(infos.size());
+        abortedInBatch = new HashSet<Long>();
+        completedInBatch = new HashSet<Long>();
+        try {
+            for (Map.Entry<Long, Map<String, Object>> e : results.entrySet()) {
+                Long id = e.getKey();
+                WorkItemInfo workItemInfo = infos.get(id);
+                // work item may have been aborted, also by an item completed before
+                if (workItemInfo == null || abortedInBatch.contains(id)) {
+                    continue;
+                }
+                WorkItem workItem = (WorkItemImpl) getWorkItem(env, workItemInfo);
+                workItem.setResults(e.getValue());
+                workItem.setState(WorkItem.COMPLETED);
+                ProcessInstance processInstance = workingMemory.getProcessInstance(workItem.getProcessInstanceId());
+                // process instance may have finished already
+                if (processInstance != null) {
+                    processInstance.signalEvent("workItemCompleted", workItem);
+                }
+                completed.add(id);
+                completedInBatch.add(id);
+                if (workItems != null) {
+                    workItems.remove(id);
+                }
+                archive(workItemInfo, workItem);
+            }
+        } finally {
+            abortedInBatch = null;
+            completedInBatch = null;
+        }
+        cm.removeByIds(completed);
+        if (log.isDebugEnabled())
+            log.debug("Completed {} of {} WorkItems", completed.size(), results.size());
+        if (!completed.isEmpty()) {
+            workingMemory.fireAllRules();
+        }
+    }
+
     @Override
     public void abortWorkItem(long id) {
+        if (isCompletedInBatch(id)) {
+            return;
+        }
         Environment env = this.workingMemory.getEnvironment();
 
         WorkItemInfo workItemInfo = null;
@@ -112,6 +199,7 @@ public class WorkItemManagerImpl implements WorkItemManager {
                 processInstance.signalEvent("workItemAborted", workItem);
             }
             cm.removeById(id);
+            archive(workItemInfo, workItem);
             if (workItems != null) {
                 workItems.remove(workItem.getId());
             }
@@ -131,6 +219,9 @@ public class WorkItemManagerImpl implements WorkItemManager {
 
     @Override
     public WorkItem getWorkItem(long id) {
+        if (isCompletedInBatch(id)) {
+            return null;
+        }
         WorkItemInfo wi = null;
         if (this.workItems != null) {
             wi = this.workItems.get(id);
@@ -176,6 +267,9 @@ public class WorkItemManagerImpl implements WorkItemManager {
 
     @Override
     public void internalAbortWorkItem(long id) {
+        if (isCompletedInBatch(id)) {
+            return;
+        }
         Environment env = this.workingMemory.getEnvironment();
         
         WorkItemInfo workItemInfo = cm.getById(id);
@@ -191,10 +285,42 @@ public class WorkItemManagerImpl implements WorkItemManager {
             if (workItems != null) {
                 workItems.remove(id);
             }
+            if (abortedInBatch != null) {
+                abortedInBatch.add(id);
+            }
             cm.removeById(id);
+            workItem.setState(WorkItem.ABORTED);
+            archive(workItemInfo, workItem);
+        }
+    }
+
+    private boolean isCompletedInBatch(long id) {
+        return completedInBatch != null && completedInBatch.contains(id);
+    }
+
+    private void archive(WorkItemInfo info, WorkItem workItem) {
+        if (archiver != null) {
+            history.add(new HistoryRecord(HistoryRecord.WORK_ITEM, workItem.getId(), workItem.getName(), workItem
+                    .getProcessInstanceId(), workItem.getState(), info.getCreationDate(), new Date()));
+        }
+    }
+
+    /**
+     * Archives the work items removed in the transaction, called once it
+     * committed.
+     */
+    public void committed() {
+        if (archiver != null && !history.isEmpty()) {
+            archiver.archive(new ArrayList<HistoryRecord>(history));
+            history.clear();
         }
     }
 
+    public void rolledBack() {
+        history.clear();
+        clearWorkItems();
+    }
+
     public void clearWorkItems() {
         if (workItems != null) {
             workItems.clear();
@@ -204,11 +330,12 @@ public class WorkItemManagerImpl implements WorkItemManager {
     private WorkItem getWorkItem(Environment env, WorkItemInfo info) {
         WorkItem workItem = null;
         try {
-            ByteArrayInputStream bais = new ByteArrayInputStream(info.getData());
-            MarshallerReaderContext context = new MarshallerReaderContext(bais, null, null, null,env);
+            MarshallingContextPool.Reader reader = MarshallingContextPool.acquireReader(env, null);
+            MarshallerReaderContext context = reader.begin(info.getData());
             workItem = InputMarshaller.readWorkItem(context);
 
-            context.close();
+            reader.end();
+            MarshallingContextPool.release(reader);
         } catch (IOException e) {
             e.printStackTrace();
             throw new IllegalArgumentException("IOException while loading process instance: " + e.getMessage());
@@ -219,12 +346,13 @@ public class WorkItemManagerImpl implements WorkItemManager {
     private void update(WorkItemInfo info, WorkItem workItem) {
         info.setState(workItem.getState());
         info.setProcessInstanceId(workItem.getProcessInstanceId());
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
         try {
-            MarshallerWriteContext context = new MarshallerWriteContext(baos, null, null, null, null,workingMemory.getEnvironment());
+            MarshallingContextPool.Writer writer = MarshallingContextPool.acquireWriter(workingMemory
+                    .getEnvironment());
+            MarshallerWriteContext context = writer.begin(info.getData() != null ? info.getData().length : 0);
             OutputMarshaller.writeWorkItem(context, workItem);
-            context.close();
-            info.setData(baos.toByteArray());
+            info.setData(writer.toByteArray());
+            MarshallingContextPool.release(writer);
         } catch (IOException e) {
             throw new IllegalArgumentException("IOException while storing workItem " + workItem.getId() + ": "
                     + e.getMessage());
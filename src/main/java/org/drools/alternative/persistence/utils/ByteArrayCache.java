@@ -0,0 +1,35 @@
+package org.drools.alternative.persistence.utils;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Node local cache of immutable content keyed by its hash, evicting the
+ * least recently used entries beyond a total size in bytes.
+ */
+public class ByteArrayCache {
+
+    private final long maxSize;
+    private final Map<String, byte[]> entries = new LinkedHashMap<String, byte[]>(64, 0.75f, true);
+    private long size;
+
+    public ByteArrayCache(long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    public synchronized byte[] get(String key) {
+        return entries.get(key);
+    }
+
+    public synchronized void put(String key, byte[] content) {
+        byte[] previous = entries.put(key, content);
+        size += content.length - (previous != null ? previous.length : 0);
+        Iterator<byte[]> eldest = entries.values().iterator();
+        while (size > maxSize && eldest.hasNext()) {
+            size -= eldest.next().length;
+            eldest.remove();
+        }
+    }
+
+}
@@ -0,0 +1,80 @@
+package org.drools.alternative.persistence.utils;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Random;
+
+/**
+ * Splits snapshots into content defined chunks.
+ *
+ * Chunk boundaries are placed where a rolling gear hash of the preceding
+ * bytes matches a mask, so they move with the content: an insertion early in
+ * a snapshot only changes the chunks around it instead of shifting every
+ * following fixed size block. Equal content yields equal chunks on every
+ * node, which can then be stored once under their content hash.
+ */
+public abstract class ContentChunker {
+
+    public static final int MIN_CHUNK = 2 * 1024;
+
+    public static final int MAX_CHUNK = 64 * 1024;
+
+    // about 8k between boundaries past the minimum
+    private static final long MASK = (1 << 13) - 1;
+
+    private static final long[] GEAR = new long[256];
+
+    static {
+        // fixed seed, boundaries have to be the same on all nodes
+        Random random = new Random(0x5eed);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    /**
+     * @return the end offset of each chunk, the last one being the data
+     *         length
+     */
+    public static int[] split(byte[] data) {
+        int[] cuts = new int[data.length / MIN_CHUNK + 1];
+        int count = 0;
+        int start = 0;
+        long hash = 0;
+        for (int i = 0; i < data.length; i++) {
+            hash = (hash << 1) + GEAR[data[i] & 0xff];
+            int length = i + 1 - start;
+            if (length >= MIN_CHUNK && ((hash & MASK) == 0 || length >= MAX_CHUNK)) {
+                cuts[count++] = i + 1;
+                start = i + 1;
+                hash = 0;
+            }
+        }
+        if (start < data.length || count == 0) {
+            cuts[count++] = data.length;
+        }
+        int[] result = new int[count];
+        System.arraycopy(cuts, 0, result, 0, count);
+        return result;
+    }
+
+    /**
+     * @return the hex encoded SHA-1 of the given range, equal on all nodes
+     *         for equal content
+     */
+    public static String contentHash(byte[] data, int offset, int length) {
+        try {
+            MessageDigest sha = MessageDigest.getInstance("SHA-1");
+            sha.update(data, offset, length);
+            byte[] digest = sha.digest();
+            StringBuilder hash = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hash.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return hash.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("SHA-1 not available", e);
+        }
+    }
+
+}
@@ -1,12 +1,32 @@
 package org.drools.alternative.persistence.utils;
 
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
 import javax.persistence.EntityManagerFactory;
 
 import org.drools.KnowledgeBaseFactory;
 import org.drools.alternative.persistence.PersistenceDrools;
 import org.drools.alternative.persistence.cm.impl.CoherenceManagerImpl;
 import org.drools.alternative.persistence.cm.impl.JPAManagerImpl;
+import org.drools.alternative.persistence.impl.ConflictRetryPolicy;
+import org.drools.alternative.persistence.impl.DroolsSpringTransactionManager;
+import org.drools.alternative.persistence.impl.KnowledgeSessionCache;
+import org.drools.alternative.persistence.impl.KnowledgeSessionPool;
+import org.drools.alternative.persistence.impl.PersistenceManagerRegistry;
+import org.drools.alternative.persistence.impl.SessionDeltaStore;
+import org.drools.alternative.persistence.impl.SnapshotChunkStore;
+import org.drools.alternative.persistence.impl.SnapshotCodec;
+import org.drools.domain.FactInfo;
+import org.drools.domain.ProcessInstanceInfo;
+import org.drools.domain.SessionDeltaInfo;
+import org.drools.domain.SessionInfo;
+import org.drools.domain.SnapshotChunk;
+import org.drools.domain.SnapshotDictionary;
+import org.drools.domain.VariableInfo;
+import org.drools.domain.WorkItemInfo;
 import org.drools.runtime.Environment;
+import org.drools.marshalling.ObjectMarshallingStrategy;
 import org.drools.runtime.EnvironmentName;
 import org.springframework.transaction.support.AbstractPlatformTransactionManager;
 
@@ -15,23 +35,168 @@ import com.tangosol.coherence.transaction.ConnectionFactory;
 public abstract class EnvironmentUtils {
     
     public static Environment createEnvironment(AbstractPlatformTransactionManager txManager , ConnectionFactory cf){
+        return createEnvironment(txManager, cf, 0);
+    };
+    
+    /**
+     * @param deltaCompactionSize
+     *            when positive, sessions are stored as a base snapshot plus
+     *            deltas, compacted once the deltas exceed this many bytes
+     */
+    public static Environment createEnvironment(AbstractPlatformTransactionManager txManager , ConnectionFactory cf, int deltaCompactionSize){
         Environment env = new ThreadLocalEnvironmentImpl();
         Environment delegate = KnowledgeBaseFactory.newEnvironment();
         delegate.set(EnvironmentName.TRANSACTION_MANAGER, txManager);
         delegate.set(PersistenceDrools.CACHE_MANAGER_CLASS, CoherenceManagerImpl.class);
         delegate.set(PersistenceDrools.CONNECTION_FACTORY, cf);
         env.setDelegate(delegate);
+        initRuntime(env, delegate, txManager, CoherenceManagerImpl.class, deltaCompactionSize);
         return env;
     };
     
     public static Environment createEnvironment(AbstractPlatformTransactionManager txManager , EntityManagerFactory emf){
+        return createEnvironment(txManager, emf, 0);
+    };
+    
+    /**
+     * @param deltaCompactionSize
+     *            when positive, sessions are stored as a base snapshot plus
+     *            deltas, compacted once the deltas exceed this many bytes
+     */
+    public static Environment createEnvironment(AbstractPlatformTransactionManager txManager , EntityManagerFactory emf, int deltaCompactionSize){
         Environment env = new ThreadLocalEnvironmentImpl();
         Environment delegate = KnowledgeBaseFactory.newEnvironment();
         delegate.set(EnvironmentName.TRANSACTION_MANAGER, txManager);
         delegate.set(PersistenceDrools.CACHE_MANAGER_CLASS, JPAManagerImpl.class);
         delegate.set(EnvironmentName.ENTITY_MANAGER_FACTORY, emf);
         env.setDelegate(delegate);
+        initRuntime(env, delegate, txManager, JPAManagerImpl.class, deltaCompactionSize);
         return env;
     };
 
+    /**
+     * Sets the strategies sessions of the environment are marshalled with, for
+     * all threads. They are tried in order, so the last one should accept any
+     * object, e.g. <code>MarshallerFactory.newSerializeMarshallingStrategy()</code>.
+     */
+    public static void setMarshallingStrategies(Environment env, ObjectMarshallingStrategy... strategies) {
+        Environment shared = env instanceof ThreadLocalEnvironmentImpl ? ((ThreadLocalEnvironmentImpl) env)
+                .getDelegate() : env;
+        shared.set(EnvironmentName.OBJECT_MARSHALLING_STRATEGIES, strategies);
+    }
+
+    /**
+     * Makes sessions of the environment be built from pools of pre-built
+     * sessions. The pools keep their kbases alive, so
+     * {@link KnowledgeSessionPool#remove(org.drools.KnowledgeBase)} has to be
+     * called when a kbase is undeployed.
+     */
+    public static KnowledgeSessionPool enableSessionPool(Environment env) {
+        return enableSessionPool(env, KnowledgeSessionPool.DEFAULT_SIZE);
+    }
+
+    /**
+     * @see #enableSessionPool(Environment)
+     */
+    public static KnowledgeSessionPool enableSessionPool(Environment env, int size) {
+        Environment shared = env instanceof ThreadLocalEnvironmentImpl ? ((ThreadLocalEnvironmentImpl) env)
+                .getDelegate() : env;
+        KnowledgeSessionPool pool = new KnowledgeSessionPool(env, size);
+        shared.set(PersistenceDrools.SESSION_POOL, pool);
+        return pool;
+    }
+
+    /**
+     * Unbinds the pool of the environment, releasing its sessions and thread.
+     */
+    public static void disableSessionPool(Environment env) {
+        Environment shared = env instanceof ThreadLocalEnvironmentImpl ? ((ThreadLocalEnvironmentImpl) env)
+                .getDelegate() : env;
+        KnowledgeSessionPool pool = (KnowledgeSessionPool) shared.get(PersistenceDrools.SESSION_POOL);
+        shared.set(PersistenceDrools.SESSION_POOL, null);
+        if (pool != null) {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Makes commands of command services created afterwards run again when
+     * they fail on an optimistic conflict, instead of failing with "Could not
+     * commit session". Every command of the transaction runs again, so side
+     * effects of synchronous work item handlers are repeated as well.
+     * 
+     * @see ConflictRetryPolicy#ConflictRetryPolicy(int, long, long)
+     */
+    public static ConflictRetryPolicy enableConflictRetry(Environment env, int maxAttempts, long baseDelay,
+            long maxDelay) {
+        Environment shared = env instanceof ThreadLocalEnvironmentImpl ? ((ThreadLocalEnvironmentImpl) env)
+                .getDelegate() : env;
+        ConflictRetryPolicy policy = new ConflictRetryPolicy(maxAttempts, baseDelay, maxDelay);
+        shared.set(PersistenceDrools.RETRY_POLICY, policy);
+        return policy;
+    }
+
+    /**
+     * Command services created afterwards fail on the first optimistic
+     * conflict.
+     */
+    public static void disableConflictRetry(Environment env) {
+        Environment shared = env instanceof ThreadLocalEnvironmentImpl ? ((ThreadLocalEnvironmentImpl) env)
+                .getDelegate() : env;
+        shared.set(PersistenceDrools.RETRY_POLICY, null);
+    }
+
+    /**
+     * Makes
+     * {@link org.drools.alternative.persistence.impl.SingleSessionCommandServiceImpl#submit(org.drools.command.Command)}
+     * available, queued commands of all sessions of the environment running
+     * on the given number of threads. The threads are only stopped by
+     * {@link #disableAsyncSubmit(Environment)}.
+     */
+    public static ExecutorService enableAsyncSubmit(Environment env, int threads) {
+        Environment shared = env instanceof ThreadLocalEnvironmentImpl ? ((ThreadLocalEnvironmentImpl) env)
+                .getDelegate() : env;
+        ExecutorService executor = Executors.newFixedThreadPool(threads, new DaemonThreadFactory(
+                "session-command-pipeline"));
+        shared.set(PersistenceDrools.COMMAND_EXECUTOR, executor);
+        return executor;
+    }
+
+    /**
+     * Stops the threads started by {@link #enableAsyncSubmit(Environment, int)}
+     * once the commands already queued have run. Commands submitted afterwards
+     * fail.
+     */
+    public static void disableAsyncSubmit(Environment env) {
+        Environment shared = env instanceof ThreadLocalEnvironmentImpl ? ((ThreadLocalEnvironmentImpl) env)
+                .getDelegate() : env;
+        Object executor = shared.get(PersistenceDrools.COMMAND_EXECUTOR);
+        shared.set(PersistenceDrools.COMMAND_EXECUTOR, null);
+        if (executor instanceof ExecutorService) {
+            ((ExecutorService) executor).shutdown();
+        }
+    }
+
+    /**
+     * Binds the node wide runtime shared by all sessions of the environment.
+     */
+    private static void initRuntime(Environment env, Environment delegate, AbstractPlatformTransactionManager txManager,
+            Class<?> cmClass, int deltaCompactionSize) {
+        DroolsSpringTransactionManager txm = new DroolsSpringTransactionManager(txManager);
+        delegate.set(PersistenceDrools.DROOLS_TRANSACTION_MANAGER, txm);
+        PersistenceManagerRegistry registry = new PersistenceManagerRegistry(cmClass, env, SessionInfo.class,
+                ProcessInstanceInfo.class, WorkItemInfo.class, SessionDeltaInfo.class, SnapshotDictionary.class,
+                SnapshotChunk.class, FactInfo.class, VariableInfo.class);
+        delegate.set(PersistenceDrools.CACHE_MANAGER_REGISTRY, registry);
+        delegate.set(PersistenceDrools.SESSION_CACHE, new KnowledgeSessionCache());
+        // neither compressed nor chunked until configured on the codec
+        delegate.set(PersistenceDrools.SNAPSHOT_CODEC, new SnapshotCodec(registry
+                .getPersistenceManager(SnapshotDictionary.class), txm, new SnapshotChunkStore(registry
+                .getPersistenceManager(SnapshotChunk.class))));
+        if (deltaCompactionSize > 0) {
+            delegate.set(PersistenceDrools.SESSION_DELTA_STORE,
+                    new SessionDeltaStore(registry.getPersistenceManager(SessionDeltaInfo.class), deltaCompactionSize));
+        }
+    }
+
 }
@@ -0,0 +1,179 @@
+package org.drools.alternative.persistence.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.drools.domain.HistoryRecord;
+
+/**
+ * Compact encoding of a batch of {@link HistoryRecord}, column by column.
+ *
+ * Within a batch ids and dates mostly grow in small steps and process ids and
+ * work item names repeat, so each column is written apart: ids and dates as
+ * variable length differences to the previous record, names as indexes into
+ * a dictionary of the batch. The batch is then deflated. Missing dates are
+ * written as 0 and read back as <code>null</code>.
+ */
+public abstract class HistoryRecordCodec {
+
+    public static byte[] encode(List<HistoryRecord> records) {
+        MarshallingBufferPool.Buffer buffer = MarshallingBufferPool.acquire(records.size() * 16);
+        try {
+            DataOutputStream out = new DataOutputStream(buffer);
+            out.writeInt(records.size());
+            for (HistoryRecord record : records) {
+                out.writeByte(record.getType());
+            }
+            long previous = 0;
+            for (HistoryRecord record : records) {
+                writeVarLong(out, record.getEntityId() - previous);
+                previous = record.getEntityId();
+            }
+            previous = 0;
+            for (HistoryRecord record : records) {
+                writeVarLong(out, record.getProcessInstanceId() - previous);
+                previous = record.getProcessInstanceId();
+            }
+            writeNames(out, records);
+            for (HistoryRecord record : records) {
+                writeVarLong(out, record.getState());
+            }
+            previous = 0;
+            for (HistoryRecord record : records) {
+                long time = toTime(record.getStartDate());
+                writeVarLong(out, time - previous);
+                previous = time;
+            }
+            previous = 0;
+            for (HistoryRecord record : records) {
+                long time = toTime(record.getEndDate());
+                writeVarLong(out, time - previous);
+                previous = time;
+            }
+            out.flush();
+            return SnapshotCompression.compress(buffer.detach());
+        } catch (IOException e) {
+            throw new IllegalArgumentException("IOException while encoding history: " + e.getMessage(), e);
+        } finally {
+            MarshallingBufferPool.release(buffer);
+        }
+    }
+
+    public static List<HistoryRecord> decode(byte[] data) {
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(SnapshotCompression.decompress(data)));
+            int count = in.readInt();
+            int[] types = new int[count];
+            for (int i = 0; i < count; i++) {
+                types[i] = in.readByte();
+            }
+            long[] entityIds = readDeltas(in, count);
+            long[] processInstanceIds = readDeltas(in, count);
+            String[] names = readNames(in, count);
+            int[] states = new int[count];
+            for (int i = 0; i < count; i++) {
+                states[i] = (int) readVarLong(in);
+            }
+            long[] startTimes = readDeltas(in, count);
+            long[] endTimes = readDeltas(in, count);
+            List<HistoryRecord> records = new ArrayList<HistoryRecord>(count);
+            for (int i = 0; i < count; i++) {
+                records.add(new HistoryRecord(types[i], entityIds[i], names[i], processInstanceIds[i], states[i],
+                        toDate(startTimes[i]), toDate(endTimes[i])));
+            }
+            return records;
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Corrupt history batch: " + e.getMessage(), e);
+        }
+    }
+
+    private static void writeNames(DataOutputStream out, List<HistoryRecord> records) throws IOException {
+        Map<String, Integer> dictionary = new HashMap<String, Integer>();
+        List<String> names = new ArrayList<String>();
+        int[] indexes = new int[records.size()];
+        for (int i = 0; i < records.size(); i++) {
+            String name = records.get(i).getName();
+            if (name == null) {
+                continue;
+            }
+            Integer index = dictionary.get(name);
+            if (index == null) {
+                index = names.size() + 1;
+                dictionary.put(name, index);
+                names.add(name);
+            }
+            // 0 stands for no name
+            indexes[i] = index;
+        }
+        writeVarLong(out, names.size());
+        for (String name : names) {
+            out.writeUTF(name);
+        }
+        for (int index : indexes) {
+            writeVarLong(out, index);
+        }
+    }
+
+    private static String[] readNames(DataInputStream in, int count) throws IOException {
+        String[] dictionary = new String[(int) readVarLong(in) + 1];
+        for (int i = 1; i < dictionary.length; i++) {
+            dictionary[i] = in.readUTF();
+        }
+        String[] names = new String[count];
+        for (int i = 0; i < count; i++) {
+            names[i] = dictionary[(int) readVarLong(in)];
+        }
+        return names;
+    }
+
+    private static long[] readDeltas(DataInputStream in, int count) throws IOException {
+        long[] values = new long[count];
+        long previous = 0;
+        for (int i = 0; i < count; i++) {
+            previous += readVarLong(in);
+            values[i] = previous;
+        }
+        return values;
+    }
+
+    /**
+     * Writes a signed value in 7 bit groups, zigzag encoded so small negative
+     * differences stay short.
+     */
+    private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        long zigzag = (value << 1) ^ (value >> 63);
+        while ((zigzag & ~0x7fL) != 0) {
+            out.writeByte((int) ((zigzag & 0x7f) | 0x80));
+            zigzag >>>= 7;
+        }
+        out.writeByte((int) zigzag);
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long zigzag = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = in.readUnsignedByte();
+            zigzag |= (long) (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return (zigzag >>> 1) ^ -(zigzag & 1);
+    }
+
+    private static long toTime(Date date) {
+        return date != null ? date.getTime() : 0;
+    }
+
+    private static Date toDate(long time) {
+        return time != 0 ? new Date(time) : null;
+    }
+
+}
@@ -0,0 +1,146 @@
+package org.drools.alternative.persistence.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of reusable output buffers for session, process instance and work
+ * item snapshots.
+ *
+ * A {@link ByteArrayOutputStream} doubles its array until the snapshot fits,
+ * so a large snapshot leaves a trail of large garbage arrays. Pooled buffers
+ * are sized up front from the previous snapshot size of the same entity and
+ * kept across calls. Buffers are pooled by power of two size class, so a
+ * small snapshot does not hold on to a large buffer and a large snapshot
+ * does not get a small buffer it has to regrow.
+ *
+ * The result is still copied out of the buffer once, into an exactly sized
+ * array, as the entities hold plain arrays: see {@link Buffer#detach()}. The
+ * pool saves the growth copies and garbage, not that last copy.
+ */
+public abstract class MarshallingBufferPool {
+
+    /** Total capacity the pool retains, further released buffers are dropped */
+    public static final long MAX_RETAINED = 64L * 1024 * 1024;
+
+    /** Buffers grown beyond this size are never pooled */
+    public static final int MAX_POOLED_BUFFER = 16 * 1024 * 1024;
+
+    private static final int MIN_SHIFT = 10;
+
+    private static final int MIN_SIZE = 1 << MIN_SHIFT;
+
+    // classes[i] holds buffers of at least 2^(MIN_SHIFT + i) bytes
+    private static final Queue<Buffer>[] CLASSES = newClasses();
+    private static final AtomicLong RETAINED = new AtomicLong();
+
+    @SuppressWarnings("unchecked")
+    private static Queue<Buffer>[] newClasses() {
+        Queue<Buffer>[] classes = new Queue[Integer.numberOfTrailingZeros(MAX_POOLED_BUFFER) - MIN_SHIFT + 1];
+        for (int i = 0; i < classes.length; i++) {
+            classes[i] = new ConcurrentLinkedQueue<Buffer>();
+        }
+        return classes;
+    }
+
+    /**
+     * @param sizeHint
+     *            size of the previous snapshot of the same entity, 0 if
+     *            unknown
+     */
+    public static Buffer acquire(int sizeHint) {
+        // leave room for some growth since the previous snapshot
+        int size = Math.max(MIN_SIZE, sizeHint + (sizeHint >> 3));
+        if (size > MAX_POOLED_BUFFER) {
+            return new Buffer(size);
+        }
+        // smallest class whose buffers all fit the size
+        int index = 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SHIFT;
+        Buffer buffer = CLASSES[index].poll();
+        if (buffer == null) {
+            return new Buffer(1 << (index + MIN_SHIFT));
+        }
+        RETAINED.addAndGet(-buffer.capacity());
+        buffer.reset();
+        return buffer;
+    }
+
+    public static void release(Buffer buffer) {
+        int capacity = buffer.capacity();
+        if (capacity < MIN_SIZE || capacity > MAX_POOLED_BUFFER) {
+            return;
+        }
+        if (RETAINED.addAndGet(capacity) > MAX_RETAINED) {
+            RETAINED.addAndGet(-capacity);
+            return;
+        }
+        // largest class the grown buffer still fits
+        CLASSES[31 - Integer.numberOfLeadingZeros(capacity) - MIN_SHIFT].offer(buffer);
+    }
+
+    /**
+     * Output stream exposing its array, so content can be compared or copied
+     * out without an intermediate array.
+     */
+    public static class Buffer extends ByteArrayOutputStream {
+
+        Buffer(int size) {
+            super(size);
+        }
+
+        int capacity() {
+            return buf.length;
+        }
+
+        void ensureCapacity(int size) {
+            if (buf.length < size) {
+                buf = new byte[size];
+            }
+        }
+
+        /**
+         * @return whether the buffer holds exactly the given bytes
+         */
+        public boolean contentEquals(byte[] bytes) {
+            return contentEquals(bytes, 0);
+        }
+
+        /**
+         * @return whether the buffer holds exactly the bytes from the offset on
+         */
+        synchronized boolean contentEquals(byte[] bytes, int offset) {
+            if (bytes == null || bytes.length - offset != count) {
+                return false;
+            }
+            for (int i = 0; i < count; i++) {
+                if (buf[i] != bytes[offset + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        synchronized void copyTo(byte[] dest, int offset) {
+            System.arraycopy(buf, 0, dest, offset, count);
+        }
+
+        /**
+         * @return the content as an exactly sized array, which is a copy of
+         *         the buffer unless the array happens to be exactly filled, in
+         *         which case the buffer gives it up and is not pooled again
+         */
+        public synchronized byte[] detach() {
+            if (count != buf.length) {
+                return Arrays.copyOf(buf, count);
+            }
+            byte[] content = buf;
+            buf = new byte[0];
+            count = 0;
+            return content;
+        }
+    }
+
+}
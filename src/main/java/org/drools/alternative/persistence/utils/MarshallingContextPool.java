@@ -0,0 +1,245 @@
+package org.drools.alternative.persistence.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectStreamConstants;
+
+import org.drools.common.InternalRuleBase;
+import org.drools.marshalling.impl.MarshallerReaderContext;
+import org.drools.marshalling.impl.MarshallerWriteContext;
+import org.drools.runtime.Environment;
+
+/**
+ * Per thread pool of marshaller contexts for process instances and work
+ * items, each one reused for any number of items.
+ *
+ * Both contexts are object streams, and building one allocates its block
+ * buffers and handle tables and reads or writes the stream header, which
+ * costs about as much as marshalling a small item. A reused write context has
+ * its handle table reset and its output dropped between items. A reused read
+ * context is fed a stream reset followed by the next item. Each item is
+ * stored exactly as a context of its own would write it, so stored data is
+ * read alike by pooled and fresh contexts.
+ *
+ * A thread keeps one idle context of each kind; a context acquired while the
+ * idle one is in use, or for another environment or rule base, is created
+ * anew. Contexts that failed are discarded rather than released.
+ */
+public abstract class MarshallingContextPool {
+
+    private static final byte[] STREAM_HEADER = { (byte) (ObjectStreamConstants.STREAM_MAGIC >>> 8),
+            (byte) ObjectStreamConstants.STREAM_MAGIC, (byte) (ObjectStreamConstants.STREAM_VERSION >>> 8),
+            (byte) ObjectStreamConstants.STREAM_VERSION };
+
+    private static final ThreadLocal<Writer> WRITERS = new ThreadLocal<Writer>();
+    private static final ThreadLocal<Reader> READERS = new ThreadLocal<Reader>();
+
+    public static Writer acquireWriter(Environment env) throws IOException {
+        Writer writer = WRITERS.get();
+        if (writer != null && writer.env == env) {
+            WRITERS.remove();
+            return writer;
+        }
+        return new Writer(env);
+    }
+
+    public static void release(Writer writer) {
+        if (writer.buffer.capacity() > MarshallingBufferPool.MAX_POOLED_BUFFER) {
+            // do not keep a large buffer per thread
+            writer.discard();
+            return;
+        }
+        Writer previous = WRITERS.get();
+        WRITERS.set(writer);
+        if (previous != null) {
+            previous.discard();
+        }
+    }
+
+    /**
+     * @param ruleBase
+     *            rule base of the process instances read, <code>null</code>
+     *            for work items
+     */
+    public static Reader acquireReader(Environment env, InternalRuleBase ruleBase) {
+        Reader reader = READERS.get();
+        if (reader != null && reader.env == env && reader.ruleBase == ruleBase) {
+            READERS.remove();
+            return reader;
+        }
+        return new Reader(env, ruleBase);
+    }
+
+    public static void release(Reader reader) {
+        if (!reader.isReusable()) {
+            return;
+        }
+        READERS.set(reader);
+    }
+
+    /**
+     * Write context reused across items; each item is written between
+     * {@link #begin(int)} and {@link #toByteArray()}.
+     */
+    public static class Writer {
+
+        private final Environment env;
+        private final MarshallingBufferPool.Buffer buffer;
+        private final MarshallerWriteContext context;
+
+        Writer(Environment env) throws IOException {
+            this.env = env;
+            this.buffer = MarshallingBufferPool.acquire(0);
+            this.context = new MarshallerWriteContext(buffer, null, null, null, null, env);
+        }
+
+        /**
+         * @param sizeHint
+         *            size of the previous data of the item, 0 if unknown
+         * @return the context to write the item to
+         */
+        public MarshallerWriteContext begin(int sizeHint) throws IOException {
+            // forgets the objects of the previous item
+            context.reset();
+            context.flush();
+            // drops the previous item together with the header or reset mark
+            buffer.reset();
+            buffer.ensureCapacity(sizeHint);
+            return context;
+        }
+
+        /**
+         * @return whether the item written equals the given data
+         */
+        public boolean contentEquals(byte[] data) throws IOException {
+            context.flush();
+            if (data == null || data.length < STREAM_HEADER.length) {
+                return false;
+            }
+            for (int i = 0; i < STREAM_HEADER.length; i++) {
+                if (data[i] != STREAM_HEADER[i]) {
+                    return false;
+                }
+            }
+            return buffer.contentEquals(data, STREAM_HEADER.length);
+        }
+
+        /**
+         * @return the item written, as a context of its own would write it
+         */
+        public byte[] toByteArray() throws IOException {
+            context.flush();
+            byte[] data = new byte[STREAM_HEADER.length + buffer.size()];
+            System.arraycopy(STREAM_HEADER, 0, data, 0, STREAM_HEADER.length);
+            buffer.copyTo(data, STREAM_HEADER.length);
+            return data;
+        }
+
+        void discard() {
+            MarshallingBufferPool.release(buffer);
+        }
+    }
+
+    /**
+     * Read context reused across items; each item is read between
+     * {@link #begin(byte[])} and {@link #end()}.
+     */
+    public static class Reader {
+
+        private final Environment env;
+        private final InternalRuleBase ruleBase;
+        private final ItemInputStream input = new ItemInputStream();
+        private MarshallerReaderContext context;
+        private boolean reusable;
+
+        Reader(Environment env, InternalRuleBase ruleBase) {
+            this.env = env;
+            this.ruleBase = ruleBase;
+        }
+
+        /**
+         * @return the context to read the item from
+         */
+        public MarshallerReaderContext begin(byte[] data) throws IOException {
+            reusable = false;
+            if (context == null) {
+                input.set(data, 0, false);
+                // reads the stream header of the first item
+                context = new MarshallerReaderContext(input, ruleBase, null, null, env);
+                return context;
+            }
+            for (int i = 0; i < STREAM_HEADER.length; i++) {
+                if (data.length <= i || data[i] != STREAM_HEADER[i]) {
+                    throw new IOException("Invalid stream header");
+                }
+            }
+            // a reset mark in place of the header clears the objects of the
+            // previous item
+            input.set(data, STREAM_HEADER.length, true);
+            return context;
+        }
+
+        /**
+         * Marks the item read in full; a reader left with unread data of an
+         * item is not reused.
+         */
+        public void end() throws IOException {
+            reusable = input.remaining() == 0 && context.available() == 0;
+        }
+
+        boolean isReusable() {
+            return reusable;
+        }
+    }
+
+    private static class ItemInputStream extends InputStream {
+
+        private byte[] data;
+        private int pos;
+        private boolean reset;
+
+        void set(byte[] data, int pos, boolean reset) {
+            this.data = data;
+            this.pos = pos;
+            this.reset = reset;
+        }
+
+        int remaining() {
+            return data.length - pos + (reset ? 1 : 0);
+        }
+
+        @Override
+        public int read() {
+            if (reset) {
+                reset = false;
+                return ObjectStreamConstants.TC_RESET;
+            }
+            return pos < data.length ? data[pos++] & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (reset) {
+                b[off] = ObjectStreamConstants.TC_RESET;
+                reset = false;
+                return 1;
+            }
+            if (pos >= data.length) {
+                return -1;
+            }
+            int count = Math.min(len, data.length - pos);
+            System.arraycopy(data, pos, b, off, count);
+            pos += count;
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return remaining();
+        }
+    }
+
+}
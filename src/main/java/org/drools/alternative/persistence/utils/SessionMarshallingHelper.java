@@ -2,10 +2,13 @@ package org.drools.alternative.persistence.utils;
 
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.WeakHashMap;
 
 import org.drools.KnowledgeBase;
+import org.drools.alternative.persistence.impl.GridPlaceholderResolverStrategy;
 import org.drools.marshalling.Marshaller;
 import org.drools.marshalling.MarshallerFactory;
 import org.drools.marshalling.ObjectMarshallingStrategy;
@@ -19,11 +22,14 @@ import org.drools.runtime.StatefulKnowledgeSession;
  */
 public class SessionMarshallingHelper {
 
+    private static final Map<KnowledgeBase, CachedMarshaller> MARSHALLERS = new WeakHashMap<KnowledgeBase, CachedMarshaller>();
+
     private KnowledgeBase kbase;
     private KnowledgeSessionConfiguration conf;
     private StatefulKnowledgeSession ksession;
     private Marshaller marshaller;
     private Environment env;
+    private int lastSnapshotSize;
 
     /**
      * Exist Info, so load session from here
@@ -37,14 +43,7 @@ public class SessionMarshallingHelper {
         this.kbase = kbase;
         this.conf = conf;
         this.env = env;
-        ObjectMarshallingStrategy[] strategies = (ObjectMarshallingStrategy[]) env
-                .get(EnvironmentName.OBJECT_MARSHALLING_STRATEGIES);
-        if (strategies != null) {
-            // use strategies if provided in the environment
-            this.marshaller = MarshallerFactory.newMarshaller(kbase, strategies);
-        } else {
-            this.marshaller = MarshallerFactory.newMarshaller(kbase);
-        }
+        this.marshaller = getMarshaller(kbase, env);
     }
 
     /**
@@ -60,33 +59,68 @@ public class SessionMarshallingHelper {
         this.kbase = ksession.getKnowledgeBase();
         this.conf = conf;
         this.env = ksession.getEnvironment();
-        ObjectMarshallingStrategy[] strategies = (ObjectMarshallingStrategy[]) this.env
+        this.marshaller = getMarshaller(kbase, this.env);
+    }
+
+    /**
+     * Marshallers keep no per call state, so one is shared by all sessions of
+     * a kbase as long as the environment strategies stay the same.
+     */
+    private static Marshaller getMarshaller(KnowledgeBase kbase, Environment env) {
+        ObjectMarshallingStrategy[] strategies = (ObjectMarshallingStrategy[]) env
                 .get(EnvironmentName.OBJECT_MARSHALLING_STRATEGIES);
-        if (strategies != null) {
-            // use strategies if provided in the environment
-            this.marshaller = MarshallerFactory.newMarshaller(kbase, strategies);
-        } else {
-            this.marshaller = MarshallerFactory.newMarshaller(kbase);
+        synchronized (MARSHALLERS) {
+            CachedMarshaller cached = MARSHALLERS.get(kbase);
+            Marshaller marshaller = cached != null && cached.strategies == strategies ? cached.marshaller.get() : null;
+            if (marshaller == null) {
+                if (strategies != null) {
+                    // use strategies if provided in the environment
+                    marshaller = MarshallerFactory.newMarshaller(kbase, strategies);
+                } else {
+                    marshaller = MarshallerFactory.newMarshaller(kbase);
+                }
+                MARSHALLERS.put(kbase, new CachedMarshaller(strategies, marshaller));
+            }
+            return marshaller;
         }
+    }
+
+    /**
+     * The marshaller refers to its kbase, so it is only weakly held here to
+     * let unused kbases go.
+     */
+    private static class CachedMarshaller {
+
+        private final ObjectMarshallingStrategy[] strategies;
+        private final WeakReference<Marshaller> marshaller;
 
+        CachedMarshaller(ObjectMarshallingStrategy[] strategies, Marshaller marshaller) {
+            this.strategies = strategies;
+            this.marshaller = new WeakReference<Marshaller>(marshaller);
+        }
     }
 
     public byte[] getSnapshot() {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        MarshallingBufferPool.Buffer buffer = MarshallingBufferPool.acquire(lastSnapshotSize);
         try {
-            marshaller.marshall(baos, ksession);
+            marshaller.marshall(buffer, ksession);
+            byte[] snapshot = buffer.detach();
+            lastSnapshotSize = snapshot.length;
+            return snapshot;
         } catch (IOException e) {
             throw new RuntimeException("Unable to get session snapshot", e);
+        } finally {
+            MarshallingBufferPool.release(buffer);
         }
-
-        return baos.toByteArray();
     }
 
     public StatefulKnowledgeSession loadSnapshot(byte[] bytes, StatefulKnowledgeSession ksession) {
         this.ksession = ksession;
+        this.lastSnapshotSize = bytes.length;
         ByteArrayInputStream bais = new ByteArrayInputStream(bytes);
         try {
             if (this.ksession != null) {
+                resetStrategies(this.ksession);
                 this.marshaller.unmarshall(bais, this.ksession);
             } else {
                 this.ksession = this.marshaller.unmarshall(bais, this.conf, this.env);
@@ -97,6 +131,22 @@ public class SessionMarshallingHelper {
         return this.ksession;
     }
 
+    /**
+     * The strategies keeping track of what a session refers to read it from
+     * the snapshot loaded into the session.
+     */
+    private void resetStrategies(StatefulKnowledgeSession ksession) {
+        ObjectMarshallingStrategy[] strategies = (ObjectMarshallingStrategy[]) env
+                .get(EnvironmentName.OBJECT_MARSHALLING_STRATEGIES);
+        if (strategies != null) {
+            for (ObjectMarshallingStrategy strategy : strategies) {
+                if (strategy instanceof GridPlaceholderResolverStrategy) {
+                    ((GridPlaceholderResolverStrategy) strategy).resetSession(ksession);
+                }
+            }
+        }
+    }
+
     public StatefulKnowledgeSession getObject() {
         return ksession;
     }
@@ -109,4 +159,8 @@ public class SessionMarshallingHelper {
         return conf;
     }
 
+    public Environment getEnv() {
+        return env;
+    }
+
 }
@@ -0,0 +1,112 @@
+package org.drools.alternative.persistence.utils;
+
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflate compression of session snapshots, optionally primed with a preset
+ * dictionary.
+ *
+ * Snapshots of the sessions of one kbase share most of their structure: the
+ * rule and node identifiers, class names and the layout of the marshalled
+ * agenda. A dictionary taken from one snapshot of the kbase lets deflate
+ * refer to that shared content from the first byte on, which plain deflate
+ * only learns within a single snapshot, so small snapshots gain the most.
+ */
+public abstract class SnapshotCompression {
+
+    /** Deflate only refers back this far, a longer dictionary is cut */
+    public static final int MAX_DICTIONARY_SIZE = 32 * 1024;
+
+    private static final int CHUNK_SIZE = 8 * 1024;
+
+    public static byte[] compress(byte[] data) {
+        return compress(data, null);
+    }
+
+    /**
+     * @param dictionary
+     *            preset dictionary, <code>null</code> for none
+     */
+    public static byte[] compress(byte[] data, byte[] dictionary) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        MarshallingBufferPool.Buffer buffer = MarshallingBufferPool.acquire(data.length / 2);
+        try {
+            if (dictionary != null) {
+                deflater.setDictionary(dictionary);
+            }
+            deflater.setInput(data);
+            deflater.finish();
+            byte[] chunk = new byte[CHUNK_SIZE];
+            while (!deflater.finished()) {
+                int count = deflater.deflate(chunk);
+                buffer.write(chunk, 0, count);
+            }
+            return buffer.detach();
+        } finally {
+            // release the native stream now rather than on finalization
+            deflater.end();
+            MarshallingBufferPool.release(buffer);
+        }
+    }
+
+    public static byte[] decompress(byte[] data) {
+        return decompress(data, null);
+    }
+
+    /**
+     * @param dictionary
+     *            the dictionary the data was compressed with,
+     *            <code>null</code> for none
+     */
+    public static byte[] decompress(byte[] data, byte[] dictionary) {
+        Inflater inflater = new Inflater();
+        MarshallingBufferPool.Buffer buffer = MarshallingBufferPool.acquire(data.length * 4);
+        try {
+            inflater.setInput(data);
+            byte[] chunk = new byte[CHUNK_SIZE];
+            while (!inflater.finished()) {
+                int count = inflater.inflate(chunk);
+                if (count == 0) {
+                    if (inflater.needsDictionary()) {
+                        if (dictionary == null) {
+                            throw new IllegalArgumentException("Snapshot was compressed with a dictionary");
+                        }
+                        inflater.setDictionary(dictionary);
+                    } else if (inflater.needsInput()) {
+                        throw new IllegalArgumentException("Truncated compressed snapshot");
+                    }
+                }
+                buffer.write(chunk, 0, count);
+            }
+            return buffer.detach();
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("Corrupt compressed snapshot", e);
+        } finally {
+            inflater.end();
+            MarshallingBufferPool.release(buffer);
+        }
+    }
+
+    /**
+     * Takes a dictionary from a sample snapshot. Deflate favours the end of a
+     * dictionary, so the tail of the sample is kept.
+     */
+    public static byte[] trainDictionary(byte[] sample) {
+        if (sample.length <= MAX_DICTIONARY_SIZE) {
+            return sample.clone();
+        }
+        return Arrays.copyOfRange(sample, sample.length - MAX_DICTIONARY_SIZE, sample.length);
+    }
+
+    /**
+     * @return a content hash identifying the dictionary, equal on all nodes
+     *         for equal dictionaries
+     */
+    public static String dictionaryId(byte[] dictionary) {
+        return ContentChunker.contentHash(dictionary, 0, dictionary.length);
+    }
+
+}
@@ -0,0 +1,157 @@
+package org.drools.alternative.persistence.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Binary delta between two snapshots of the same session.
+ *
+ * The delta is a list of COPY (offset and length in the source) and ADD
+ * (literal bytes) instructions. Matches are found by indexing the source in
+ * fixed blocks and scanning the target with a rolling hash, so facts that
+ * moved inside the snapshot are still copied rather than re-sent.
+ */
+public abstract class SnapshotDelta {
+
+    private static final int BLOCK = 32;
+    private static final int PRIME = 31;
+    private static final int PRIME_POWER;
+
+    private static final byte COPY = 0;
+    private static final byte ADD = 1;
+
+    static {
+        int power = 1;
+        for (int i = 1; i < BLOCK; i++) {
+            power *= PRIME;
+        }
+        PRIME_POWER = power;
+    }
+
+    /**
+     * @return instructions rebuilding <code>target</code> from
+     *         <code>source</code>
+     */
+    public static byte[] diff(byte[] source, byte[] target) {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(baos);
+        try {
+            out.writeInt(target.length);
+            if (source.length < BLOCK || target.length < BLOCK) {
+                writeAdd(out, target, 0, target.length);
+                return baos.toByteArray();
+            }
+
+            Map<Integer, Integer> blocks = new HashMap<Integer, Integer>(source.length / BLOCK * 2);
+            for (int offset = 0; offset + BLOCK <= source.length; offset += BLOCK) {
+                Integer hash = hash(source, offset);
+                if (!blocks.containsKey(hash)) {
+                    blocks.put(hash, offset);
+                }
+            }
+
+            int literal = 0;
+            int pos = 0;
+            int hash = hash(target, 0);
+            while (pos + BLOCK <= target.length) {
+                Integer match = blocks.get(hash);
+                if (match != null && regionMatches(source, match, target, pos)) {
+                    int s = match;
+                    int t = pos;
+                    // grow the match backwards into pending literal bytes
+                    while (s > 0 && t > literal && source[s - 1] == target[t - 1]) {
+                        s--;
+                        t--;
+                    }
+                    int length = match - s + BLOCK;
+                    while (s + length < source.length && t + length < target.length
+                            && source[s + length] == target[t + length]) {
+                        length++;
+                    }
+                    if (t > literal) {
+                        writeAdd(out, target, literal, t - literal);
+                    }
+                    out.writeByte(COPY);
+                    out.writeInt(s);
+                    out.writeInt(length);
+
+                    pos = t + length;
+                    literal = pos;
+                    if (pos + BLOCK <= target.length) {
+                        hash = hash(target, pos);
+                    }
+                } else {
+                    if (pos + BLOCK < target.length) {
+                        hash = (hash - (target[pos] & 0xff) * PRIME_POWER) * PRIME + (target[pos + BLOCK] & 0xff);
+                    }
+                    pos++;
+                }
+            }
+            if (literal < target.length) {
+                writeAdd(out, target, literal, target.length - literal);
+            }
+            out.flush();
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to compute snapshot delta", e);
+        }
+        return baos.toByteArray();
+    }
+
+    /**
+     * @return the target the delta was computed for
+     */
+    public static byte[] apply(byte[] source, byte[] delta) {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(delta));
+        try {
+            byte[] target = new byte[in.readInt()];
+            int pos = 0;
+            while (pos < target.length) {
+                byte op = in.readByte();
+                if (op == COPY) {
+                    int offset = in.readInt();
+                    int length = in.readInt();
+                    System.arraycopy(source, offset, target, pos, length);
+                    pos += length;
+                } else if (op == ADD) {
+                    int length = in.readInt();
+                    in.readFully(target, pos, length);
+                    pos += length;
+                } else {
+                    throw new IllegalArgumentException("Corrupted snapshot delta, unknown instruction " + op);
+                }
+            }
+            return target;
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Corrupted snapshot delta", e);
+        }
+    }
+
+    private static void writeAdd(DataOutputStream out, byte[] bytes, int offset, int length) throws IOException {
+        out.writeByte(ADD);
+        out.writeInt(length);
+        out.write(bytes, offset, length);
+    }
+
+    private static int hash(byte[] bytes, int offset) {
+        int hash = 0;
+        for (int i = offset; i < offset + BLOCK; i++) {
+            hash = hash * PRIME + (bytes[i] & 0xff);
+        }
+        return hash;
+    }
+
+    private static boolean regionMatches(byte[] source, int s, byte[] target, int t) {
+        for (int i = 0; i < BLOCK; i++) {
+            if (source[s + i] != target[t + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+}
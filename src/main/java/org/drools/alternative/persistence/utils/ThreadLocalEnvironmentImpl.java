@@ -15,6 +15,13 @@ public class ThreadLocalEnvironmentImpl implements Environment {
             this.delegate = delegate;
         }
 
+        /**
+         * @return the environment shared by all threads
+         */
+        public Environment getDelegate() {
+            return delegate;
+        }
+
         public Object get(String identifier) {
             Map<String, Object> map = localThreadState.get();
             if (map == null) {
@@ -0,0 +1,86 @@
+package org.drools.domain;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Lob;
+import javax.persistence.Version;
+
+/**
+ * Serialized fact stored apart from the session snapshots referring to it by
+ * id.
+ */
+@Entity
+public class FactInfo implements ReferenceCounted {
+
+    // generated, kept while the fact is unchanged
+    @Id
+    private String id;
+
+    @Version
+    @Column(name = "OPTLOCK")
+    private int version;
+
+    private String className;
+
+    // number of session snapshots referring to the fact
+    private int referenceCount;
+
+    @Lob
+    private byte[] factByteArray;
+
+    public FactInfo() {
+    }
+
+    public FactInfo(String id, String className, byte[] fact) {
+        this.id = id;
+        this.className = className;
+        this.factByteArray = fact;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public void setVersion(int version) {
+        this.version = version;
+    }
+
+    public String getClassName() {
+        return className;
+    }
+
+    public void setClassName(String className) {
+        this.className = className;
+    }
+
+    public int getReferenceCount() {
+        return referenceCount;
+    }
+
+    public void setReferenceCount(int referenceCount) {
+        this.referenceCount = referenceCount;
+    }
+
+    public byte[] getData() {
+        return factByteArray;
+    }
+
+    public void setData(byte[] data) {
+        this.factByteArray = data;
+    }
+
+    @Override
+    public String toString() {
+        return "FactInfo [id=" + id + ", version=" + version + ", className=" + className + "]";
+    }
+
+}
@@ -0,0 +1,91 @@
+package org.drools.domain;
+
+import java.util.Date;
+
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+
+/**
+ * History of a completed or aborted process instance or work item, kept once
+ * its live entry is removed.
+ */
+@Entity
+public class HistoryRecord {
+
+    public static final int PROCESS_INSTANCE = 0;
+    public static final int WORK_ITEM = 1;
+
+    // type and id, process instances and work items have separate identities
+    @Id
+    private String id;
+
+    private int type;
+
+    private long entityId;
+
+    // process id of an instance, name of a work item
+    private String name;
+
+    private long processInstanceId;
+
+    private int state;
+
+    @Temporal(TemporalType.TIMESTAMP)
+    private Date startDate, endDate;
+
+    public HistoryRecord() {
+    }
+
+    public HistoryRecord(int type, long entityId, String name, long processInstanceId, int state, Date startDate,
+            Date endDate) {
+        this.id = type + ":" + entityId;
+        this.type = type;
+        this.entityId = entityId;
+        this.name = name;
+        this.processInstanceId = processInstanceId;
+        this.state = state;
+        this.startDate = startDate;
+        this.endDate = endDate;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public int getType() {
+        return type;
+    }
+
+    public long getEntityId() {
+        return entityId;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getProcessInstanceId() {
+        return processInstanceId;
+    }
+
+    public int getState() {
+        return state;
+    }
+
+    public Date getStartDate() {
+        return startDate;
+    }
+
+    public Date getEndDate() {
+        return endDate;
+    }
+
+    @Override
+    public String toString() {
+        return "HistoryRecord [type=" + type + ", entityId=" + entityId + ", name=" + name + ", processInstanceId="
+                + processInstanceId + ", state=" + state + ", startDate=" + startDate + ", endDate=" + endDate + "]";
+    }
+
+}
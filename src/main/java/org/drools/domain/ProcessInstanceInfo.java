@@ -7,7 +7,6 @@ import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 
-import javax.persistence.CascadeType;
 import javax.persistence.Column;
 import javax.persistence.ElementCollection;
 import javax.persistence.Entity;
@@ -15,11 +14,10 @@ import javax.persistence.Id;
 import javax.persistence.JoinColumn;
 import javax.persistence.JoinTable;
 import javax.persistence.Lob;
-import javax.persistence.MapKey;
 import javax.persistence.NamedQuery;
-import javax.persistence.OneToMany;
 import javax.persistence.Temporal;
 import javax.persistence.TemporalType;
+import javax.persistence.Transient;
 import javax.persistence.Version;
 
 /**
@@ -27,7 +25,8 @@ import javax.persistence.Version;
  * 
  * Using JPA 2.0
  * 
- * NOTE: external variables storing is striped off
+ * Variables stored apart as {@link VariableInfo} are indexed by name in the
+ * transient variables map once the instance is read or written.
  * 
  * @author ievdokimov
  * 
@@ -58,9 +57,8 @@ public class ProcessInstanceInfo implements Versioning{
     @JoinTable(name = "EVENTTYPES", joinColumns = @JoinColumn(name = "ID"))
     private Set<String> eventTypes = new HashSet<String>();
 
-    @OneToMany(cascade = CascadeType.ALL)
-    @JoinColumn(name = "ID")
-    @MapKey(name = "name")
+    // written through their own manager, only when changed
+    @Transient
     private Map<String, VariableInfo> variables = new HashMap<String, VariableInfo>();
 
     public ProcessInstanceInfo() {
@@ -0,0 +1,62 @@
+package org.drools.domain;
+
+import java.io.Serializable;
+import java.util.Date;
+import java.util.Set;
+
+/**
+ * Lightweight view of a stored {@link ProcessInstanceInfo}, read without its
+ * process instance snapshot.
+ */
+public class ProcessInstanceSummary implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final long id;
+    private final String processId;
+    private final int state;
+    private final Date startDate;
+    private final Date lastModificationDate;
+    private final Set<String> eventTypes;
+
+    public ProcessInstanceSummary(long id, String processId, int state, Date startDate, Date lastModificationDate,
+            Set<String> eventTypes) {
+        this.id = id;
+        this.processId = processId;
+        this.state = state;
+        this.startDate = startDate;
+        this.lastModificationDate = lastModificationDate;
+        this.eventTypes = eventTypes;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public String getProcessId() {
+        return processId;
+    }
+
+    public int getState() {
+        return state;
+    }
+
+    public Date getStartDate() {
+        return startDate;
+    }
+
+    public Date getLastModificationDate() {
+        return lastModificationDate;
+    }
+
+    public Set<String> getEventTypes() {
+        return eventTypes;
+    }
+
+    @Override
+    public String toString() {
+        return "ProcessInstanceSummary [id=" + id + ", processId=" + processId + ", state=" + state + ", startDate="
+                + startDate + ", lastModificationDate=" + lastModificationDate + ", eventTypes=" + eventTypes + "]";
+    }
+
+}
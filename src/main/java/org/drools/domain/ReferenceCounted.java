@@ -0,0 +1,12 @@
+package org.drools.domain;
+
+/**
+ * Entity shared by several owners, removed once none refers to it anymore.
+ */
+public interface ReferenceCounted extends Versioning {
+
+    int getReferenceCount();
+
+    void setReferenceCount(int referenceCount);
+
+}
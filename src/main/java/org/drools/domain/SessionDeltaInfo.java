@@ -0,0 +1,90 @@
+package org.drools.domain;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Lob;
+import javax.persistence.Version;
+
+/**
+ * One link of a session delta chain, rebuilding the snapshot of sequence
+ * <code>n</code> from the snapshot of sequence <code>n - 1</code>.
+ */
+@Entity
+public class SessionDeltaInfo implements Versioning {
+
+    @Id
+    private String id;
+
+    @Version
+    @Column(name = "OPTLOCK")
+    private int version;
+
+    private int sessionId;
+
+    private int sequence;
+
+    @Lob
+    private byte[] deltaByteArray;
+
+    public SessionDeltaInfo() {
+    }
+
+    public SessionDeltaInfo(int sessionId, int sequence, byte[] delta) {
+        this.id = key(sessionId, sequence);
+        this.sessionId = sessionId;
+        this.sequence = sequence;
+        this.deltaByteArray = delta;
+    }
+
+    public static String key(int sessionId, int sequence) {
+        return sessionId + ":" + sequence;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public void setVersion(int version) {
+        this.version = version;
+    }
+
+    public int getSessionId() {
+        return sessionId;
+    }
+
+    public void setSessionId(int sessionId) {
+        this.sessionId = sessionId;
+    }
+
+    public int getSequence() {
+        return sequence;
+    }
+
+    public void setSequence(int sequence) {
+        this.sequence = sequence;
+    }
+
+    public byte[] getData() {
+        return deltaByteArray;
+    }
+
+    public void setData(byte[] data) {
+        this.deltaByteArray = data;
+    }
+
+    @Override
+    public String toString() {
+        return "SessionDeltaInfo [id=" + id + ", version=" + version + ", sessionId=" + sessionId + ", sequence="
+                + sequence + "]";
+    }
+
+}
@@ -27,6 +27,18 @@ public class SessionInfo implements Versioning{
     @Lob
     private byte[]             rulesByteArray;
 
+    // last delta sequence folded into rulesByteArray
+    private int                baseSequence;
+
+    // see SnapshotCodec
+    private int                compression;
+
+    private String             dictionaryId;
+
+    // comma separated SnapshotChunk ids, replacing rulesByteArray when set
+    @Lob
+    private String             chunkIds;
+
     
     public SessionInfo() {
         this.startDate = new Date();
@@ -72,10 +84,43 @@ public class SessionInfo implements Versioning{
         this.rulesByteArray = data;
     }
 
+    public int getBaseSequence() {
+        return this.baseSequence;
+    }
+
+    public void setBaseSequence(int baseSequence) {
+        this.baseSequence = baseSequence;
+    }
+
+    public int getCompression() {
+        return this.compression;
+    }
+
+    public void setCompression(int compression) {
+        this.compression = compression;
+    }
+
+    public String getDictionaryId() {
+        return this.dictionaryId;
+    }
+
+    public void setDictionaryId(String dictionaryId) {
+        this.dictionaryId = dictionaryId;
+    }
+
+    public String getChunkIds() {
+        return this.chunkIds;
+    }
+
+    public void setChunkIds(String chunkIds) {
+        this.chunkIds = chunkIds;
+    }
+
     @Override
     public String toString() {
         return "SessionInfo [id=" + id + ", version=" + version + ", startDate=" + startDate + ", lastModificationDate="
-                + lastModificationDate + "]";
+                + lastModificationDate + ", baseSequence=" + baseSequence + ", compression=" + compression
+                + ", dictionaryId=" + dictionaryId + "]";
     }
     
 }
@@ -0,0 +1,75 @@
+package org.drools.domain;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Lob;
+import javax.persistence.Version;
+
+/**
+ * Content addressed piece of a session snapshot, shared by all snapshots
+ * containing it and removed once no snapshot references it anymore.
+ */
+@Entity
+public class SnapshotChunk implements ReferenceCounted {
+
+    // content hash
+    @Id
+    private String id;
+
+    @Version
+    @Column(name = "OPTLOCK")
+    private int version;
+
+    // number of snapshots referring to the chunk
+    private int referenceCount;
+
+    @Lob
+    private byte[] chunkByteArray;
+
+    public SnapshotChunk() {
+    }
+
+    public SnapshotChunk(String id, byte[] chunk) {
+        this.id = id;
+        this.chunkByteArray = chunk;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public void setVersion(int version) {
+        this.version = version;
+    }
+
+    public int getReferenceCount() {
+        return referenceCount;
+    }
+
+    public void setReferenceCount(int referenceCount) {
+        this.referenceCount = referenceCount;
+    }
+
+    public byte[] getData() {
+        return chunkByteArray;
+    }
+
+    public void setData(byte[] data) {
+        this.chunkByteArray = data;
+    }
+
+    @Override
+    public String toString() {
+        return "SnapshotChunk [id=" + id + ", version=" + version + ", referenceCount=" + referenceCount + "]";
+    }
+
+}
@@ -0,0 +1,64 @@
+package org.drools.domain;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Lob;
+import javax.persistence.Version;
+
+/**
+ * Preset dictionary the session snapshots of a kbase are compressed with,
+ * stored once and referenced by id from each {@link SessionInfo}.
+ */
+@Entity
+public class SnapshotDictionary implements Versioning {
+
+    // content hash, so nodes training the same dictionary share one entry
+    @Id
+    private String id;
+
+    @Version
+    @Column(name = "OPTLOCK")
+    private int version;
+
+    @Lob
+    private byte[] dictionaryByteArray;
+
+    public SnapshotDictionary() {
+    }
+
+    public SnapshotDictionary(String id, byte[] dictionary) {
+        this.id = id;
+        this.dictionaryByteArray = dictionary;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public void setVersion(int version) {
+        this.version = version;
+    }
+
+    public byte[] getData() {
+        return dictionaryByteArray;
+    }
+
+    public void setData(byte[] data) {
+        this.dictionaryByteArray = data;
+    }
+
+    @Override
+    public String toString() {
+        return "SnapshotDictionary [id=" + id + ", version=" + version + "]";
+    }
+
+}
@@ -2,8 +2,13 @@ package org.drools.domain;
 
 import javax.persistence.Entity;
 import javax.persistence.Id;
+import javax.persistence.Lob;
 import javax.persistence.Version;
 
+/**
+ * Serialized process variable stored apart from its process instance, which
+ * refers to it by id.
+ */
 @Entity
 public class VariableInfo implements Versioning {
 
@@ -35,6 +40,12 @@ public class VariableInfo implements Versioning {
 	private Long processInstanceId;
 	private Long workItemId;
 
+	// content hash, the variable is only written again when it changes
+	private String hash;
+
+	@Lob
+	private byte[] variableByteArray;
+
 	public String getName() {
 		return name;
 	}
@@ -67,6 +78,22 @@ public class VariableInfo implements Versioning {
 		this.workItemId = workItemId;
 	}
 
+	public String getHash() {
+		return hash;
+	}
+
+	public void setHash(String hash) {
+		this.hash = hash;
+	}
+
+	public byte[] getData() {
+		return variableByteArray;
+	}
+
+	public void setData(byte[] data) {
+		this.variableByteArray = data;
+	}
+
 	public String toString() {
 		return getClass().getName() + " id=" + id + " name=" + name + " "
 				+ "persister=" + persister + "" + " processInstanceId="
@@ -0,0 +1,120 @@
+package org.drools.domain;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Lob;
+import javax.persistence.Version;
+
+/**
+ * Work item handed to a worker member of the grid, stored until the item is
+ * completed or aborted so it can be sent again when its worker is gone.
+ */
+@Entity
+public class WorkItemDispatch implements Versioning {
+
+    // id of the work item
+    @Id
+    private Long id;
+
+    @Version
+    @Column(name = "OPTLOCK")
+    private int version;
+
+    private String routerName;
+
+    private int sessionId;
+
+    private String role;
+
+    // member the item was sent to, null while no member has the role
+    private String memberUid;
+
+    // deliveries that failed on a worker
+    private int failures;
+
+    @Lob
+    private byte[] workItemByteArray;
+
+    public WorkItemDispatch() {
+    }
+
+    public WorkItemDispatch(Long id, String routerName, int sessionId, String role, byte[] workItem) {
+        this.id = id;
+        this.routerName = routerName;
+        this.sessionId = sessionId;
+        this.role = role;
+        this.workItemByteArray = workItem;
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public void setId(Long id) {
+        this.id = id;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public void setVersion(int version) {
+        this.version = version;
+    }
+
+    public String getRouterName() {
+        return routerName;
+    }
+
+    public void setRouterName(String routerName) {
+        this.routerName = routerName;
+    }
+
+    public int getSessionId() {
+        return sessionId;
+    }
+
+    public void setSessionId(int sessionId) {
+        this.sessionId = sessionId;
+    }
+
+    public String getRole() {
+        return role;
+    }
+
+    public void setRole(String role) {
+        this.role = role;
+    }
+
+    public String getMemberUid() {
+        return memberUid;
+    }
+
+    public void setMemberUid(String memberUid) {
+        this.memberUid = memberUid;
+    }
+
+    public int getFailures() {
+        return failures;
+    }
+
+    public void setFailures(int failures) {
+        this.failures = failures;
+    }
+
+    public byte[] getData() {
+        return workItemByteArray;
+    }
+
+    public void setData(byte[] data) {
+        this.workItemByteArray = data;
+    }
+
+    @Override
+    public String toString() {
+        return "WorkItemDispatch [id=" + id + ", version=" + version + ", sessionId=" + sessionId + ", memberUid="
+                + memberUid + ", failures=" + failures + "]";
+    }
+
+}
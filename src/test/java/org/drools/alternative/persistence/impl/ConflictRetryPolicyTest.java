@@ -0,0 +1,59 @@
+package org.drools.alternative.persistence.impl;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+import javax.persistence.OptimisticLockException;
+
+import org.junit.Test;
+import org.springframework.dao.ConcurrencyFailureException;
+
+/**
+ * Checks conflict detection and how attempts are counted, without backoff
+ * delays.
+ */
+public class ConflictRetryPolicyTest {
+
+    @Test
+    public void testConflictInCauseChain() {
+        assertTrue(ConflictRetryPolicy.isConflict(new ConcurrencyFailureException("conflict")));
+        assertTrue(ConflictRetryPolicy.isConflict(new RuntimeException("Could not commit session",
+                new IllegalStateException(new OptimisticLockException()))));
+        assertFalse(ConflictRetryPolicy.isConflict(new RuntimeException("Could not commit session",
+                new UnsupportedOperationException())));
+        assertFalse(ConflictRetryPolicy.isConflict(null));
+    }
+
+    @Test
+    public void testRetryLimit() {
+        ConflictRetryPolicy policy = new ConflictRetryPolicy(3, 0, 0);
+        RuntimeException conflict = new RuntimeException(new OptimisticLockException());
+        assertTrue(policy.shouldRetry(conflict, 1));
+        assertTrue(policy.backoff(1));
+        assertTrue(policy.shouldRetry(conflict, 2));
+        assertTrue(policy.backoff(2));
+        assertFalse(policy.shouldRetry(conflict, 3));
+        assertEquals(3, policy.getConflicts());
+        assertEquals(2, policy.getRetries());
+        assertEquals(1, policy.getExhausted());
+    }
+
+    @Test
+    public void testOtherFailureNotRetried() {
+        ConflictRetryPolicy policy = new ConflictRetryPolicy(3, 0, 0);
+        assertFalse(policy.shouldRetry(new UnsupportedOperationException(), 1));
+        assertEquals(0, policy.getConflicts());
+        assertEquals(0, policy.getRetries());
+        assertEquals(0, policy.getExhausted());
+    }
+
+    @Test
+    public void testSingleAttempt() {
+        ConflictRetryPolicy policy = new ConflictRetryPolicy(1, 0, 0);
+        assertFalse(policy.shouldRetry(new ConcurrencyFailureException("conflict"), 1));
+        assertEquals(1, policy.getConflicts());
+        assertEquals(1, policy.getExhausted());
+    }
+
+}
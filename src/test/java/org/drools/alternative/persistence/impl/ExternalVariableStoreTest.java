@@ -0,0 +1,190 @@
+package org.drools.alternative.persistence.impl;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Resource;
+
+import org.drools.KnowledgeBase;
+import org.drools.alternative.persistence.PersistenceDrools;
+import org.drools.alternative.persistence.impl.ProcessInstanceManagerImplTest.GetVariableCommand;
+import org.drools.alternative.persistence.impl.ProcessInstanceManagerImplTest.RewriteCommand;
+import org.drools.alternative.persistence.impl.ProcessInstanceManagerImplTest.SetVariableCommand;
+import org.drools.builder.KnowledgeBuilder;
+import org.drools.builder.KnowledgeBuilderFactory;
+import org.drools.builder.ResourceType;
+import org.drools.command.Context;
+import org.drools.command.impl.CommandBasedStatefulKnowledgeSession;
+import org.drools.command.impl.GenericCommand;
+import org.drools.command.impl.KnowledgeCommandContext;
+import org.drools.domain.ProcessInstanceInfo;
+import org.drools.io.ResourceFactory;
+import org.drools.runtime.Environment;
+import org.drools.runtime.StatefulKnowledgeSession;
+import org.jbpm.workflow.instance.impl.WorkflowProcessInstanceImpl;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.AbstractJUnit4SpringContextTests;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+/**
+ * Stores a large variable apart and reads it back after the instance was
+ * marshalled, unmarshalling it again by changing its stored version.
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(locations = { "/test-spring-cache-context.xml" })
+public class ExternalVariableStoreTest extends AbstractJUnit4SpringContextTests {
+
+    private static final int MIN_SIZE = 1024;
+
+    @Resource(name = "cohEnv")
+    private Environment environment;
+
+    private StatefulKnowledgeSession ksession;
+    private long processInstanceId;
+
+    @Before
+    public void setUp() {
+        // set for the calling thread only, the managers of the session read it
+        environment.set(PersistenceDrools.EXTERNAL_VARIABLE_SIZE, MIN_SIZE);
+        KnowledgeBuilder kbuilder = KnowledgeBuilderFactory.newKnowledgeBuilder();
+        kbuilder.add(ResourceFactory.newClassPathResource("BPMN2-VariableProcess.bpmn2"), ResourceType.BPMN2);
+        KnowledgeBase kbase = kbuilder.newKnowledgeBase();
+        ksession = new CommandBasedStatefulKnowledgeSession(new SingleSessionCommandServiceImpl(kbase, null,
+                environment));
+        Map<String, Object> parameters = new HashMap<String, Object>();
+        parameters.put("value", largeValue('a'));
+        processInstanceId = ksession.startProcess("VariableProcess", parameters).getId();
+    }
+
+    @After
+    public void tearDown() {
+        ksession.dispose();
+        environment.set(PersistenceDrools.EXTERNAL_VARIABLE_SIZE, 0);
+    }
+
+    @Test
+    public void testRoundTrip() {
+        assertTrue(getDataSize() < MIN_SIZE);
+        ksession.execute(new RewriteCommand(processInstanceId));
+        assertEquals(largeValue('a'), ksession.execute(new GetVariableCommand(processInstanceId)));
+    }
+
+    @Test
+    public void testChangedVariable() {
+        ksession.execute(new SetVariableCommand(processInstanceId, largeValue('b')));
+        assertTrue(getDataSize() < MIN_SIZE);
+        ksession.execute(new RewriteCommand(processInstanceId));
+        assertEquals(largeValue('b'), ksession.execute(new GetVariableCommand(processInstanceId)));
+    }
+
+    @Test
+    public void testVariableBecameSmall() {
+        ksession.execute(new SetVariableCommand(processInstanceId, "small"));
+        ksession.execute(new RewriteCommand(processInstanceId));
+        assertEquals("small", ksession.execute(new GetVariableCommand(processInstanceId)));
+    }
+
+    @Test
+    public void testVariableChangedInPlace() {
+        ArrayList<String> items = new ArrayList<String>();
+        items.add(largeValue('a'));
+        // a copy, commands run on this thread
+        ksession.execute(new SetValueCommand(processInstanceId, new ArrayList<String>(items)));
+        assertTrue(getDataSize() < MIN_SIZE);
+        ksession.execute(new AddItemCommand(processInstanceId, largeValue('b')));
+        ksession.execute(new RewriteCommand(processInstanceId));
+        items.add(largeValue('b'));
+        assertEquals(items, ksession.execute(new GetVariableCommand(processInstanceId)));
+    }
+
+    private int getDataSize() {
+        return ksession.execute(new GetDataSizeCommand(processInstanceId));
+    }
+
+    private static String largeValue(char c) {
+        char[] chars = new char[2 * MIN_SIZE];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+
+    private static WorkflowProcessInstanceImpl getProcessInstance(Context context, long processInstanceId) {
+        return (WorkflowProcessInstanceImpl) ((KnowledgeCommandContext) context).getStatefulKnowledgesession()
+                .getProcessInstance(processInstanceId);
+    }
+
+    public static class SetValueCommand implements GenericCommand<Object>, Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final long processInstanceId;
+        private final Serializable value;
+
+        public SetValueCommand(long processInstanceId, Serializable value) {
+            this.processInstanceId = processInstanceId;
+            this.value = value;
+        }
+
+        public Object execute(Context context) {
+            getProcessInstance(context, processInstanceId).setVariable("value", value);
+            return null;
+        }
+    }
+
+    /**
+     * Adds to the list held by the variable, as a script would, then changes
+     * another variable so the instance is written.
+     */
+    public static class AddItemCommand implements GenericCommand<Object>, Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final long processInstanceId;
+        private final String item;
+
+        public AddItemCommand(long processInstanceId, String item) {
+            this.processInstanceId = processInstanceId;
+            this.item = item;
+        }
+
+        @SuppressWarnings("unchecked")
+        public Object execute(Context context) {
+            WorkflowProcessInstanceImpl processInstance = getProcessInstance(context, processInstanceId);
+            ((List<String>) processInstance.getVariable("value")).add(item);
+            processInstance.setVariable("count", ((List<String>) processInstance.getVariable("value")).size());
+            return null;
+        }
+    }
+
+    /**
+     * Reads the size of the marshalled instance as stored.
+     */
+    public static class GetDataSizeCommand implements GenericCommand<Integer>, Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final long processInstanceId;
+
+        public GetDataSizeCommand(long processInstanceId) {
+            this.processInstanceId = processInstanceId;
+        }
+
+        public Integer execute(Context context) {
+            Environment env = ((KnowledgeCommandContext) context).getStatefulKnowledgesession().getEnvironment();
+            ProcessInstanceInfo info = PersistenceDroolsImpl.getPersistenceManager(ProcessInstanceInfo.class, env)
+                    .getById(processInstanceId);
+            return info.getData().length;
+        }
+    }
+
+}
@@ -0,0 +1,286 @@
+package org.drools.alternative.persistence.impl;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.Resource;
+
+import org.drools.KnowledgeBase;
+import org.drools.KnowledgeBaseFactory;
+import org.drools.alternative.persistence.PersistenceDrools;
+import org.drools.alternative.persistence.PersistenceManager;
+import org.drools.alternative.persistence.TransactionManager;
+import org.drools.alternative.persistence.utils.EnvironmentUtils;
+import org.drools.command.Command;
+import org.drools.command.CommandFactory;
+import org.drools.command.Context;
+import org.drools.command.impl.GenericCommand;
+import org.drools.command.impl.KnowledgeCommandContext;
+import org.drools.domain.FactInfo;
+import org.drools.marshalling.MarshallerFactory;
+import org.drools.marshalling.ObjectMarshallingStrategyAcceptor;
+import org.drools.runtime.Environment;
+import org.drools.runtime.StatefulKnowledgeSession;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.AbstractJUnit4SpringContextTests;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.transaction.support.AbstractPlatformTransactionManager;
+
+import com.tangosol.coherence.transaction.ConnectionFactory;
+
+/**
+ * Stores {@link Item} facts apart and checks the stored facts and their
+ * reference counts after each commit. Uses an environment of its own, so the
+ * strategy is not registered for other tests.
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(locations = { "/test-spring-cache-context.xml" })
+public class GridPlaceholderResolverStrategyTest extends AbstractJUnit4SpringContextTests {
+
+    @Resource(name = "cacheTxManager")
+    private AbstractPlatformTransactionManager txManager;
+
+    @Resource(name = "coherenceCF")
+    private ConnectionFactory cf;
+
+    private Environment environment;
+    private GridPlaceholderResolverStrategy strategy;
+    private KnowledgeBase kbase;
+    private Set<String> known;
+    private List<SingleSessionCommandServiceImpl> services = new ArrayList<SingleSessionCommandServiceImpl>();
+
+    @Before
+    public void setUp() {
+        environment = EnvironmentUtils.createEnvironment(txManager, cf);
+        strategy = new GridPlaceholderResolverStrategy(environment, new ItemAcceptor());
+        EnvironmentUtils.setMarshallingStrategies(environment, strategy, MarshallerFactory
+                .newSerializeMarshallingStrategy());
+        kbase = KnowledgeBaseFactory.newKnowledgeBase();
+        known = new HashSet<String>(getStoredItems().keySet());
+    }
+
+    @After
+    public void tearDown() {
+        for (SingleSessionCommandServiceImpl service : services) {
+            service.dispose();
+        }
+    }
+
+    @Test
+    public void testRetractReleases() throws Exception {
+        SingleSessionCommandServiceImpl service = newService();
+        Item item = new Item("retracted", 1);
+        service.execute(CommandFactory.newInsert(item));
+        Map<String, FactInfo> stored = getStoredItems();
+        assertEquals(1, stored.size());
+        assertEquals(1, stored.values().iterator().next().getReferenceCount());
+
+        service.execute(new RetractItemCommand(item));
+        assertTrue(getStoredItems().isEmpty());
+    }
+
+    @Test
+    public void testUpdateReplaces() throws Exception {
+        SingleSessionCommandServiceImpl service = newService();
+        Item item = new Item("updated", 1);
+        service.execute(CommandFactory.newInsert(item));
+        String id = getStoredItems().keySet().iterator().next();
+
+        service.execute(new UpdateItemCommand(item, 2));
+        Map<String, FactInfo> stored = getStoredItems();
+        assertEquals(1, stored.size());
+        assertFalse(stored.containsKey(id));
+        FactInfo info = stored.values().iterator().next();
+        assertEquals(1, info.getReferenceCount());
+        assertEquals(2, deserialize(info).value);
+    }
+
+    @Test
+    public void testRollback() throws Exception {
+        SingleSessionCommandServiceImpl service = newService();
+        Item item = new Item("rolled back", 1);
+        executeFailing(service, CommandFactory.newInsert(item));
+        assertTrue(getStoredItems().isEmpty());
+
+        service.execute(CommandFactory.newInsert(item));
+        assertEquals(1, getStoredItems().size());
+
+        // the released reference is restored
+        executeFailing(service, new RetractItemCommand(item));
+        Map<String, FactInfo> stored = getStoredItems();
+        assertEquals(1, stored.size());
+        assertEquals(1, stored.values().iterator().next().getReferenceCount());
+
+        service.execute(new RetractItemCommand(item));
+        assertTrue(getStoredItems().isEmpty());
+    }
+
+    @Test
+    public void testSharedBySessions() throws Exception {
+        SingleSessionCommandServiceImpl first = newService();
+        SingleSessionCommandServiceImpl second = newService();
+        Item item = new Item("shared", 1);
+        first.execute(CommandFactory.newInsert(item));
+        second.execute(CommandFactory.newInsert(item));
+        Map<String, FactInfo> stored = getStoredItems();
+        assertEquals(1, stored.size());
+        assertEquals(2, stored.values().iterator().next().getReferenceCount());
+
+        first.execute(new RetractItemCommand(item));
+        stored = getStoredItems();
+        assertEquals(1, stored.size());
+        assertEquals(1, stored.values().iterator().next().getReferenceCount());
+
+        second.execute(new RetractItemCommand(item));
+        assertTrue(getStoredItems().isEmpty());
+    }
+
+    @Test
+    public void testWrittenInlineOutsideSession() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        strategy.write(out, new Item("variable", 1));
+        out.close();
+        assertTrue(getStoredItems().isEmpty());
+
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        Item read = (Item) strategy.read(in);
+        assertEquals("variable", read.name);
+        assertEquals(1, read.value);
+    }
+
+    private SingleSessionCommandServiceImpl newService() {
+        SingleSessionCommandServiceImpl service = new SingleSessionCommandServiceImpl(kbase, null, environment);
+        services.add(service);
+        return service;
+    }
+
+    private void executeFailing(SingleSessionCommandServiceImpl service, Command<?> command) {
+        List<Command<?>> batch = new ArrayList<Command<?>>();
+        batch.add(command);
+        batch.add(new FailingCommand());
+        try {
+            service.executeBatch(batch);
+            fail("rollback expected");
+        } catch (RuntimeException e) {
+        }
+    }
+
+    /**
+     * @return the stored items written by the test, by id
+     */
+    private Map<String, FactInfo> getStoredItems() {
+        TransactionManager txm = (TransactionManager) environment.get(PersistenceDrools.DROOLS_TRANSACTION_MANAGER);
+        PersistenceManager cm = PersistenceDroolsImpl.getPersistenceManager(FactInfo.class, environment);
+        Map<String, FactInfo> infos;
+        try {
+            txm.begin();
+            cm.initConnection();
+            List<String> ids = cm.getAllIds();
+            infos = cm.getByIds(ids);
+            txm.commit();
+        } catch (RuntimeException t1) {
+            txm.rollback();
+            throw t1;
+        }
+        Map<String, FactInfo> items = new HashMap<String, FactInfo>();
+        for (Map.Entry<String, FactInfo> entry : infos.entrySet()) {
+            if (!known.contains(entry.getKey()) && Item.class.getName().equals(entry.getValue().getClassName())) {
+                items.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return items;
+    }
+
+    private static Item deserialize(FactInfo info) throws IOException, ClassNotFoundException {
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(info.getData()));
+        try {
+            return (Item) in.readObject();
+        } finally {
+            in.close();
+        }
+    }
+
+    public static class Item implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String name;
+        private int value;
+
+        public Item(String name, int value) {
+            this.name = name;
+            this.value = value;
+        }
+    }
+
+    private static class ItemAcceptor implements ObjectMarshallingStrategyAcceptor {
+
+        public boolean accept(Object object) {
+            return object instanceof Item;
+        }
+    }
+
+    private static class RetractItemCommand implements GenericCommand<Object> {
+
+        private final Item item;
+
+        RetractItemCommand(Item item) {
+            this.item = item;
+        }
+
+        public Object execute(Context context) {
+            StatefulKnowledgeSession ksession = ((KnowledgeCommandContext) context).getStatefulKnowledgesession();
+            ksession.retract(ksession.getFactHandle(item));
+            return null;
+        }
+    }
+
+    /**
+     * Changes the item in place, as rules do before updating it.
+     */
+    private static class UpdateItemCommand implements GenericCommand<Object> {
+
+        private final Item item;
+        private final int value;
+
+        UpdateItemCommand(Item item, int value) {
+            this.item = item;
+            this.value = value;
+        }
+
+        public Object execute(Context context) {
+            StatefulKnowledgeSession ksession = ((KnowledgeCommandContext) context).getStatefulKnowledgesession();
+            item.value = value;
+            ksession.update(ksession.getFactHandle(item), item);
+            return null;
+        }
+    }
+
+    private static class FailingCommand implements GenericCommand<Object> {
+
+        public Object execute(Context context) {
+            throw new UnsupportedOperationException("failing on purpose");
+        }
+    }
+
+}
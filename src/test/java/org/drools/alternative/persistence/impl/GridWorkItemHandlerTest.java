@@ -0,0 +1,158 @@
+package org.drools.alternative.persistence.impl;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+import java.io.Serializable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Resource;
+
+import org.drools.KnowledgeBase;
+import org.drools.builder.KnowledgeBuilder;
+import org.drools.builder.KnowledgeBuilderFactory;
+import org.drools.builder.ResourceType;
+import org.drools.command.Context;
+import org.drools.command.impl.CommandBasedStatefulKnowledgeSession;
+import org.drools.command.impl.GenericCommand;
+import org.drools.command.impl.KnowledgeCommandContext;
+import org.drools.domain.WorkItemDispatch;
+import org.drools.io.ResourceFactory;
+import org.drools.runtime.Environment;
+import org.drools.runtime.StatefulKnowledgeSession;
+import org.drools.runtime.process.WorkItem;
+import org.drools.runtime.process.WorkItemHandler;
+import org.drools.runtime.process.WorkItemManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.AbstractJUnit4SpringContextTests;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import com.tangosol.net.InvocationService;
+
+/**
+ * Runs work items on the local member as the only worker, completing them
+ * through a router registered on it.
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(locations = { "/test-spring-cache-context.xml" })
+public class GridWorkItemHandlerTest extends AbstractJUnit4SpringContextTests {
+
+    private static final long TIMEOUT = 10000;
+
+    @Resource(name = "cohEnv")
+    private Environment environment;
+
+    private SessionCommandRouter router;
+    private StatefulKnowledgeSession ksession;
+    private FailingWorker worker;
+
+    @Before
+    public void setUp() {
+        InvocationService service = GridWorkItemHandler.getService();
+        KnowledgeBuilder kbuilder = KnowledgeBuilderFactory.newKnowledgeBuilder();
+        kbuilder.add(ResourceFactory.newClassPathResource("BPMN2-GridWorkItemProcess.bpmn2"), ResourceType.BPMN2);
+        KnowledgeBase kbase = kbuilder.newKnowledgeBase();
+        router = new SessionCommandRouter("grid-test", kbase, environment, service);
+        SingleSessionCommandServiceImpl commandService = new SingleSessionCommandServiceImpl(kbase, null, environment);
+        ksession = new CommandBasedStatefulKnowledgeSession(commandService);
+        ksession.getWorkItemManager().registerWorkItemHandler("GridWork",
+                new GridWorkItemHandler(environment, service, "grid-test", commandService.getSessionId(), null));
+    }
+
+    @After
+    public void tearDown() {
+        GridWorkItemHandler.unregisterWorker("GridWork");
+        router.close();
+        ksession.dispose();
+    }
+
+    @Test
+    public void testCompletedByWorker() throws Exception {
+        worker = new FailingWorker(0);
+        GridWorkItemHandler.registerWorker("GridWork", worker);
+        long processInstanceId = ksession.startProcess("GridWorkItemProcess").getId();
+        awaitCompleted(processInstanceId);
+        assertEquals(1, worker.deliveries.get());
+        assertNull(ksession.execute(new GetDispatchCommand(worker.workItemId)));
+    }
+
+    @Test
+    public void testRedeliveredAfterFailure() throws Exception {
+        worker = new FailingWorker(1);
+        GridWorkItemHandler.registerWorker("GridWork", worker);
+        long processInstanceId = ksession.startProcess("GridWorkItemProcess").getId();
+        awaitCompleted(processInstanceId);
+        assertEquals(2, worker.deliveries.get());
+    }
+
+    @Test
+    public void testAbortedAfterMaxFailures() throws Exception {
+        worker = new FailingWorker(Integer.MAX_VALUE);
+        GridWorkItemHandler.registerWorker("GridWork", worker);
+        ksession.startProcess("GridWorkItemProcess");
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (worker.deliveries.get() < GridWorkItemHandler.MAX_FAILURES && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+        }
+        // no further delivery once aborted
+        Thread.sleep(1000);
+        assertEquals(GridWorkItemHandler.MAX_FAILURES, worker.deliveries.get());
+        assertNull(ksession.execute(new GetDispatchCommand(worker.workItemId)));
+    }
+
+    private void awaitCompleted(long processInstanceId) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (ksession.getProcessInstance(processInstanceId) != null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+        }
+        assertNull(ksession.getProcessInstance(processInstanceId));
+        assertTrue(worker.deliveries.get() > 0);
+    }
+
+    /**
+     * Fails the given number of deliveries, then completes the item.
+     */
+    private static class FailingWorker implements WorkItemHandler {
+
+        private final int failures;
+        private final AtomicInteger deliveries = new AtomicInteger();
+        private volatile long workItemId;
+
+        FailingWorker(int failures) {
+            this.failures = failures;
+        }
+
+        public void executeWorkItem(WorkItem workItem, WorkItemManager manager) {
+            workItemId = workItem.getId();
+            if (deliveries.incrementAndGet() <= failures) {
+                throw new IllegalStateException("failing on purpose");
+            }
+            manager.completeWorkItem(workItem.getId(), null);
+        }
+
+        public void abortWorkItem(WorkItem workItem, WorkItemManager manager) {
+        }
+    }
+
+    public static class GetDispatchCommand implements GenericCommand<WorkItemDispatch>, Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final long workItemId;
+
+        public GetDispatchCommand(long workItemId) {
+            this.workItemId = workItemId;
+        }
+
+        public WorkItemDispatch execute(Context context) {
+            Environment env = ((KnowledgeCommandContext) context).getStatefulKnowledgesession().getEnvironment();
+            return PersistenceDroolsImpl.getPersistenceManager(WorkItemDispatch.class, env).getById(workItemId);
+        }
+    }
+
+}
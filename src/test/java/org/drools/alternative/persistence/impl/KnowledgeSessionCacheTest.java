@@ -0,0 +1,146 @@
+package org.drools.alternative.persistence.impl;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import javax.annotation.Resource;
+
+import org.drools.KnowledgeBase;
+import org.drools.KnowledgeBaseFactory;
+import org.drools.alternative.persistence.PersistenceDrools;
+import org.drools.alternative.persistence.impl.KnowledgeSessionCache.CachedSession;
+import org.drools.alternative.persistence.utils.EnvironmentUtils;
+import org.drools.command.CommandFactory;
+import org.drools.command.Context;
+import org.drools.command.impl.GenericCommand;
+import org.drools.command.impl.KnowledgeCommandContext;
+import org.drools.runtime.Environment;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.AbstractJUnit4SpringContextTests;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.transaction.support.AbstractPlatformTransactionManager;
+
+import com.tangosol.coherence.transaction.ConnectionFactory;
+
+/**
+ * Lowers the memory budget of a cache of four sessions, the oldest one dirty,
+ * the next one busy, so one of the two recent clean ones has to go. Uses an
+ * environment of its own, so sessions of other tests are not in the cache.
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(locations = { "/test-spring-cache-context.xml" })
+public class KnowledgeSessionCacheTest extends AbstractJUnit4SpringContextTests {
+
+    private static final long TIMEOUT = 10000;
+
+    @Resource(name = "cacheTxManager")
+    private AbstractPlatformTransactionManager txManager;
+
+    @Resource(name = "coherenceCF")
+    private ConnectionFactory cf;
+
+    private Environment environment;
+    private KnowledgeSessionCache cache;
+    private List<SingleSessionCommandServiceImpl> services = new ArrayList<SingleSessionCommandServiceImpl>();
+
+    @Before
+    public void setUp() {
+        environment = EnvironmentUtils.createEnvironment(txManager, cf);
+        cache = (KnowledgeSessionCache) environment.get(PersistenceDrools.SESSION_CACHE);
+        cache.setMemoryBudget(Long.MAX_VALUE);
+    }
+
+    @After
+    public void tearDown() {
+        cache.setMemoryBudget(Long.MAX_VALUE);
+        for (SingleSessionCommandServiceImpl service : services) {
+            service.dispose();
+        }
+    }
+
+    @Test
+    public void testLeastRecentlyUsedPassivated() throws Exception {
+        KnowledgeBase kbase = KnowledgeBaseFactory.newKnowledgeBase();
+        SingleSessionCommandServiceImpl dirty = newService(kbase);
+        SingleSessionCommandServiceImpl busy = newService(kbase);
+        SingleSessionCommandServiceImpl clean = newService(kbase);
+        SingleSessionCommandServiceImpl recent = newService(kbase);
+        // in order of last access
+        for (SingleSessionCommandServiceImpl service : services) {
+            service.execute(CommandFactory.newInsert("fact-" + service.getSessionId()));
+        }
+        CachedSession dirtySession = cache.get(dirty.getSessionId());
+        CachedSession busySession = cache.get(busy.getSessionId());
+        CachedSession cleanSession = cache.get(clean.getSessionId());
+        CachedSession recentSession = cache.get(recent.getSessionId());
+
+        // changed outside of a transaction, not persisted
+        dirtySession.getChangeTracker().changed();
+        HeldExecutor held = new HeldExecutor();
+        busySession.getPipeline(held).submit(busy, new FactCountCommand());
+
+        cache.setMemoryBudget(cache.getEstimatedSize() - 1);
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (!cleanSession.isPassivated()) {
+            assertTrue("not passivated", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+        assertNull(cache.get(clean.getSessionId()));
+        assertFalse(dirtySession.isPassivated());
+        assertFalse(busySession.isPassivated());
+        assertFalse(recentSession.isPassivated());
+        assertEquals(3, cache.size());
+
+        // reloaded from the store by the next command
+        cache.setMemoryBudget(Long.MAX_VALUE);
+        assertEquals(1L, clean.execute(new FactCountCommand()).longValue());
+        assertTrue(cache.get(clean.getSessionId()) != null);
+        assertFalse(cache.get(clean.getSessionId()).isPassivated());
+
+        held.runAll();
+        dirtySession.getChangeTracker().snapshotTaken();
+    }
+
+    private SingleSessionCommandServiceImpl newService(KnowledgeBase kbase) {
+        SingleSessionCommandServiceImpl service = new SingleSessionCommandServiceImpl(kbase, null, environment);
+        services.add(service);
+        return service;
+    }
+
+    /**
+     * Keeps the drain tasks of a pipeline queued until told to run them.
+     */
+    private static class HeldExecutor implements Executor {
+
+        private final List<Runnable> tasks = new ArrayList<Runnable>();
+
+        public synchronized void execute(Runnable task) {
+            tasks.add(task);
+        }
+
+        synchronized void runAll() {
+            for (Runnable task : tasks) {
+                task.run();
+            }
+            tasks.clear();
+        }
+    }
+
+    private static class FactCountCommand implements GenericCommand<Long> {
+
+        public Long execute(Context context) {
+            return ((KnowledgeCommandContext) context).getStatefulKnowledgesession().getFactCount();
+        }
+    }
+
+}
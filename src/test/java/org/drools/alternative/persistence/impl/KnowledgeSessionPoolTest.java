@@ -0,0 +1,113 @@
+package org.drools.alternative.persistence.impl;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotSame;
+import static junit.framework.Assert.assertTrue;
+
+import javax.annotation.Resource;
+
+import org.drools.KnowledgeBase;
+import org.drools.KnowledgeBaseFactory;
+import org.drools.alternative.persistence.utils.EnvironmentUtils;
+import org.drools.command.Context;
+import org.drools.command.CommandFactory;
+import org.drools.command.impl.GenericCommand;
+import org.drools.command.impl.KnowledgeCommandContext;
+import org.drools.runtime.Environment;
+import org.drools.runtime.StatefulKnowledgeSession;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.AbstractJUnit4SpringContextTests;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+/**
+ * Creates and loads sessions with a pool of two sessions bound to the
+ * environment.
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(locations = { "/test-spring-cache-context.xml" })
+public class KnowledgeSessionPoolTest extends AbstractJUnit4SpringContextTests {
+
+    private static final long TIMEOUT = 10000;
+
+    private static final int SIZE = 2;
+
+    @Resource(name = "cohEnv")
+    private Environment environment;
+
+    private KnowledgeSessionPool pool;
+
+    @Before
+    public void setUp() {
+        pool = EnvironmentUtils.enableSessionPool(environment, SIZE);
+    }
+
+    @After
+    public void tearDown() {
+        EnvironmentUtils.disableSessionPool(environment);
+    }
+
+    @Test
+    public void testTakenSessionClean() throws Exception {
+        KnowledgeBase kbase = KnowledgeBaseFactory.newKnowledgeBase();
+        StatefulKnowledgeSession used = pool.take(kbase);
+        used.insert("used");
+        awaitRefilled(kbase);
+        StatefulKnowledgeSession taken = pool.take(kbase);
+        assertNotSame(used, taken);
+        assertEquals(0, taken.getFactCount());
+        assertEquals(0, taken.getProcessInstances().size());
+        used.dispose();
+        taken.dispose();
+    }
+
+    @Test
+    public void testRefilledInBackground() throws Exception {
+        KnowledgeBase kbase = KnowledgeBaseFactory.newKnowledgeBase();
+        assertEquals(0, pool.getAvailable(kbase));
+        pool.take(kbase).dispose();
+        awaitRefilled(kbase);
+        pool.take(kbase).dispose();
+        awaitRefilled(kbase);
+    }
+
+    @Test
+    public void testCreateAndLoad() throws Exception {
+        KnowledgeBase kbase = KnowledgeBaseFactory.newKnowledgeBase();
+        SingleSessionCommandServiceImpl created = new SingleSessionCommandServiceImpl(kbase, null, environment);
+        assertEquals(0L, created.execute(new FactCountCommand()).longValue());
+        created.execute(CommandFactory.newInsert("stored"));
+        awaitRefilled(kbase);
+
+        // another kbase instance is not served by the cached session
+        KnowledgeBase other = KnowledgeBaseFactory.newKnowledgeBase();
+        StatefulKnowledgeSession used = pool.take(other);
+        used.insert("used");
+        awaitRefilled(other);
+        SingleSessionCommandServiceImpl loaded = new SingleSessionCommandServiceImpl(created.getSessionId(), other,
+                null, environment);
+        assertEquals(1L, loaded.execute(new FactCountCommand()).longValue());
+        used.dispose();
+        created.dispose();
+        loaded.dispose();
+    }
+
+    private void awaitRefilled(KnowledgeBase kbase) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (pool.getAvailable(kbase) < SIZE) {
+            assertTrue("pool not refilled", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private static class FactCountCommand implements GenericCommand<Long> {
+
+        public Long execute(Context context) {
+            return ((KnowledgeCommandContext) context).getStatefulKnowledgesession().getFactCount();
+        }
+    }
+
+}
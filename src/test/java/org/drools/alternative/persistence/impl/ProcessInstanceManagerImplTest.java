@@ -0,0 +1,210 @@
+package org.drools.alternative.persistence.impl;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotSame;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.fail;
+
+import java.io.Serializable;
+
+import javax.annotation.Resource;
+
+import org.drools.KnowledgeBase;
+import org.drools.builder.KnowledgeBuilder;
+import org.drools.builder.KnowledgeBuilderFactory;
+import org.drools.builder.ResourceType;
+import org.drools.command.Context;
+import org.drools.command.impl.CommandBasedStatefulKnowledgeSession;
+import org.drools.command.impl.GenericCommand;
+import org.drools.command.impl.KnowledgeCommandContext;
+import org.drools.alternative.persistence.PersistenceManager;
+import org.drools.domain.ProcessInstanceInfo;
+import org.drools.io.ResourceFactory;
+import org.drools.runtime.Environment;
+import org.drools.runtime.StatefulKnowledgeSession;
+import org.drools.runtime.process.ProcessInstance;
+import org.jbpm.workflow.instance.impl.WorkflowProcessInstanceImpl;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.AbstractJUnit4SpringContextTests;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+/**
+ * Checks which process instances are written at the end of a transaction by
+ * the version of their stored info, and when instances are reused from the
+ * cache of the session by their identity.
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(locations = { "/test-spring-cache-context.xml" })
+public class ProcessInstanceManagerImplTest extends AbstractJUnit4SpringContextTests {
+
+    @Resource(name = "cohEnv")
+    private Environment environment;
+
+    private StatefulKnowledgeSession ksession;
+    private long processInstanceId;
+
+    @Before
+    public void setUp() {
+        KnowledgeBuilder kbuilder = KnowledgeBuilderFactory.newKnowledgeBuilder();
+        kbuilder.add(ResourceFactory.newClassPathResource("BPMN2-VariableProcess.bpmn2"), ResourceType.BPMN2);
+        KnowledgeBase kbase = kbuilder.newKnowledgeBase();
+        ksession = new CommandBasedStatefulKnowledgeSession(new SingleSessionCommandServiceImpl(kbase, null,
+                environment));
+        processInstanceId = ksession.startProcess("VariableProcess").getId();
+    }
+
+    @After
+    public void tearDown() {
+        ksession.dispose();
+    }
+
+    @Test
+    public void testReadInstanceNotWritten() {
+        int version = getVersion();
+        assertEquals(null, ksession.execute(new GetVariableCommand(processInstanceId)));
+        assertEquals(version, getVersion());
+    }
+
+    @Test
+    public void testChangedVariableWritten() {
+        int version = getVersion();
+        ksession.execute(new SetVariableCommand(processInstanceId, "changed"));
+        assertEquals(version + 1, getVersion());
+        assertEquals("changed", ksession.execute(new GetVariableCommand(processInstanceId)));
+        assertEquals(version + 1, getVersion());
+    }
+
+    @Test
+    public void testCachedInstanceReused() {
+        ProcessInstance processInstance = ksession.getProcessInstance(processInstanceId);
+        assertSame(processInstance, ksession.getProcessInstance(processInstanceId));
+        ksession.execute(new SetVariableCommand(processInstanceId, "changed"));
+        assertSame(processInstance, ksession.getProcessInstance(processInstanceId));
+        assertEquals("changed", ksession.execute(new GetVariableCommand(processInstanceId)));
+    }
+
+    @Test
+    public void testCachedInstanceInvalidated() {
+        ProcessInstance processInstance = ksession.getProcessInstance(processInstanceId);
+        int version = getVersion();
+        ksession.execute(new RewriteCommand(processInstanceId));
+        assertEquals(version + 1, getVersion());
+        assertNotSame(processInstance, ksession.getProcessInstance(processInstanceId));
+    }
+
+    @Test
+    public void testCachedInstanceDroppedOnRollback() {
+        ProcessInstance processInstance = ksession.getProcessInstance(processInstanceId);
+        try {
+            ksession.execute(new FailingSetVariableCommand(processInstanceId, "rolled back"));
+            fail("rollback expected");
+        } catch (RuntimeException e) {
+        }
+        assertNotSame(processInstance, ksession.getProcessInstance(processInstanceId));
+        assertEquals(null, ksession.execute(new GetVariableCommand(processInstanceId)));
+    }
+
+    private int getVersion() {
+        return ksession.execute(new GetVersionCommand(processInstanceId));
+    }
+
+    private static WorkflowProcessInstanceImpl getProcessInstance(Context context, long processInstanceId) {
+        return (WorkflowProcessInstanceImpl) ((KnowledgeCommandContext) context).getStatefulKnowledgesession()
+                .getProcessInstance(processInstanceId);
+    }
+
+    public static class GetVariableCommand implements GenericCommand<Object>, Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final long processInstanceId;
+
+        public GetVariableCommand(long processInstanceId) {
+            this.processInstanceId = processInstanceId;
+        }
+
+        public Object execute(Context context) {
+            return getProcessInstance(context, processInstanceId).getVariable("value");
+        }
+    }
+
+    public static class SetVariableCommand implements GenericCommand<Object>, Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final long processInstanceId;
+        private final String value;
+
+        public SetVariableCommand(long processInstanceId, String value) {
+            this.processInstanceId = processInstanceId;
+            this.value = value;
+        }
+
+        public Object execute(Context context) {
+            getProcessInstance(context, processInstanceId).setVariable("value", value);
+            return null;
+        }
+    }
+
+    public static class FailingSetVariableCommand extends SetVariableCommand {
+
+        private static final long serialVersionUID = 1L;
+
+        public FailingSetVariableCommand(long processInstanceId, String value) {
+            super(processInstanceId, value);
+        }
+
+        public Object execute(Context context) {
+            super.execute(context);
+            throw new UnsupportedOperationException("failing on purpose");
+        }
+    }
+
+    /**
+     * Writes the stored info again without going through the session, as
+     * another member would.
+     */
+    public static class RewriteCommand implements GenericCommand<Object>, Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final long processInstanceId;
+
+        public RewriteCommand(long processInstanceId) {
+            this.processInstanceId = processInstanceId;
+        }
+
+        public Object execute(Context context) {
+            Environment env = ((KnowledgeCommandContext) context).getStatefulKnowledgesession().getEnvironment();
+            PersistenceManager cm = PersistenceDroolsImpl.getPersistenceManager(ProcessInstanceInfo.class, env);
+            ProcessInstanceInfo info = cm.getById(processInstanceId);
+            cm.saveOrUpdate(info, processInstanceId);
+            return null;
+        }
+    }
+
+    /**
+     * Reads the stored version within a transaction of the session.
+     */
+    public static class GetVersionCommand implements GenericCommand<Integer>, Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final long processInstanceId;
+
+        public GetVersionCommand(long processInstanceId) {
+            this.processInstanceId = processInstanceId;
+        }
+
+        public Integer execute(Context context) {
+            Environment env = ((KnowledgeCommandContext) context).getStatefulKnowledgesession().getEnvironment();
+            return PersistenceDroolsImpl.getPersistenceManager(ProcessInstanceInfo.class, env).getVersion(
+                    processInstanceId);
+        }
+    }
+
+}
@@ -0,0 +1,188 @@
+package org.drools.alternative.persistence.impl;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Resource;
+
+import org.drools.KnowledgeBaseFactory;
+import org.drools.command.Context;
+import org.drools.command.impl.GenericCommand;
+import org.drools.command.impl.KnowledgeCommandContext;
+import org.drools.alternative.persistence.utils.EnvironmentUtils;
+import org.drools.domain.SessionInfo;
+import org.drools.runtime.Environment;
+import org.drools.runtime.StatefulKnowledgeSession;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.AbstractJUnit4SpringContextTests;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+/**
+ * Submits commands asynchronously while the drain task of the session is held
+ * by a blocking command, so the following ones are queued as a group.
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(locations = { "/test-spring-cache-context.xml" })
+public class SessionCommandPipelineTest extends AbstractJUnit4SpringContextTests {
+
+    private static final long TIMEOUT = 10000;
+
+    @Resource(name = "cohEnv")
+    private Environment environment;
+
+    private SingleSessionCommandServiceImpl service;
+
+    @Before
+    public void setUp() {
+        EnvironmentUtils.enableAsyncSubmit(environment, 2);
+        service = new SingleSessionCommandServiceImpl(KnowledgeBaseFactory.newKnowledgeBase(), null, environment);
+    }
+
+    @After
+    public void tearDown() {
+        EnvironmentUtils.disableAsyncSubmit(environment);
+        service.dispose();
+    }
+
+    @Test
+    public void testSubmissionOrder() throws Exception {
+        List<Integer> executed = Collections.synchronizedList(new ArrayList<Integer>());
+        List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+        for (int i = 0; i < 100; i++) {
+            futures.add(service.submit(new InsertCommand(i, executed)));
+        }
+        for (Future<Integer> future : futures) {
+            future.get(TIMEOUT, TimeUnit.MILLISECONDS);
+        }
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i, executed.get(i).intValue());
+        }
+    }
+
+    @Test
+    public void testGroupCommit() throws Exception {
+        BlockingCommand blocking = new BlockingCommand();
+        Future<Integer> first = service.submit(blocking);
+        assertTrue(blocking.started.await(TIMEOUT, TimeUnit.MILLISECONDS));
+
+        List<Integer> executed = Collections.synchronizedList(new ArrayList<Integer>());
+        List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+        for (int i = 0; i <= SessionCommandPipeline.MAX_BATCH_SIZE; i++) {
+            futures.add(service.submit(new InsertCommand(i, executed)));
+        }
+        blocking.released.countDown();
+
+        // every command returns the session version its transaction read
+        int version = first.get(TIMEOUT, TimeUnit.MILLISECONDS) + 1;
+        for (int i = 0; i < SessionCommandPipeline.MAX_BATCH_SIZE; i++) {
+            assertEquals(version, futures.get(i).get(TIMEOUT, TimeUnit.MILLISECONDS).intValue());
+        }
+        // the group is full, the last command has its own transaction
+        assertEquals(version + 1, futures.get(SessionCommandPipeline.MAX_BATCH_SIZE).get(TIMEOUT,
+                TimeUnit.MILLISECONDS).intValue());
+        assertEquals(version + 2, service.execute(new GetVersionCommand()).intValue());
+        assertEquals(SessionCommandPipeline.MAX_BATCH_SIZE + 1, executed.size());
+    }
+
+    @Test
+    public void testFailingCommandInGroup() throws Exception {
+        BlockingCommand blocking = new BlockingCommand();
+        service.submit(blocking);
+        assertTrue(blocking.started.await(TIMEOUT, TimeUnit.MILLISECONDS));
+
+        List<Integer> executed = Collections.synchronizedList(new ArrayList<Integer>());
+        Future<Integer> before = service.submit(new InsertCommand(1, executed));
+        Future<Integer> failing = service.submit(new FailingCommand());
+        Future<Integer> after = service.submit(new InsertCommand(2, executed));
+        blocking.released.countDown();
+
+        before.get(TIMEOUT, TimeUnit.MILLISECONDS);
+        try {
+            failing.get(TIMEOUT, TimeUnit.MILLISECONDS);
+            fail("failure expected");
+        } catch (ExecutionException e) {
+        }
+        after.get(TIMEOUT, TimeUnit.MILLISECONDS);
+        // the inserts of the rolled back group were run again one by one
+        assertEquals(3L, service.execute(new FactCountCommand()).longValue());
+    }
+
+    private static int getVersion(Context context) {
+        StatefulKnowledgeSession ksession = ((KnowledgeCommandContext) context).getStatefulKnowledgesession();
+        return PersistenceDroolsImpl.getPersistenceManager(SessionInfo.class, ksession.getEnvironment()).getVersion(
+                ksession.getId());
+    }
+
+    /**
+     * Inserts its index and returns the stored session version.
+     */
+    private static class InsertCommand implements GenericCommand<Integer> {
+
+        private final int index;
+        private final List<Integer> executed;
+
+        InsertCommand(int index, List<Integer> executed) {
+            this.index = index;
+            this.executed = executed;
+        }
+
+        public Integer execute(Context context) {
+            ((KnowledgeCommandContext) context).getStatefulKnowledgesession().insert(index);
+            executed.add(index);
+            return getVersion(context);
+        }
+    }
+
+    private static class BlockingCommand implements GenericCommand<Integer> {
+
+        private final CountDownLatch started = new CountDownLatch(1);
+        private final CountDownLatch released = new CountDownLatch(1);
+
+        public Integer execute(Context context) {
+            ((KnowledgeCommandContext) context).getStatefulKnowledgesession().insert("blocking");
+            started.countDown();
+            try {
+                released.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return getVersion(context);
+        }
+    }
+
+    private static class FailingCommand implements GenericCommand<Integer> {
+
+        public Integer execute(Context context) {
+            ((KnowledgeCommandContext) context).getStatefulKnowledgesession().insert("failing");
+            throw new UnsupportedOperationException("failing on purpose");
+        }
+    }
+
+    private static class GetVersionCommand implements GenericCommand<Integer> {
+
+        public Integer execute(Context context) {
+            return getVersion(context);
+        }
+    }
+
+    private static class FactCountCommand implements GenericCommand<Long> {
+
+        public Long execute(Context context) {
+            return ((KnowledgeCommandContext) context).getStatefulKnowledgesession().getFactCount();
+        }
+    }
+
+}
@@ -0,0 +1,227 @@
+package org.drools.alternative.persistence.impl;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+import java.io.Serializable;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Resource;
+
+import org.drools.KnowledgeBase;
+import org.drools.KnowledgeBaseFactory;
+import org.drools.command.Command;
+import org.drools.command.Context;
+import org.drools.command.impl.GenericCommand;
+import org.drools.command.impl.KnowledgeCommandContext;
+import org.drools.command.runtime.rule.FireAllRulesCommand;
+import org.drools.runtime.Environment;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.AbstractJUnit4SpringContextTests;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import com.tangosol.net.CacheFactory;
+import com.tangosol.net.Cluster;
+import com.tangosol.net.InvocationService;
+import com.tangosol.net.Member;
+
+/**
+ * Sends routed commands to the local member, so outcomes go through the same
+ * serialization as between members.
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(locations = { "/test-spring-cache-context.xml" })
+public class SessionCommandRouterTest extends AbstractJUnit4SpringContextTests {
+
+    @Resource(name = "cohEnv")
+    private Environment environment;
+
+    private InvocationService service;
+    private KnowledgeBase kbase;
+    private SessionCommandRouter router;
+    private int sessionId;
+
+    @Before
+    public void setUp() {
+        service = (InvocationService) CacheFactory.getConfigurableCacheFactory().ensureService(
+                SessionCommandRouter.INVOCATION_SERVICE);
+        kbase = KnowledgeBaseFactory.newKnowledgeBase();
+        router = new SessionCommandRouter("router-test", kbase, environment, service);
+        sessionId = new SingleSessionCommandServiceImpl(kbase, null, environment).getSessionId();
+    }
+
+    @After
+    public void tearDown() {
+        router.close();
+    }
+
+    @Test
+    public void testRoutedResult() {
+        assertEquals(Integer.valueOf(0), route("router-test", new FireAllRulesCommand()).get());
+        assertEquals(Integer.valueOf(0), router.execute(sessionId, new FireAllRulesCommand()));
+    }
+
+    @Test
+    public void testRoutedBulkCompletion() {
+        Map<Long, Map<String, Object>> results = new LinkedHashMap<Long, Map<String, Object>>();
+        RoutedCommandInvocable.Outcome outcome = route("router-test", new CompleteWorkItemsCommand(results));
+        assertTrue(outcome.isRouted());
+        assertEquals(null, outcome.get());
+    }
+
+    @Test
+    public void testMemberWithoutRouter() {
+        assertFalse(route("unknown-router", new FireAllRulesCommand()).isRouted());
+    }
+
+    @Test
+    public void testRoutedFailure() {
+        RoutedCommandInvocable.Outcome outcome = route("router-test", new FailingCommand());
+        assertTrue(outcome.isRouted());
+        try {
+            outcome.get();
+            fail("failure of the routed command expected");
+        } catch (RuntimeException e) {
+            assertTrue(e.getCause() instanceof UnsupportedOperationException);
+        }
+    }
+
+    @Test
+    public void testUnserializableResult() {
+        RoutedCommandInvocable.Outcome outcome = route("router-test", new UnserializableResultCommand());
+        try {
+            outcome.get();
+            fail("failure to send the result expected");
+        } catch (RuntimeException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+    }
+
+    @Test
+    public void testOwnerLeftAfterCommit() {
+        router.close();
+        AtomicInteger sent = new AtomicInteger();
+        router = new SessionCommandRouter("router-test", kbase, environment, leavingAfterCommit(sent));
+        try {
+            router.execute(sessionId, new InsertCommand("routed"));
+            fail("unknown outcome expected");
+        } catch (CommandOutcomeUnknownException e) {
+            assertEquals(sessionId, e.getSessionId());
+        }
+        // committed once by the owner, not sent again
+        assertEquals(1, sent.get());
+        assertEquals(Long.valueOf(1), router.executeLocally(sessionId, new FactCountCommand()));
+    }
+
+    /**
+     * @return the invocation service seen from another member, on which the
+     *         local member runs queries but leaves before answering
+     */
+    private InvocationService leavingAfterCommit(final AtomicInteger sent) {
+        final Cluster cluster = (Cluster) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class[] { Cluster.class }, new Delegate(service.getCluster()) {
+                    protected Object invoke(Method method, Object[] args) throws Throwable {
+                        return method.getName().equals("getLocalMember") ? null : super.invoke(method, args);
+                    }
+                });
+        return (InvocationService) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class[] { InvocationService.class }, new Delegate(service) {
+                    protected Object invoke(Method method, Object[] args) throws Throwable {
+                        if (method.getName().equals("getCluster")) {
+                            return cluster;
+                        }
+                        if (method.getName().equals("query")) {
+                            sent.incrementAndGet();
+                            super.invoke(method, args);
+                            return Collections.emptyMap();
+                        }
+                        return super.invoke(method, args);
+                    }
+                });
+    }
+
+    private static class Delegate implements InvocationHandler {
+
+        private final Object target;
+
+        Delegate(Object target) {
+            this.target = target;
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            return invoke(method, args);
+        }
+
+        protected Object invoke(Method method, Object[] args) throws Throwable {
+            try {
+                return method.invoke(target, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+    }
+
+    private RoutedCommandInvocable.Outcome route(String routerName, Command<?> command) {
+        Member local = service.getCluster().getLocalMember();
+        Map result = service.query(new RoutedCommandInvocable(routerName, sessionId, command), Collections
+                .singleton(local));
+        return RoutedCommandInvocable.unwrap(result.get(local));
+    }
+
+    public static class FailingCommand implements GenericCommand<Object>, Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        public Object execute(Context context) {
+            throw new UnsupportedOperationException("failing on purpose");
+        }
+    }
+
+    public static class InsertCommand implements GenericCommand<Object>, Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Object fact;
+
+        public InsertCommand(Object fact) {
+            this.fact = fact;
+        }
+
+        public Object execute(Context context) {
+            ((KnowledgeCommandContext) context).getStatefulKnowledgesession().insert(fact);
+            return null;
+        }
+    }
+
+    public static class FactCountCommand implements GenericCommand<Long>, Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        public Long execute(Context context) {
+            return ((KnowledgeCommandContext) context).getStatefulKnowledgesession().getFactCount();
+        }
+    }
+
+    public static class UnserializableResultCommand implements GenericCommand<Object>, Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        public Object execute(Context context) {
+            return new Object();
+        }
+    }
+
+}
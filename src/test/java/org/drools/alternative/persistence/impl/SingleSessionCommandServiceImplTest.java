@@ -0,0 +1,234 @@
+package org.drools.alternative.persistence.impl;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Resource;
+
+import org.drools.KnowledgeBaseFactory;
+import org.drools.alternative.persistence.PersistenceDrools;
+import org.drools.alternative.persistence.PersistenceManager;
+import org.drools.alternative.persistence.ReadOnlyCommand;
+import org.drools.alternative.persistence.TransactionManager;
+import org.drools.alternative.persistence.utils.EnvironmentUtils;
+import org.drools.command.Command;
+import org.drools.command.CommandFactory;
+import org.drools.command.Context;
+import org.drools.command.impl.GenericCommand;
+import org.drools.command.impl.KnowledgeCommandContext;
+import org.drools.domain.SessionInfo;
+import org.drools.runtime.Environment;
+import org.drools.runtime.StatefulKnowledgeSession;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.AbstractJUnit4SpringContextTests;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+/**
+ * Runs read only commands next to a writer holding the session, and a batch
+ * conflicting with a concurrent write of its session.
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(locations = { "/test-spring-cache-context.xml" })
+public class SingleSessionCommandServiceImplTest extends AbstractJUnit4SpringContextTests {
+
+    private static final long TIMEOUT = 10000;
+
+    @Resource(name = "cohEnv")
+    private Environment environment;
+
+    @Resource(name = "jpaEnv")
+    private Environment jpaEnvironment;
+
+    private SingleSessionCommandServiceImpl service;
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        service = new SingleSessionCommandServiceImpl(KnowledgeBaseFactory.newKnowledgeBase(), null, environment);
+        service.execute(CommandFactory.newInsert("committed"));
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+        service.dispose();
+    }
+
+    @Test
+    public void testReadOnlyNotWritten() {
+        int version = service.execute(new GetVersionCommand());
+        assertEquals(1L, service.execute(new ReadFactCountCommand()).longValue());
+        assertEquals(version, service.execute(new GetVersionCommand()).intValue());
+    }
+
+    @Test
+    public void testReadOnlyNotWaitingForWriter() throws Exception {
+        final BlockingInsertCommand writer = new BlockingInsertCommand();
+        Future<Object> written = executor.submit(new Callable<Object>() {
+            public Object call() {
+                return service.execute(writer);
+            }
+        });
+        assertTrue(writer.started.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        try {
+            Future<Long> read = executor.submit(new Callable<Long>() {
+                public Long call() {
+                    return service.execute(new ReadFactCountCommand());
+                }
+            });
+            // the uncommitted insert of the writer is not seen
+            assertEquals(1L, read.get(TIMEOUT, TimeUnit.MILLISECONDS).longValue());
+        } finally {
+            writer.released.countDown();
+        }
+        written.get(TIMEOUT, TimeUnit.MILLISECONDS);
+        assertEquals(2L, service.execute(new ReadFactCountCommand()).longValue());
+    }
+
+    @Test
+    public void testReadOnlySeesLastCommit() {
+        assertEquals(1L, service.execute(new ReadFactCountCommand()).longValue());
+        service.execute(CommandFactory.newInsert("second"));
+        assertEquals(2L, service.execute(new ReadFactCountCommand()).longValue());
+        List<Command<?>> batch = new ArrayList<Command<?>>();
+        batch.add(CommandFactory.newInsert("rolled back"));
+        batch.add(new FailingCommand());
+        try {
+            service.executeBatch(batch);
+            fail("rollback expected");
+        } catch (RuntimeException e) {
+        }
+        assertEquals(2L, service.execute(new ReadFactCountCommand()).longValue());
+    }
+
+    @Test
+    public void testConflictRetried() throws Exception {
+        ConflictRetryPolicy policy = EnvironmentUtils.enableConflictRetry(jpaEnvironment, 3, 0, 0);
+        try {
+            SingleSessionCommandServiceImpl conflicting = new SingleSessionCommandServiceImpl(KnowledgeBaseFactory
+                    .newKnowledgeBase(), null, jpaEnvironment);
+            ConcurrentWriteCommand write = new ConcurrentWriteCommand(executor);
+            List<Command<?>> batch = new ArrayList<Command<?>>();
+            batch.add(CommandFactory.newInsert("retried"));
+            batch.add(write);
+            conflicting.executeBatch(batch);
+
+            assertEquals(2, write.executions.get());
+            assertEquals(1, policy.getConflicts());
+            assertEquals(1, policy.getRetries());
+            assertEquals(0, policy.getExhausted());
+            // the insert of the failed attempt was rolled back
+            assertEquals(1L, conflicting.execute(new ReadFactCountCommand()).longValue());
+            conflicting.dispose();
+        } finally {
+            EnvironmentUtils.disableConflictRetry(jpaEnvironment);
+        }
+    }
+
+    private static class ReadFactCountCommand implements GenericCommand<Long>, ReadOnlyCommand {
+
+        public Long execute(Context context) {
+            return ((KnowledgeCommandContext) context).getStatefulKnowledgesession().getFactCount();
+        }
+    }
+
+    private static class BlockingInsertCommand implements GenericCommand<Object> {
+
+        private final CountDownLatch started = new CountDownLatch(1);
+        private final CountDownLatch released = new CountDownLatch(1);
+
+        public Object execute(Context context) {
+            ((KnowledgeCommandContext) context).getStatefulKnowledgesession().insert("uncommitted");
+            started.countDown();
+            try {
+                released.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return null;
+        }
+    }
+
+    private static class FailingCommand implements GenericCommand<Object> {
+
+        public Object execute(Context context) {
+            throw new UnsupportedOperationException("failing on purpose");
+        }
+    }
+
+    /**
+     * On its first execution, writes the stored session in a transaction of
+     * another thread, so the transaction of the batch conflicts on commit.
+     */
+    private static class ConcurrentWriteCommand implements GenericCommand<Object> {
+
+        private final ExecutorService executor;
+        private final AtomicInteger executions = new AtomicInteger();
+
+        ConcurrentWriteCommand(ExecutorService executor) {
+            this.executor = executor;
+        }
+
+        public Object execute(Context context) {
+            StatefulKnowledgeSession ksession = ((KnowledgeCommandContext) context).getStatefulKnowledgesession();
+            final Environment env = ksession.getEnvironment();
+            final int sessionId = ksession.getId();
+            if (executions.incrementAndGet() == 1) {
+                try {
+                    executor.submit(new Callable<Object>() {
+                        public Object call() {
+                            rewrite(env, sessionId);
+                            return null;
+                        }
+                    }).get(TIMEOUT, TimeUnit.MILLISECONDS);
+                } catch (Exception e) {
+                    throw new IllegalStateException("Could not write session concurrently", e);
+                }
+            }
+            return null;
+        }
+
+        private static void rewrite(Environment env, int sessionId) {
+            TransactionManager txm = (TransactionManager) env.get(PersistenceDrools.DROOLS_TRANSACTION_MANAGER);
+            PersistenceManager cm = PersistenceDroolsImpl.getPersistenceManager(SessionInfo.class, env);
+            try {
+                txm.begin();
+                cm.initConnection();
+                SessionInfo info = cm.getById(sessionId);
+                info.setLastModificationDate(new Date());
+                cm.saveOrUpdate(info, sessionId);
+                txm.commit();
+            } catch (RuntimeException t1) {
+                txm.rollback();
+                throw t1;
+            }
+        }
+    }
+
+    private static class GetVersionCommand implements GenericCommand<Integer> {
+
+        public Integer execute(Context context) {
+            StatefulKnowledgeSession ksession = ((KnowledgeCommandContext) context).getStatefulKnowledgesession();
+            return PersistenceDroolsImpl.getPersistenceManager(SessionInfo.class, ksession.getEnvironment())
+                    .getVersion(ksession.getId());
+        }
+    }
+
+}
@@ -0,0 +1,126 @@
+package org.drools.alternative.persistence.impl;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Resource;
+
+import org.drools.KnowledgeBase;
+import org.drools.builder.KnowledgeBuilder;
+import org.drools.builder.KnowledgeBuilderFactory;
+import org.drools.builder.ResourceType;
+import org.drools.command.impl.CommandBasedStatefulKnowledgeSession;
+import org.drools.io.ResourceFactory;
+import org.drools.runtime.Environment;
+import org.drools.runtime.StatefulKnowledgeSession;
+import org.drools.runtime.process.WorkItem;
+import org.drools.runtime.process.WorkItemHandler;
+import org.drools.runtime.process.WorkItemManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.AbstractJUnit4SpringContextTests;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+/**
+ * Completes work items of processes with two parallel tasks, where completing
+ * the first task ends the process and aborts the second one.
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(locations = { "/test-spring-cache-context.xml" })
+public class WorkItemManagerImplTest extends AbstractJUnit4SpringContextTests {
+
+    @Resource(name = "cohEnv")
+    private Environment environment;
+
+    private StatefulKnowledgeSession ksession;
+    private RecordingHandler handler;
+    private List<Integer> seen;
+
+    @Before
+    public void setUp() {
+        KnowledgeBuilder kbuilder = KnowledgeBuilderFactory.newKnowledgeBuilder();
+        kbuilder.add(ResourceFactory.newClassPathResource("BPMN2-ParallelWorkItemProcess.bpmn2"), ResourceType.BPMN2);
+        kbuilder.add(ResourceFactory.newClassPathResource("ParallelWorkItemRules.drl"), ResourceType.DRL);
+        KnowledgeBase kbase = kbuilder.newKnowledgeBase();
+        ksession = new CommandBasedStatefulKnowledgeSession(new SingleSessionCommandServiceImpl(kbase, null,
+                environment));
+        handler = new RecordingHandler();
+        ksession.getWorkItemManager().registerWorkItemHandler("Task", handler);
+        seen = Collections.synchronizedList(new ArrayList<Integer>());
+        ksession.setGlobal("seen", seen);
+    }
+
+    @After
+    public void tearDown() {
+        ksession.dispose();
+    }
+
+    @Test
+    public void testBulkCompletion() {
+        long first = ksession.startProcess("ParallelWorkItemProcess").getId();
+        long second = ksession.startProcess("ParallelWorkItemProcess").getId();
+        Map<Long, Map<String, Object>> results = new LinkedHashMap<Long, Map<String, Object>>();
+        results.put(handler.executed.get(0), null);
+        results.put(handler.executed.get(2), null);
+        ksession.execute(new CompleteWorkItemsCommand(results));
+
+        assertNull(ksession.getProcessInstance(first));
+        assertNull(ksession.getProcessInstance(second));
+        // fired once, after both items completed
+        assertEquals(Arrays.asList(2), seen);
+    }
+
+    @Test
+    public void testItemAbortedInBatchSkipped() {
+        long processInstanceId = ksession.startProcess("ParallelWorkItemProcess").getId();
+        long first = handler.executed.get(0);
+        long second = handler.executed.get(1);
+        Map<Long, Map<String, Object>> results = new LinkedHashMap<Long, Map<String, Object>>();
+        results.put(first, null);
+        results.put(second, null);
+        ksession.execute(new CompleteWorkItemsCommand(results));
+
+        assertNull(ksession.getProcessInstance(processInstanceId));
+        assertTrue(handler.aborted.contains(second));
+        assertEquals(Arrays.asList(1), seen);
+    }
+
+    @Test
+    public void testCompletedItemNotCompletedAgain() {
+        long processInstanceId = ksession.startProcess("ParallelWorkItemProcess").getId();
+        long first = handler.executed.get(0);
+        Map<Long, Map<String, Object>> results = new LinkedHashMap<Long, Map<String, Object>>();
+        results.put(first, null);
+        ksession.execute(new CompleteWorkItemsCommand(results));
+        ksession.execute(new CompleteWorkItemsCommand(results));
+
+        assertNull(ksession.getProcessInstance(processInstanceId));
+        assertEquals(Arrays.asList(1), seen);
+    }
+
+    private static class RecordingHandler implements WorkItemHandler {
+
+        private final List<Long> executed = Collections.synchronizedList(new ArrayList<Long>());
+        private final List<Long> aborted = Collections.synchronizedList(new ArrayList<Long>());
+
+        public void executeWorkItem(WorkItem workItem, WorkItemManager manager) {
+            executed.add(workItem.getId());
+        }
+
+        public void abortWorkItem(WorkItem workItem, WorkItemManager manager) {
+            aborted.add(workItem.getId());
+        }
+    }
+
+}
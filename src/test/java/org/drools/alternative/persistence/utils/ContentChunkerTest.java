@@ -0,0 +1,67 @@
+package org.drools.alternative.persistence.utils;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class ContentChunkerTest {
+
+    @Test
+    public void testChunkSizesAreBounded() {
+        Random random = new Random(42);
+        byte[] data = new byte[1024 * 1024];
+        random.nextBytes(data);
+        int[] cuts = ContentChunker.split(data);
+        assertEquals(data.length, cuts[cuts.length - 1]);
+        int start = 0;
+        for (int i = 0; i < cuts.length; i++) {
+            int length = cuts[i] - start;
+            assertTrue(length <= ContentChunker.MAX_CHUNK);
+            assertTrue(length >= ContentChunker.MIN_CHUNK || i == cuts.length - 1);
+            start = cuts[i];
+        }
+    }
+
+    @Test
+    public void testInsertionOnlyChangesNearbyChunks() {
+        Random random = new Random(7);
+        byte[] source = new byte[512 * 1024];
+        random.nextBytes(source);
+        byte[] target = new byte[source.length + 10];
+        System.arraycopy(source, 0, target, 0, 1000);
+        System.arraycopy(source, 1000, target, 1010, source.length - 1000);
+
+        Set<String> sourceChunks = hashes(source);
+        int shared = 0;
+        for (String hash : hashes(target)) {
+            if (sourceChunks.contains(hash)) {
+                shared++;
+            }
+        }
+        // only the chunks around the insertion differ
+        assertTrue(shared >= sourceChunks.size() - 2);
+    }
+
+    @Test
+    public void testEmptyData() {
+        int[] cuts = ContentChunker.split(new byte[0]);
+        assertEquals(1, cuts.length);
+        assertEquals(0, cuts[0]);
+    }
+
+    private static Set<String> hashes(byte[] data) {
+        Set<String> hashes = new HashSet<String>();
+        int start = 0;
+        for (int end : ContentChunker.split(data)) {
+            hashes.add(ContentChunker.contentHash(data, start, end - start));
+            start = end;
+        }
+        return hashes;
+    }
+
+}
@@ -0,0 +1,43 @@
+package org.drools.alternative.persistence.utils;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.drools.domain.HistoryRecord;
+import org.junit.Test;
+
+public class HistoryRecordCodecTest {
+
+    @Test
+    public void testBatchRoundTrip() {
+        long now = System.currentTimeMillis();
+        List<HistoryRecord> records = new ArrayList<HistoryRecord>();
+        for (int i = 0; i < 1000; i++) {
+            records.add(new HistoryRecord(i % 2, 1000 + i, i % 2 == 0 ? "process-" + (i % 3) : null, 500 + i / 2,
+                    i % 4, i % 10 == 0 ? null : new Date(now - 60000 + i), new Date(now + i)));
+        }
+        byte[] data = HistoryRecordCodec.encode(records);
+        // a few bytes a record rather than the dozens of a row
+        assertTrue(data.length < records.size() * 4);
+
+        List<HistoryRecord> decoded = HistoryRecordCodec.decode(data);
+        assertEquals(records.size(), decoded.size());
+        for (int i = 0; i < records.size(); i++) {
+            HistoryRecord expected = records.get(i);
+            HistoryRecord actual = decoded.get(i);
+            assertEquals(expected.getId(), actual.getId());
+            assertEquals(expected.getName(), actual.getName());
+            assertEquals(expected.getProcessInstanceId(), actual.getProcessInstanceId());
+            assertEquals(expected.getState(), actual.getState());
+            assertEquals(expected.getStartDate(), actual.getStartDate());
+            assertEquals(expected.getEndDate(), actual.getEndDate());
+        }
+        assertNull(decoded.get(0).getStartDate());
+    }
+
+}
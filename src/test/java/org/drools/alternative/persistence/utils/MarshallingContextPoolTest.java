@@ -0,0 +1,82 @@
+package org.drools.alternative.persistence.utils;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.drools.EnvironmentFactory;
+import org.drools.marshalling.impl.InputMarshaller;
+import org.drools.marshalling.impl.MarshallerWriteContext;
+import org.drools.marshalling.impl.OutputMarshaller;
+import org.drools.process.instance.WorkItem;
+import org.drools.process.instance.impl.WorkItemImpl;
+import org.drools.runtime.Environment;
+import org.junit.Test;
+
+public class MarshallingContextPoolTest {
+
+    private final Environment env = EnvironmentFactory.newEnvironment();
+
+    @Test
+    public void testPooledContextsWriteAndReadLikeFreshOnes() throws Exception {
+        List<byte[]> written = new ArrayList<byte[]>();
+        for (int i = 0; i < 5; i++) {
+            WorkItemImpl workItem = newWorkItem(i);
+            MarshallingContextPool.Writer writer = MarshallingContextPool.acquireWriter(env);
+            OutputMarshaller.writeWorkItem(writer.begin(0), workItem);
+            byte[] data = writer.toByteArray();
+            assertTrue(writer.contentEquals(data));
+            MarshallingContextPool.release(writer);
+
+            assertTrue(Arrays.equals(writeFresh(workItem), data));
+            written.add(data);
+        }
+        for (int i = 0; i < written.size(); i++) {
+            MarshallingContextPool.Reader reader = MarshallingContextPool.acquireReader(env, null);
+            WorkItem workItem = InputMarshaller.readWorkItem(reader.begin(written.get(i)));
+            reader.end();
+            assertTrue(reader.isReusable());
+            MarshallingContextPool.release(reader);
+
+            assertEquals(i, workItem.getId());
+            assertEquals("item-" + i, workItem.getName());
+            assertEquals("value-" + i, workItem.getParameter("param"));
+        }
+    }
+
+    @Test
+    public void testPartlyReadItemIsNotReused() throws Exception {
+        MarshallingContextPool.Writer writer = MarshallingContextPool.acquireWriter(env);
+        OutputMarshaller.writeWorkItem(writer.begin(0), newWorkItem(1));
+        byte[] data = writer.toByteArray();
+        MarshallingContextPool.release(writer);
+
+        MarshallingContextPool.Reader reader = MarshallingContextPool.acquireReader(env, null);
+        reader.begin(data).readLong();
+        reader.end();
+        assertTrue(!reader.isReusable());
+    }
+
+    private WorkItemImpl newWorkItem(int i) {
+        WorkItemImpl workItem = new WorkItemImpl();
+        workItem.setId(i);
+        workItem.setName("item-" + i);
+        workItem.setProcessInstanceId(100 + i);
+        workItem.setState(WorkItem.ACTIVE);
+        workItem.setParameter("param", "value-" + i);
+        return workItem;
+    }
+
+    private byte[] writeFresh(WorkItem workItem) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        MarshallerWriteContext context = new MarshallerWriteContext(out, null, null, null, null, env);
+        OutputMarshaller.writeWorkItem(context, workItem);
+        context.close();
+        return out.toByteArray();
+    }
+
+}
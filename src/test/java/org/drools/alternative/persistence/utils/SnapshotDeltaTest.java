@@ -0,0 +1,47 @@
+package org.drools.alternative.persistence.utils;
+
+import static junit.framework.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class SnapshotDeltaTest {
+
+    @Test
+    public void testRoundTrip() {
+        Random random = new Random(42);
+        for (int i = 0; i < 200; i++) {
+            byte[] source = new byte[random.nextInt(4096)];
+            random.nextBytes(source);
+            byte[] target = mutate(source, random);
+            byte[] delta = SnapshotDelta.diff(source, target);
+            assertTrue(Arrays.equals(target, SnapshotDelta.apply(source, delta)));
+        }
+    }
+
+    @Test
+    public void testSmallChangeGivesSmallDelta() {
+        Random random = new Random(7);
+        byte[] source = new byte[64 * 1024];
+        random.nextBytes(source);
+        byte[] target = source.clone();
+        target[1000] ^= 1;
+        target[40000] ^= 1;
+        byte[] delta = SnapshotDelta.diff(source, target);
+        assertTrue(delta.length < 256);
+        assertTrue(Arrays.equals(target, SnapshotDelta.apply(source, delta)));
+    }
+
+    private static byte[] mutate(byte[] source, Random random) {
+        byte[] target = new byte[source.length + random.nextInt(256)];
+        int copied = Math.min(source.length, target.length);
+        System.arraycopy(source, 0, target, 0, copied);
+        for (int i = 0; i < 8 && target.length > 0; i++) {
+            target[random.nextInt(target.length)] = (byte) random.nextInt();
+        }
+        return target;
+    }
+
+}
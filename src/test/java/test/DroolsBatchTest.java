@@ -0,0 +1,130 @@
+package test;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.fail;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.annotation.Resource;
+
+import org.drools.KnowledgeBase;
+import org.drools.KnowledgeBaseFactory;
+import org.drools.alternative.persistence.impl.SingleSessionCommandServiceImpl;
+import org.drools.command.Command;
+import org.drools.command.CommandFactory;
+import org.drools.command.Context;
+import org.drools.command.impl.GenericCommand;
+import org.drools.command.impl.KnowledgeCommandContext;
+import org.drools.runtime.Environment;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.AbstractJUnit4SpringContextTests;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+/**
+ * Compares the insert throughput of single commands against command batches
+ * of growing size, every batch committing its own transaction, and checks
+ * that a failing batch leaves no trace.
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(locations = { "/test-spring-cache-context.xml" })
+public class DroolsBatchTest extends AbstractJUnit4SpringContextTests {
+
+    private static final int FACTS = 1000;
+
+    private static final int[] BATCH_SIZES = { 1, 10, 100, 1000 };
+
+    @Resource(name = "cohEnv")
+    private Environment cohEnv;
+
+    @Resource(name = "jpaEnv")
+    private Environment jpaEnv;
+
+    @Test
+    public void testCoherenceBatches() throws Exception {
+        benchmark("coherence", cohEnv);
+    }
+
+    @Test
+    public void testJPABatches() throws Exception {
+        benchmark("jpa", jpaEnv);
+    }
+
+    @Test
+    public void testCoherenceBatchRollback() throws Exception {
+        checkRollback(cohEnv);
+    }
+
+    @Test
+    public void testJPABatchRollback() throws Exception {
+        checkRollback(jpaEnv);
+    }
+
+    private void checkRollback(Environment environment) {
+        KnowledgeBase kbase = KnowledgeBaseFactory.newKnowledgeBase();
+        SingleSessionCommandServiceImpl service = new SingleSessionCommandServiceImpl(kbase, null, environment);
+        service.executeBatch(Collections.singletonList(CommandFactory.newInsert("committed")));
+
+        List<Command<?>> batch = new ArrayList<Command<?>>();
+        batch.add(CommandFactory.newInsert("first"));
+        batch.add(CommandFactory.newInsert("second"));
+        batch.add(new FailingCommand());
+        try {
+            service.executeBatch(batch);
+            fail("rollback expected");
+        } catch (RuntimeException e) {
+        }
+        assertEquals(1L, service.execute(new FactCountCommand()).longValue());
+
+        // the stored session has none of the inserts either
+        SingleSessionCommandServiceImpl reloaded = new SingleSessionCommandServiceImpl(service.getSessionId(),
+                kbase, null, environment);
+        assertEquals(1L, reloaded.execute(new FactCountCommand()).longValue());
+        service.dispose();
+    }
+
+    private void benchmark(String name, Environment environment) {
+        KnowledgeBase kbase = KnowledgeBaseFactory.newKnowledgeBase();
+        for (int batchSize : BATCH_SIZES) {
+            SingleSessionCommandServiceImpl service = new SingleSessionCommandServiceImpl(kbase, null, environment);
+            long start = System.nanoTime();
+            for (int i = 0; i < FACTS; i += batchSize) {
+                List<Command<?>> batch = new ArrayList<Command<?>>(batchSize);
+                for (int j = i; j < i + batchSize; j++) {
+                    batch.add(CommandFactory.newInsert("fact-" + j));
+                }
+                List<Object> results = service.executeBatch(batch);
+                assertEquals(batchSize, results.size());
+                assertNotNull(results.get(batchSize - 1));
+            }
+            long millis = (System.nanoTime() - start) / 1000000;
+            System.out.println(name + " batch size " + batchSize + ": " + FACTS + " inserts in " + millis + " ms ("
+                    + (FACTS * 1000L / Math.max(millis, 1)) + " inserts/s)");
+            service.dispose();
+        }
+    }
+
+    public static class FactCountCommand implements GenericCommand<Long>, Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        public Long execute(Context context) {
+            return ((KnowledgeCommandContext) context).getStatefulKnowledgesession().getFactCount();
+        }
+    }
+
+    public static class FailingCommand implements GenericCommand<Object>, Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        public Object execute(Context context) {
+            throw new UnsupportedOperationException("failing on purpose");
+        }
+    }
+
+}
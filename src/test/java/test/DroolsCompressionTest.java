@@ -0,0 +1,160 @@
+package test;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import javax.annotation.Resource;
+
+import org.drools.KnowledgeBase;
+import org.drools.KnowledgeBaseFactory;
+import org.drools.alternative.persistence.PersistenceDrools;
+import org.drools.alternative.persistence.impl.KnowledgeSessionCache;
+import org.drools.alternative.persistence.impl.SingleSessionCommandServiceImpl;
+import org.drools.alternative.persistence.impl.SnapshotCodec;
+import org.drools.alternative.persistence.utils.SessionMarshallingHelper;
+import org.drools.alternative.persistence.utils.SnapshotCompression;
+import org.drools.command.Command;
+import org.drools.command.CommandFactory;
+import org.drools.command.impl.KnowledgeCommandContext;
+import org.drools.runtime.Environment;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.AbstractJUnit4SpringContextTests;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+/**
+ * Compares snapshot size and codec time without compression, with plain
+ * deflate and with deflate primed by a dictionary trained on another session
+ * of the same kbase, and checks sessions reload in every storage format.
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(locations = { "/test-spring-cache-context.xml" })
+public class DroolsCompressionTest extends AbstractJUnit4SpringContextTests {
+
+    private static final int SESSIONS = 20;
+
+    private static final int ROUNDS = 50;
+
+    @Resource(name = "cohEnv")
+    private Environment environment;
+
+    @After
+    public void resetCompression() {
+        codec().setCompression(SnapshotCodec.NONE);
+        codec().setChunked(false);
+    }
+
+    @Test
+    public void testCompressionBenchmark() throws Exception {
+        KnowledgeBase kbase = KnowledgeBaseFactory.newKnowledgeBase();
+        List<byte[]> snapshots = new ArrayList<byte[]>();
+        for (int i = 0; i < SESSIONS; i++) {
+            SingleSessionCommandServiceImpl service = new SingleSessionCommandServiceImpl(kbase, null, environment);
+            insert(service, 10 * (i + 1), "session-" + i);
+            snapshots.add(new SessionMarshallingHelper(((KnowledgeCommandContext) service.getContext())
+                    .getStatefulKnowledgesession(), null).getSnapshot());
+            service.dispose();
+        }
+        byte[] dictionary = SnapshotCompression.trainDictionary(snapshots.get(SESSIONS - 1));
+        List<byte[]> samples = snapshots.subList(0, SESSIONS - 1);
+
+        long raw = 0, deflated = 0, primed = 0, deflateNanos = 0, primedNanos = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            for (byte[] snapshot : samples) {
+                long start = System.nanoTime();
+                byte[] compressed = SnapshotCompression.compress(snapshot);
+                assertTrue(Arrays.equals(snapshot, SnapshotCompression.decompress(compressed)));
+                long middle = System.nanoTime();
+                byte[] withDictionary = SnapshotCompression.compress(snapshot, dictionary);
+                assertTrue(Arrays.equals(snapshot, SnapshotCompression.decompress(withDictionary, dictionary)));
+                long end = System.nanoTime();
+                if (round == 0) {
+                    raw += snapshot.length;
+                    deflated += compressed.length;
+                    primed += withDictionary.length;
+                }
+                deflateNanos += middle - start;
+                primedNanos += end - middle;
+            }
+        }
+        System.out.println("none: " + raw + " bytes");
+        System.out.println("deflate: " + deflated + " bytes, " + deflateNanos / 1000000 + " ms for " + ROUNDS
+                + " rounds");
+        System.out.println("dictionary: " + primed + " bytes, " + primedNanos / 1000000 + " ms for " + ROUNDS
+                + " rounds");
+        assertTrue(deflated < raw);
+        assertTrue(primed <= deflated);
+    }
+
+    @Test
+    public void testReloadCompressedSessions() throws Exception {
+        KnowledgeBase kbase = KnowledgeBaseFactory.newKnowledgeBase();
+        for (int compression = SnapshotCodec.NONE; compression <= SnapshotCodec.DICTIONARY; compression++) {
+            codec().setCompression(compression);
+            SingleSessionCommandServiceImpl service = new SingleSessionCommandServiceImpl(kbase, null, environment);
+            insert(service, 200, "first");
+            // lets the dictionary trained from the first snapshot be stored
+            Thread.sleep(500);
+            insert(service, 200, "second");
+            int sessionId = service.getSessionId();
+
+            // drop the live session so the stored snapshot is decoded
+            KnowledgeSessionCache cache = (KnowledgeSessionCache) environment.get(PersistenceDrools.SESSION_CACHE);
+            cache.remove(sessionId, cache.get(sessionId));
+
+            SingleSessionCommandServiceImpl reloaded = new SingleSessionCommandServiceImpl(sessionId, kbase, null,
+                    environment);
+            Collection<?> facts = (Collection<?>) reloaded.execute(CommandFactory.newGetObjects());
+            assertEquals(400, facts.size());
+            reloaded.dispose();
+        }
+    }
+
+    @Test
+    public void testReloadChunkedSessions() throws Exception {
+        codec().setChunked(true);
+        KnowledgeBase kbase = KnowledgeBaseFactory.newKnowledgeBase();
+        List<Integer> sessionIds = new ArrayList<Integer>();
+        for (int i = 0; i < 5; i++) {
+            SingleSessionCommandServiceImpl service = new SingleSessionCommandServiceImpl(kbase, null, environment);
+            // mostly the same facts, so the sessions share chunks
+            insert(service, 300, "shared");
+            insert(service, 10, "session-" + i);
+            sessionIds.add(service.getSessionId());
+        }
+        // switching chunking off again releases the chunks on the next write
+        codec().setChunked(false);
+        KnowledgeSessionCache cache = (KnowledgeSessionCache) environment.get(PersistenceDrools.SESSION_CACHE);
+        for (int sessionId : sessionIds) {
+            cache.remove(sessionId, cache.get(sessionId));
+            SingleSessionCommandServiceImpl reloaded = new SingleSessionCommandServiceImpl(sessionId, kbase, null,
+                    environment);
+            assertEquals(310, ((Collection<?>) reloaded.execute(CommandFactory.newGetObjects())).size());
+            insert(reloaded, 1, "unchunked");
+            cache.remove(sessionId, cache.get(sessionId));
+            reloaded = new SingleSessionCommandServiceImpl(sessionId, kbase, null, environment);
+            assertEquals(311, ((Collection<?>) reloaded.execute(CommandFactory.newGetObjects())).size());
+            reloaded.dispose();
+        }
+    }
+
+    private void insert(SingleSessionCommandServiceImpl service, int count, String prefix) {
+        List<Command<?>> batch = new ArrayList<Command<?>>(count);
+        for (int i = 0; i < count; i++) {
+            batch.add(CommandFactory.newInsert(prefix + "-fact-" + i));
+        }
+        service.executeBatch(batch);
+    }
+
+    private SnapshotCodec codec() {
+        return (SnapshotCodec) environment.get(PersistenceDrools.SNAPSHOT_CODEC);
+    }
+
+}
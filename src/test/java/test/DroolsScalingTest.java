@@ -0,0 +1,74 @@
+package test;
+
+import static junit.framework.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.annotation.Resource;
+
+import org.drools.KnowledgeBase;
+import org.drools.KnowledgeBaseFactory;
+import org.drools.alternative.persistence.impl.SingleSessionCommandServiceImpl;
+import org.drools.command.CommandFactory;
+import org.drools.runtime.Environment;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.AbstractJUnit4SpringContextTests;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+/**
+ * Measures command throughput with 1 to 64 threads, each thread driving its
+ * own session through the shared environment.
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(locations = { "/test-spring-cache-context.xml" })
+public class DroolsScalingTest extends AbstractJUnit4SpringContextTests {
+
+    private static final int COMMANDS_PER_THREAD = 200;
+
+    @Resource(name = "cohEnv")
+    private Environment environment;
+
+    @Test
+    public void testThreadScaling() throws Exception {
+        final KnowledgeBase kbase = KnowledgeBaseFactory.newKnowledgeBase();
+        for (int threads = 1; threads <= 64; threads *= 2) {
+            List<SingleSessionCommandServiceImpl> services = new ArrayList<SingleSessionCommandServiceImpl>();
+            for (int i = 0; i < threads; i++) {
+                services.add(new SingleSessionCommandServiceImpl(kbase, null, environment));
+            }
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>();
+            for (final SingleSessionCommandServiceImpl service : services) {
+                tasks.add(new Callable<Integer>() {
+                    public Integer call() {
+                        for (int i = 0; i < COMMANDS_PER_THREAD; i++) {
+                            service.execute(CommandFactory.newInsert("fact-" + i));
+                        }
+                        return COMMANDS_PER_THREAD;
+                    }
+                });
+            }
+            long start = System.nanoTime();
+            int total = 0;
+            for (Future<Integer> done : executor.invokeAll(tasks)) {
+                total += done.get();
+            }
+            long millis = Math.max((System.nanoTime() - start) / 1000000, 1);
+            executor.shutdown();
+            assertEquals(threads * COMMANDS_PER_THREAD, total);
+            System.out.println(threads + " threads: " + total + " commands in " + millis + " ms ("
+                    + (total * 1000L / millis) + " commands/s)");
+            for (SingleSessionCommandServiceImpl service : services) {
+                service.dispose();
+            }
+        }
+    }
+
+}
@@ -1,16 +1,23 @@
 package test;
 
+import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.assertNotNull;
 import static junit.framework.Assert.assertTrue;
 
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
 import javax.annotation.Resource;
 
 import org.drools.KnowledgeBase;
+import org.drools.alternative.persistence.impl.ProcessInstanceCursor;
 import org.drools.alternative.persistence.impl.SingleSessionCommandServiceImpl;
 import org.drools.builder.KnowledgeBuilder;
 import org.drools.builder.KnowledgeBuilderFactory;
 import org.drools.builder.ResourceType;
 import org.drools.command.impl.CommandBasedStatefulKnowledgeSession;
+import org.drools.domain.ProcessInstanceSummary;
 import org.drools.io.ResourceFactory;
 import org.drools.pof.config.PofMappingFactory;
 import org.drools.runtime.Environment;
@@ -56,6 +63,39 @@ public class DroolsTest extends AbstractJUnit4SpringContextTests {
         System.out.println("Signaling Hello2");
         ksession.signalEvent("Hello2", null, processInstance.getId());
     }
+
+    @Test
+    public void testProcessInstanceCursor() throws Exception {
+        KnowledgeBuilder kbuilder = KnowledgeBuilderFactory.newKnowledgeBuilder();
+        kbuilder.add(ResourceFactory.newClassPathResource("BPMN2-AdHocSubProcess.bpmn2"), ResourceType.BPMN2);
+        kbuilder.add(ResourceFactory.newClassPathResource("BPMN2-AdHocSubProcess.drl"), ResourceType.DRL);
+        StatefulKnowledgeSession ksession = createKnowledgeSession(kbuilder.newKnowledgeBase());
+        Map<Long, ProcessInstanceSummary> started = new HashMap<Long, ProcessInstanceSummary>();
+        for (int i = 0; i < 5; i++) {
+            started.put(ksession.startProcess("AdHocSubProcess").getId(), null);
+        }
+
+        ProcessInstanceCursor cursor = new ProcessInstanceCursor(environment, 2);
+        long last = 0;
+        while (cursor.hasNext()) {
+            List<ProcessInstanceSummary> page = cursor.next();
+            assertTrue(page.size() <= 2);
+            for (ProcessInstanceSummary summary : page) {
+                assertTrue(summary.getId() > last);
+                last = summary.getId();
+                if (started.containsKey(summary.getId())) {
+                    started.put(summary.getId(), summary);
+                }
+            }
+        }
+        for (ProcessInstanceSummary summary : started.values()) {
+            assertNotNull(summary);
+            assertEquals("AdHocSubProcess", summary.getProcessId());
+            assertEquals(ProcessInstance.STATE_ACTIVE, summary.getState());
+            assertNotNull(summary.getStartDate());
+        }
+        ksession.dispose();
+    }
         
     
     private StatefulKnowledgeSession createKnowledgeSession(KnowledgeBase kbase) {